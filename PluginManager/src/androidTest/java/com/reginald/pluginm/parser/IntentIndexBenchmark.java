@@ -0,0 +1,145 @@
+package com.reginald.pluginm.parser;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * 隐式Intent解析：IntentIndex与原来逐个IntentFilter匹配的对比。
+ * <p>
+ * 每个插件5个Activity，各有一个自己的action，其中一个同时处理 VIEW image/*。
+ * 两种方式都要对候选项做IntentFilter.match，结果必须一致，耗时输出到logcat。
+ */
+@RunWith(AndroidJUnit4.class)
+public class IntentIndexBenchmark {
+
+    private static final String TAG = "IntentIndexBenchmark";
+
+    private static final int ACTIVITIES_PER_PLUGIN = 5;
+    private static final int WARM_UP = 100;
+    private static final int ITERATIONS = 1000;
+
+    @Test
+    public void resolve10Plugins() throws Exception {
+        runBenchmark(10);
+    }
+
+    @Test
+    public void resolve100Plugins() throws Exception {
+        runBenchmark(100);
+    }
+
+    @Test
+    public void resolve1000Plugins() throws Exception {
+        runBenchmark(1000);
+    }
+
+    private void runBenchmark(int pluginCount) {
+        IntentIndex index = new IntentIndex();
+        List<IntentIndex.Entry> allEntries = new ArrayList<>();
+        for (int i = 0; i < pluginCount; i++) {
+            for (int j = 0; j < ACTIVITIES_PER_PLUGIN; j++) {
+                ComponentName component = new ComponentName("com.plugin" + i, "com.plugin" + i + ".Activity" + j);
+                IntentFilter filter = new IntentFilter(actionOf(i, j));
+                filter.addCategory(Intent.CATEGORY_DEFAULT);
+                if (j == 0) {
+                    filter.addAction(Intent.ACTION_VIEW);
+                    try {
+                        filter.addDataType("image/*");
+                    } catch (IntentFilter.MalformedMimeTypeException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                index.addFilter(IntentIndex.TYPE_ACTIVITY, component, filter);
+            }
+        }
+        allEntries.addAll(index.query(IntentIndex.TYPE_ACTIVITY, null, null));
+        assertEquals(pluginCount * ACTIVITIES_PER_PLUGIN, allEntries.size());
+
+        Intent[] intents = new Intent[]{
+                new Intent(actionOf(pluginCount / 2, 1)),
+                new Intent(Intent.ACTION_VIEW).setType("image/png"),
+                new Intent("com.plugin.action.NOT_EXIST"),
+        };
+
+        for (Intent intent : intents) {
+            assertEquals(intent.toString(), resolveLinear(allEntries, intent), resolveIndexed(index, intent));
+        }
+        assertFalse(resolveIndexed(index, intents[0]).isEmpty());
+
+        for (int i = 0; i < WARM_UP; i++) {
+            for (Intent intent : intents) {
+                resolveLinear(allEntries, intent);
+                resolveIndexed(index, intent);
+            }
+        }
+
+        long startTime = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (Intent intent : intents) {
+                resolveLinear(allEntries, intent);
+            }
+        }
+        long linearTime = System.nanoTime() - startTime;
+
+        startTime = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (Intent intent : intents) {
+                resolveIndexed(index, intent);
+            }
+        }
+        long indexedTime = System.nanoTime() - startTime;
+
+        int count = ITERATIONS * intents.length;
+        Log.i(TAG, String.format("%d plugins: linear %.1f us/op, indexed %.1f us/op", pluginCount,
+                linearTime / 1000f / count, indexedTime / 1000f / count));
+    }
+
+    private static String actionOf(int plugin, int activity) {
+        return "com.plugin" + plugin + ".action.ACTION" + activity;
+    }
+
+    /**
+     * 原来的方式：遍历所有插件的所有IntentFilter
+     */
+    private static Set<ComponentName> resolveLinear(List<IntentIndex.Entry> entries, Intent intent) {
+        Set<ComponentName> result = new HashSet<>();
+        for (IntentIndex.Entry entry : entries) {
+            if (match(entry.filter, intent)) {
+                result.add(entry.component);
+            }
+        }
+        return result;
+    }
+
+    private static Set<ComponentName> resolveIndexed(IntentIndex index, Intent intent) {
+        Set<ComponentName> result = new HashSet<>();
+        for (IntentIndex.Entry entry : index.query(IntentIndex.TYPE_ACTIVITY, intent.getAction(), intent.getType())) {
+            if (match(entry.filter, intent)) {
+                result.add(entry.component);
+            }
+        }
+        return result;
+    }
+
+    private static boolean match(IntentFilter filter, Intent intent) {
+        Set<String> categories = intent.getCategories() != null ? intent.getCategories() :
+                Collections.singleton(Intent.CATEGORY_DEFAULT);
+        return filter.match(intent.getAction(), intent.getType(), intent.getScheme(), intent.getData(),
+                categories, TAG) >= 0;
+    }
+}
@@ -0,0 +1,190 @@
+package com.reginald.pluginm.stub;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.reginald.pluginm.utils.Logger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * 桩进程分配：StubAllocator与原来每次扫描运行中进程、逐个检查桩进程的方式对比。
+ * <p>
+ * 每轮把所有桩进程分配给不同的插件，再让进程全部死亡释放。原来的方式省略了
+ * ActivityManager.getRunningAppProcesses()这次跨进程调用本身，只模拟其结果的过滤和查找。耗时输出到logcat。
+ */
+@RunWith(AndroidJUnit4.class)
+public class StubAllocatorBenchmark {
+
+    private static final String TAG = "StubAllocatorBenchmark";
+
+    private static final int WARM_UP_ROUNDS = 200;
+    private static final int ROUNDS = 1000;
+    // 运行中的非桩进程，原来的方式需要一起遍历
+    private static final int OTHER_PROCESSES = 20;
+
+    @Before
+    public void setUp() {
+        Logger.LOG_ENABLED = false;
+    }
+
+    @Test
+    public void allocate10Stubs() {
+        runBenchmark(10);
+    }
+
+    @Test
+    public void allocate50Stubs() {
+        runBenchmark(50);
+    }
+
+    @Test
+    public void allocate100Stubs() {
+        runBenchmark(100);
+    }
+
+    private void runBenchmark(int stubCount) {
+        List<StubManager.ProcessInfo> stubs = new ArrayList<>(stubCount);
+        for (int i = 0; i < stubCount; i++) {
+            stubs.add(new StubManager.ProcessInfo("com.host:p" + i));
+        }
+        String[] keys = new String[stubCount];
+        for (int i = 0; i < stubCount; i++) {
+            keys[i] = "com.plugin" + i;
+        }
+
+        StubAllocator<String> allocator = new StubAllocator<>(stubs, null);
+        LinearAllocator linearAllocator = new LinearAllocator(stubs);
+
+        // 两种方式都应把每个桩进程分配给一个插件，耗尽后返回null
+        assertEquals(stubCount, runAllocatorRound(allocator, keys));
+        assertNull(allocator.allocate("com.plugin.extra"));
+        releaseAll(allocator, stubs);
+        assertEquals(stubCount, allocator.getFreeCount());
+        assertEquals(stubCount, runLinearRound(linearAllocator, keys));
+        assertNull(linearAllocator.allocate("com.plugin.extra"));
+        linearAllocator.releaseAll();
+
+        for (int i = 0; i < WARM_UP_ROUNDS; i++) {
+            runAllocatorRound(allocator, keys);
+            releaseAll(allocator, stubs);
+            runLinearRound(linearAllocator, keys);
+            linearAllocator.releaseAll();
+        }
+
+        long startTime = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            runLinearRound(linearAllocator, keys);
+            linearAllocator.releaseAll();
+        }
+        long linearTime = System.nanoTime() - startTime;
+
+        startTime = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            runAllocatorRound(allocator, keys);
+            releaseAll(allocator, stubs);
+        }
+        long allocatorTime = System.nanoTime() - startTime;
+
+        long count = (long) ROUNDS * stubCount;
+        Log.i(TAG, String.format("%d stubs: linear %.0f ns/op, allocator %.0f ns/op",
+                stubCount, (double) linearTime / count, (double) allocatorTime / count));
+    }
+
+    private static int runAllocatorRound(StubAllocator<String> allocator, String[] keys) {
+        Set<String> allocated = new HashSet<>();
+        for (String key : keys) {
+            StubManager.ProcessInfo processInfo = allocator.allocate(key);
+            assertNotNull(processInfo);
+            allocator.onProcessAttached(processInfo.processName);
+            allocated.add(processInfo.processName);
+        }
+        return allocated.size();
+    }
+
+    private static void releaseAll(StubAllocator<String> allocator, List<StubManager.ProcessInfo> stubs) {
+        for (StubManager.ProcessInfo processInfo : stubs) {
+            allocator.onProcessDied(processInfo.processName);
+        }
+    }
+
+    private static int runLinearRound(LinearAllocator allocator, String[] keys) {
+        Set<String> allocated = new HashSet<>();
+        for (String key : keys) {
+            StubManager.ProcessInfo processInfo = allocator.allocate(key);
+            assertNotNull(processInfo);
+            allocated.add(processInfo.processName);
+        }
+        return allocated.size();
+    }
+
+    /**
+     * 原来StubManager中的分配方式：先按运行中的进程过滤已分配的map，再逐个查找未被占用的桩进程
+     */
+    private static class LinearAllocator {
+        private final List<StubManager.ProcessInfo> mStubs;
+        private final Map<String, StubManager.ProcessInfo> mAllocated = new HashMap<>();
+        // 模拟getRunningAppProcesses()的结果
+        private final List<String> mRunningProcesses = new ArrayList<>();
+
+        LinearAllocator(List<StubManager.ProcessInfo> stubs) {
+            mStubs = stubs;
+            releaseAll();
+        }
+
+        StubManager.ProcessInfo allocate(String key) {
+            filterRunning();
+
+            StubManager.ProcessInfo processInfo = mAllocated.get(key);
+            if (processInfo != null) {
+                return processInfo;
+            }
+            for (StubManager.ProcessInfo p : mStubs) {
+                if (!mAllocated.containsValue(p)) {
+                    mAllocated.put(key, p);
+                    mRunningProcesses.add(p.processName);
+                    return p;
+                }
+            }
+            return null;
+        }
+
+        void releaseAll() {
+            mAllocated.clear();
+            mRunningProcesses.clear();
+            for (int i = 0; i < OTHER_PROCESSES; i++) {
+                mRunningProcesses.add("com.other" + i);
+            }
+        }
+
+        private void filterRunning() {
+            Set<String> runningStubProcesses = new HashSet<>();
+            for (String processName : mRunningProcesses) {
+                if (processName.startsWith("com.host:p")) {
+                    runningStubProcesses.add(processName);
+                }
+            }
+
+            Iterator<Map.Entry<String, StubManager.ProcessInfo>> iterator = mAllocated.entrySet().iterator();
+            while (iterator.hasNext()) {
+                if (!runningStubProcesses.contains(iterator.next().getValue().processName)) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+}
@@ -35,12 +35,38 @@ public class PluginConfigs {
      */
     public static final int PROCESS_TYPE_COMPLETE = StubManager.PROCESS_TYPE_COMPLETE;
 
+    /**
+     * 桩进程耗尽时直接失败(默认)
+     */
+    public static final int STUB_EXHAUST_POLICY_FAIL = StubManager.STUB_EXHAUST_POLICY_FAIL;
+
+    /**
+     * 桩进程耗尽时结束最久未活动的空闲插件进程，并等待其释放
+     */
+    public static final int STUB_EXHAUST_POLICY_EVICT_LRU = StubManager.STUB_EXHAUST_POLICY_EVICT_LRU;
+
+    /**
+     * 桩进程耗尽时与其它插件共用插件最少的进程，仅用于{@link #PROCESS_TYPE_INDEPENDENT}模式
+     */
+    public static final int STUB_EXHAUST_POLICY_COLOCATE = StubManager.STUB_EXHAUST_POLICY_COLOCATE;
+
+    /**
+     * 桩进程耗尽时排队等待其它桩进程退出，直到超时
+     */
+    public static final int STUB_EXHAUST_POLICY_QUEUE = StubManager.STUB_EXHAUST_POLICY_QUEUE;
+
     private int mProcessType = PROCESS_TYPE_INDEPENDENT;
     private boolean mUseHostLoader = true;
     private boolean mHostContextHook = true;
     private boolean mSystemServicesHook = false;
     private final Set<Signature> mSignatures = new HashSet<>();
     private boolean mSignatureCheckEnabled = false;
+    private int mDexOptParallelism = 2;
+    private OnDexOptListener mDexOptListener;
+    private int mStubExhaustPolicy = STUB_EXHAUST_POLICY_FAIL;
+    private long mStubWaitTimeout = 3000;
+    private int mWarmProcessPoolSize = 0;
+    private long mIdleProcessTimeout = 0;
 
     public PluginConfigs() {
 
@@ -53,6 +79,12 @@ public class PluginConfigs {
         mSystemServicesHook = pluginConfigs.isSystemServicesHook();
         mSignatureCheckEnabled = pluginConfigs.isSignatureCheckEnabled();
         mSignatures.addAll(pluginConfigs.getSignatures());
+        mDexOptParallelism = pluginConfigs.getDexOptParallelism();
+        mDexOptListener = pluginConfigs.getDexOptListener();
+        mStubExhaustPolicy = pluginConfigs.getStubExhaustPolicy();
+        mStubWaitTimeout = pluginConfigs.getStubWaitTimeout();
+        mWarmProcessPoolSize = pluginConfigs.getWarmProcessPoolSize();
+        mIdleProcessTimeout = pluginConfigs.getIdleProcessTimeout();
     }
 
     public int getProcessType() {
@@ -145,6 +177,96 @@ public class PluginConfigs {
         return this;
     }
 
+    public int getDexOptParallelism() {
+        return mDexOptParallelism;
+    }
+
+    /**
+     * 设置同时进行dex优化的插件数量上限，默认为2
+     * @param parallelism
+     * @return
+     */
+    public PluginConfigs setDexOptParallelism(int parallelism) {
+        mDexOptParallelism = Math.max(1, parallelism);
+        return this;
+    }
+
+    public OnDexOptListener getDexOptListener() {
+        return mDexOptListener;
+    }
+
+    /**
+     * 设置插件dex优化的进度回调，回调在宿主主进程的后台线程中执行
+     * @param listener
+     * @return
+     */
+    public PluginConfigs setDexOptListener(OnDexOptListener listener) {
+        mDexOptListener = listener;
+        return this;
+    }
+
+    public int getStubExhaustPolicy() {
+        return mStubExhaustPolicy;
+    }
+
+    /**
+     * 设置桩进程全部被占用时的处理方式：
+     * {@see {@link #STUB_EXHAUST_POLICY_FAIL},
+     * {@link #STUB_EXHAUST_POLICY_EVICT_LRU},
+     * {@link #STUB_EXHAUST_POLICY_COLOCATE},
+     * {@link #STUB_EXHAUST_POLICY_QUEUE}}
+     * @param policy
+     * @return
+     */
+    public PluginConfigs setStubExhaustPolicy(int policy) {
+        mStubExhaustPolicy = policy;
+        return this;
+    }
+
+    public long getStubWaitTimeout() {
+        return mStubWaitTimeout;
+    }
+
+    /**
+     * 设置等待桩进程释放的超时时间(毫秒)，默认3000。等待会阻塞启动插件组件的线程，不宜过长
+     * @param timeout
+     * @return
+     */
+    public PluginConfigs setStubWaitTimeout(long timeout) {
+        mStubWaitTimeout = Math.max(0, timeout);
+        return this;
+    }
+
+    public int getWarmProcessPoolSize() {
+        return mWarmProcessPoolSize;
+    }
+
+    /**
+     * 设置预热桩进程数量的上限，默认为0(不预热)。
+     * 仅用于{@link #PROCESS_TYPE_INDEPENDENT}和{@link #PROCESS_TYPE_COMPLETE}模式，实际数量根据最近的插件启动频率调整
+     * @param size
+     * @return
+     */
+    public PluginConfigs setWarmProcessPoolSize(int size) {
+        mWarmProcessPoolSize = Math.max(0, size);
+        return this;
+    }
+
+    public long getIdleProcessTimeout() {
+        return mIdleProcessTimeout;
+    }
+
+    /**
+     * 设置插件进程空闲(没有运行的Activity和Service)多久后被结束(毫秒)，默认为0(不回收)。
+     * 开启后内存紧张时也会提前回收空闲的插件进程
+     * @param timeout
+     * @return
+     */
+    public PluginConfigs setIdleProcessTimeout(long timeout) {
+        mIdleProcessTimeout = Math.max(0, timeout);
+        return this;
+    }
+
     public String toString() {
         String processType = "UNKNOWN";
         switch (mProcessType) {
@@ -162,8 +284,22 @@ public class PluginConfigs {
                 break;
         }
         return String.format(" PluginConfig[ mProcessType = %s, mUseHostLoader = %b, mHostContextHook = %b, "
-                        + "mSystemServicesHook = %b, mSignatureCheckEnabled = %b, mSignatures size = %d ]",
+                        + "mSystemServicesHook = %b, mSignatureCheckEnabled = %b, mSignatures size = %d, "
+                        + "mDexOptParallelism = %d, mStubExhaustPolicy = %d, mStubWaitTimeout = %d, "
+                        + "mWarmProcessPoolSize = %d, mIdleProcessTimeout = %d ]",
                 processType, mUseHostLoader, mHostContextHook, mSystemServicesHook, mSignatureCheckEnabled,
-                mSignatures.size());
+                mSignatures.size(), mDexOptParallelism, mStubExhaustPolicy, mStubWaitTimeout,
+                mWarmProcessPoolSize, mIdleProcessTimeout);
+    }
+
+    public interface OnDexOptListener {
+        /**
+         * 一个插件的dex优化完成
+         * @param packageName 插件包名
+         * @param isSuccess 是否成功
+         * @param finished 当前这一批中已完成的数量
+         * @param total 当前这一批的总数量
+         */
+        void onDexOptProgress(String packageName, boolean isSuccess, int finished, int total);
     }
 }
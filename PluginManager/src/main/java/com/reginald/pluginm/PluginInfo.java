@@ -24,6 +24,8 @@ public final class PluginInfo implements Parcelable {
     public int versionCode;
     public long fileSize;
     public long lastModified;
+    // apk的SHA-256
+    public String digest;
     public String dataDir;
     public String dexDir;
     public String nativeLibDir;
@@ -50,6 +52,7 @@ public final class PluginInfo implements Parcelable {
         versionCode = in.readInt();
         fileSize = in.readLong();
         lastModified = in.readLong();
+        digest = in.readString();
         dataDir = in.readString();
         dexDir = in.readString();
         nativeLibDir = in.readString();
@@ -66,6 +69,7 @@ public final class PluginInfo implements Parcelable {
         dest.writeInt(versionCode);
         dest.writeLong(fileSize);
         dest.writeLong(lastModified);
+        dest.writeString(digest);
         dest.writeString(dataDir);
         dest.writeString(dexDir);
         dest.writeString(nativeLibDir);
@@ -92,8 +96,8 @@ public final class PluginInfo implements Parcelable {
 
     public String toString() {
         return String.format("PluginInfo[ packageName = %s, apkPath = %s, versionName = %s, versionCode = %d, fileSize = %d, " +
-                        "lastModified = %d, dataDir = %s, dexDir = %s, nativeLibDir = %s, pluginInvokerClassMap = %s]",
-                packageName, apkPath, versionName, versionCode, fileSize, lastModified,
+                        "lastModified = %d, digest = %s, dataDir = %s, dexDir = %s, nativeLibDir = %s, pluginInvokerClassMap = %s]",
+                packageName, apkPath, versionName, versionCode, fileSize, lastModified, digest,
                 dataDir, dexDir, nativeLibDir, pluginInvokerClassMap);
     }
 
@@ -7,6 +7,7 @@ import com.reginald.pluginm.comm.invoker.InvokeCallback;
 import com.reginald.pluginm.comm.invoker.InvokeCallbackWrapper;
 import com.reginald.pluginm.comm.invoker.InvokeResult;
 import com.reginald.pluginm.core.PluginManager;
+import com.reginald.pluginm.core.PluginPreloader;
 import com.reginald.pluginm.pluginapi.IInvokeCallback;
 import com.reginald.pluginm.pluginapi.IInvokeResult;
 import com.reginald.pluginm.stub.PluginContentResolver;
@@ -48,17 +49,84 @@ public class PluginM {
     }
 
     public static PluginInfo install(String apkPath, boolean loadDex) {
-        return PluginManager.getInstance().installPlugin(apkPath, loadDex);
+        return install(apkPath, loadDex, false);
     }
 
+    /**
+     * 核心进程启动时会恢复已安装的插件，安装、卸载同一插件时会一直等待其恢复完成
+     * @param isMove 是否允许直接移动apk文件而不是复制，与插件目录在同一文件系统时无需复制，安装后原文件不再存在
+     */
+    public static PluginInfo install(String apkPath, boolean loadDex, boolean isMove) {
+        return PluginManager.getInstance().installPlugin(apkPath, loadDex, isMove);
+    }
+
+    /**
+     * 插件尚未恢复完成时一直等待，不会基于不完整的安装信息卸载
+     */
     public static PluginInfo uninstall(String packageName) {
         return PluginManager.getInstance().uninstallPlugin(packageName);
     }
 
+    public static PluginInfo installPatch(String packageName, String patchPath, String sha256) {
+        return installPatch(packageName, patchPath, sha256, true);
+    }
+
+    /**
+     * 增量更新已安装的插件
+     * @param patchPath 基于已安装插件apk生成的补丁，格式见{@link com.reginald.pluginm.utils.PatchUtils}
+     * @param sha256 更新后apk的SHA-256，为null时不校验
+     */
+    public static PluginInfo installPatch(String packageName, String patchPath, String sha256, boolean loadDex) {
+        return PluginManager.getInstance().installPluginPatch(packageName, patchPath, sha256, loadDex);
+    }
+
+    public static List<PluginInfo> installBatch(List<String> apkPaths) {
+        return installBatch(apkPaths, true, false);
+    }
+
+    /**
+     * 批量安装，各个apk并行处理，一次性提交
+     * @return 与apkPaths一一对应的安装结果，安装失败的为null；无法连接核心进程时返回null
+     */
+    public static List<PluginInfo> installBatch(List<String> apkPaths, boolean loadDex, boolean isMove) {
+        return PluginManager.getInstance().installPlugins(apkPaths, loadDex, isMove);
+    }
+
+    /**
+     * @return 与packageNames一一对应的卸载结果，卸载失败的为null；无法连接核心进程时返回null
+     */
+    public static List<PluginInfo> uninstallBatch(List<String> packageNames) {
+        return PluginManager.getInstance().uninstallPlugins(packageNames);
+    }
+
+    /**
+     * 在主线程空闲时预热插件，提前启动插件所在进程并加载插件
+     * @return 可用于取消预热
+     */
+    public static PluginPreloader.PreloadTask preloadPlugin(String packageName) {
+        return preloadPlugin(packageName, null, null);
+    }
+
+    /**
+     * @param processName 插件中声明的进程名，为null时使用插件application所在进程
+     * @param classNames 需要预加载的类，例如即将打开的Activity
+     */
+    public static PluginPreloader.PreloadTask preloadPlugin(String packageName, String processName, List<String> classNames) {
+        return PluginPreloader.preload(packageName, processName, classNames);
+    }
+
+    /**
+     * 核心进程启动后会先等待插件恢复完成，等待超过15秒时抛出IllegalStateException(以
+     * {@link com.reginald.pluginm.core.PluginManagerService#ERROR_PLUGINS_NOT_READY}开头)，
+     * 而不是返回null，以免与"未安装"混淆。插件的组件查询(PackageManager、Intent解析)同样如此。
+     */
     public static PluginInfo getInstalledPlugin(String packageName) {
         return PluginManager.getInstance().getInstalledPluginInfo(packageName);
     }
 
+    /**
+     * 插件恢复超时时抛出IllegalStateException，见{@link #getInstalledPlugin(String)}
+     */
     public static List<PluginInfo> getAllInstalledPlugins() {
         return PluginManager.getInstance().getAllInstalledPlugins();
     }
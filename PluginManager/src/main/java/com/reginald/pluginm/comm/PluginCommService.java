@@ -12,6 +12,7 @@ import com.reginald.pluginm.comm.invoker.InvokeCallback;
 import com.reginald.pluginm.comm.invoker.InvokeResult;
 import com.reginald.pluginm.core.PluginManager;
 import com.reginald.pluginm.core.PluginManagerService;
+import com.reginald.pluginm.core.PluginProcess;
 import com.reginald.pluginm.pluginapi.IInvokeResult;
 import com.reginald.pluginm.stub.StubManager;
 import com.reginald.pluginm.utils.ConfigUtils;
@@ -29,6 +30,7 @@ public class PluginCommService extends IPluginComm.Stub {
 
     private Context mContext;
     private PluginManager mPluginManager;
+    private PluginManagerService mPluginManagerService;
     private HostInvokerManager mHostInvokerManager;
 
     public static synchronized PluginCommService getInstance(Context hostContext) {
@@ -43,6 +45,7 @@ public class PluginCommService extends IPluginComm.Stub {
         Context appContext = hostContext.getApplicationContext();
         mContext = appContext != null ? appContext : hostContext;
         mPluginManager = PluginManager.getInstance();
+        mPluginManagerService = PluginManagerService.getInstance(mContext);
         mHostInvokerManager = HostInvokerManager.getInstance(mContext);
     }
 
@@ -70,9 +73,23 @@ public class PluginCommService extends IPluginComm.Stub {
     }
 
     private InvokeResult invokePlugin(String packageName, String serviceName, String methodName, String params, InvokeCallback callback) throws RemoteException {
-        IPluginClient pluginClient = fetchPluginClient(packageName, serviceName);
+        StubManager.ProcessInfo processInfo = selectInvokerProcess(packageName, serviceName);
+        IPluginClient pluginClient = fetchPluginClient(processInfo);
         if (pluginClient != null) {
-            return pluginClient.invokePlugin(packageName, serviceName, methodName, params, callback);
+            // 调用期间进程不被视为空闲
+            PluginProcess pluginProcess = mPluginManagerService.getPluginProcess(processInfo.processName);
+            if (pluginProcess != null && !pluginProcess.onInvokeStart()) {
+                Logger.w(TAG, String.format("invokePlugin() process %s is being killed! service = %s@%s",
+                        processInfo.processName, serviceName, packageName));
+                return InvokeResult.buildErrorResult(IInvokeResult.RESULT_REMOTE_ERROR);
+            }
+            try {
+                return pluginClient.invokePlugin(packageName, serviceName, methodName, params, callback);
+            } finally {
+                if (pluginProcess != null) {
+                    pluginProcess.onInvokeFinish();
+                }
+            }
         }
 
         return InvokeResult.buildErrorResult(IInvokeResult.RESULT_NOT_FOUND);
@@ -81,38 +98,46 @@ public class PluginCommService extends IPluginComm.Stub {
 
     // TODO cache binders
     private IBinder fetchPluginServiceBinder(String packageName, String serviceName) throws RemoteException {
-        IPluginClient pluginClient = fetchPluginClient(packageName, serviceName);
+        StubManager.ProcessInfo processInfo = selectInvokerProcess(packageName, serviceName);
+        IPluginClient pluginClient = fetchPluginClient(processInfo);
         if (pluginClient != null) {
+            PluginProcess pluginProcess = mPluginManagerService.getPluginProcess(processInfo.processName);
+            if (pluginProcess != null) {
+                pluginProcess.onActive();
+            }
             return pluginClient.fetchPluginService(packageName, serviceName);
         }
 
         return null;
     }
 
-    private IPluginClient fetchPluginClient(String packageName, String serviceName) {
+    private IPluginClient fetchPluginClient(StubManager.ProcessInfo processInfo) {
+        if (processInfo != null) {
+            return mPluginManagerService.fetchPluginClient(processInfo.processName, true);
+        }
+
+        return null;
+    }
+
+    private StubManager.ProcessInfo selectInvokerProcess(String packageName, String serviceName) {
         PluginInfo pluginInfo = mPluginManager.getInstalledPluginInfo(packageName);
         if (pluginInfo == null) {
-            Logger.e(TAG, String.format("fetchPluginClient() plugin  %s not installed!", packageName));
+            Logger.e(TAG, String.format("selectInvokerProcess() plugin  %s not installed!", packageName));
             return null;
         }
 
         Map<String, String> serviceConfig = pluginInfo.pluginInvokerClassMap.get(serviceName);
 
         if (serviceConfig == null) {
-            Logger.e(TAG, String.format("fetchPluginClient() service config for %s@%s not found!", serviceName, packageName));
+            Logger.e(TAG, String.format("selectInvokerProcess() service config for %s@%s not found!", serviceName, packageName));
             return null;
         }
 
         String targetProcessName = serviceConfig.get(ConfigUtils.KEY_INVOKER_PROCESS);
         StubManager.ProcessInfo processInfo = StubManager.getInstance(mContext).selectStubProcess(targetProcessName, packageName);
-        Logger.d(TAG, String.format("fetchPluginClient() packageName = %s, serviceName = %s -> processInfo = %s",
+        Logger.d(TAG, String.format("selectInvokerProcess() packageName = %s, serviceName = %s -> processInfo = %s",
                 packageName, serviceName, processInfo));
-
-        if (processInfo != null) {
-            return PluginManagerService.getInstance(mContext).fetchPluginClient(processInfo.processName, true);
-        }
-
-        return null;
+        return processInfo;
     }
 
 
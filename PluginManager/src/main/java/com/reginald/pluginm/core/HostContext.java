@@ -1,7 +1,9 @@
 package com.reginald.pluginm.core;
 
 import java.lang.reflect.Field;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import com.android.common.ActivityThreadCompat;
 import com.reginald.pluginm.PluginInfo;
@@ -14,6 +16,7 @@ import android.content.Context;
 import android.content.ContextWrapper;
 import android.content.pm.PackageManager;
 import android.content.res.AssetManager;
+import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.os.UserHandle;
 
@@ -34,6 +37,13 @@ public class HostContext extends ContextWrapper {
     private Context mBase;
     private PluginManager mPluginManager;
 
+    // 合并后的资源缓存，只有已加载插件变化时才重建
+    private final Object mCombinedLock = new Object();
+    private Set<String> mCombinedApkPaths;
+    private AssetManager mCombinedAssets;
+    private Resources mCombinedResources;
+    private Configuration mCombinedConfiguration;
+
     public static boolean install(Context appContext) {
         Logger.d(TAG, "install()");
         Object target = ActivityThreadCompat.currentActivityThread();
@@ -100,13 +110,13 @@ public class HostContext extends ContextWrapper {
 
     @Override
     public AssetManager getAssets() {
-        Logger.d(TAG, "getAssets() ");
         List<PluginInfo> pluginInfos = mPluginManager.getLoadedPluginInfos();
         if (pluginInfos != null && !pluginInfos.isEmpty()) {
-            AssetManager combinedAssets = ResourcesManager.getCombinedAssetManager(mBase, pluginInfos);
-            if (combinedAssets != null) {
-                Logger.d(TAG, "getAssets() return combinedAssets = " + combinedAssets);
-                return combinedAssets;
+            synchronized (mCombinedLock) {
+                AssetManager combinedAssets = ensureCombinedAssets(pluginInfos);
+                if (combinedAssets != null) {
+                    return combinedAssets;
+                }
             }
         }
 
@@ -117,13 +127,70 @@ public class HostContext extends ContextWrapper {
     public Resources getResources() {
         List<PluginInfo> pluginInfos = mPluginManager.getLoadedPluginInfos();
         if (pluginInfos != null && !pluginInfos.isEmpty()) {
-            AssetManager combinedAssets = ResourcesManager.getCombinedAssetManager(mBase, pluginInfos);
-            if (combinedAssets != null) {
-                Logger.d(TAG, "getResources() return combinedResources ");
-                return ResourcesManager.createResources(mBase, combinedAssets);
+            synchronized (mCombinedLock) {
+                AssetManager combinedAssets = ensureCombinedAssets(pluginInfos);
+                if (combinedAssets != null) {
+                    if (mCombinedResources == null) {
+                        mCombinedResources = ResourcesManager.createResources(mBase, combinedAssets);
+                        mCombinedConfiguration = null;
+                        Logger.d(TAG, "getResources() create combinedResources = " + mCombinedResources);
+                    }
+                    if (mCombinedResources != null) {
+                        updateCombinedConfiguration();
+                        return mCombinedResources;
+                    }
+                }
             }
         }
 
         return super.getResources();
     }
+
+    /**
+     * 需持有mCombinedLock，已加载插件变化时重新合并，并使合并后的Resources失效
+     */
+    private AssetManager ensureCombinedAssets(List<PluginInfo> pluginInfos) {
+        if (mCombinedAssets != null && isCombined(pluginInfos)) {
+            return mCombinedAssets;
+        }
+
+        AssetManager combinedAssets = ResourcesManager.getCombinedAssetManager(mBase, pluginInfos);
+        if (combinedAssets != null) {
+            Set<String> apkPaths = new HashSet<>(pluginInfos.size());
+            for (PluginInfo pluginInfo : pluginInfos) {
+                apkPaths.add(pluginInfo.apkPath);
+            }
+            mCombinedApkPaths = apkPaths;
+            mCombinedAssets = combinedAssets;
+            mCombinedResources = null;
+            Logger.d(TAG, "ensureCombinedAssets() combine plugins " + apkPaths);
+        }
+        return combinedAssets;
+    }
+
+    private boolean isCombined(List<PluginInfo> pluginInfos) {
+        if (mCombinedApkPaths == null || mCombinedApkPaths.size() != pluginInfos.size()) {
+            return false;
+        }
+
+        for (PluginInfo pluginInfo : pluginInfos) {
+            if (!mCombinedApkPaths.contains(pluginInfo.apkPath)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 需持有mCombinedLock，宿主配置(语言、横竖屏等)变化后同步到合并后的Resources
+     */
+    private void updateCombinedConfiguration() {
+        Resources hostResources = mBase.getResources();
+        Configuration hostConfiguration = hostResources.getConfiguration();
+        if (mCombinedConfiguration == null || !mCombinedConfiguration.equals(hostConfiguration)) {
+            mCombinedResources.updateConfiguration(hostConfiguration, hostResources.getDisplayMetrics());
+            mCombinedConfiguration = new Configuration(hostConfiguration);
+            Logger.d(TAG, "updateCombinedConfiguration() configuration = " + mCombinedConfiguration);
+        }
+    }
 }
@@ -0,0 +1,216 @@
+package com.reginald.pluginm.core;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.os.Debug;
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.reginald.pluginm.utils.Logger;
+import com.reginald.pluginm.utils.ProcessHelper;
+import com.reginald.pluginm.utils.ThreadUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * 回收空闲的插件进程，空闲的判断见{@link PluginProcess#isIdle()}。
+ * <p>
+ * 1. 定期检查，空闲超过{@link com.reginald.pluginm.PluginConfigs#getIdleProcessTimeout()}的进程被结束，桩进程随之释放。
+ * 2. 内存紧张(onTrimMemory，见{@link ProcessHelper#getTrimMemoryRatio(int)})时不等超时，按进程存活时间从短到长结束空闲进程，
+ * RUNNING_MODERATE只回收一半。
+ * <p>
+ * 刚启动、刚有组件退出或刚结束invoker调用的进程有一段保护时间，避免结束正在启动插件的进程。
+ */
+public class IdleProcessReaper {
+
+    private static final String TAG = "IdleProcessReaper";
+
+    // 最近有活动的进程在这段时间内不回收
+    private static final long GRACE_PERIOD = 10 * 1000;
+    private static final long MIN_CHECK_INTERVAL = 10 * 1000;
+
+    private final Context mContext;
+    private final PluginManagerService mService;
+    private final long mIdleTimeout;
+    private final long mCheckInterval;
+    private final ExecutorService mExecutor = ThreadUtils.newWorkerPool("pluginm-reaper", 1);
+    private final Stats mStats = new Stats();
+
+    private final Runnable mCheckRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    reap(false, 1f);
+                    schedule();
+                }
+            });
+        }
+    };
+
+    IdleProcessReaper(Context context, PluginManagerService service, long idleTimeout) {
+        mContext = context;
+        mService = service;
+        mIdleTimeout = idleTimeout;
+        mCheckInterval = Math.max(MIN_CHECK_INTERVAL, idleTimeout / 2);
+    }
+
+    void start() {
+        Logger.d(TAG, String.format("start() idleTimeout = %d ms, checkInterval = %d ms", mIdleTimeout, mCheckInterval));
+        schedule();
+    }
+
+    private void schedule() {
+        ThreadUtils.sMainHandler.removeCallbacks(mCheckRunnable);
+        ThreadUtils.sMainHandler.postDelayed(mCheckRunnable, mCheckInterval);
+    }
+
+    void onTrimMemory(final int level) {
+        synchronized (mStats) {
+            mStats.mLastTrimLevel = level;
+        }
+
+        // UI_HIDDEN和BACKGROUND不是内存紧张，仍按空闲超时回收
+        final float ratio = ProcessHelper.getTrimMemoryRatio(level);
+        if (ratio <= 0f) {
+            return;
+        }
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                reap(true, ratio);
+            }
+        });
+    }
+
+    /**
+     * @param isUnderPressure 内存紧张时不检查空闲超时
+     * @param ratio           回收空闲进程的比例
+     */
+    private void reap(boolean isUnderPressure, float ratio) {
+        long now = SystemClock.elapsedRealtime();
+        List<PluginProcess> candidates = new ArrayList<>();
+        for (PluginProcess pluginProcess : mService.getPluginProcesses()) {
+            // 没有运行插件的进程(如预热进程)不在这里处理
+            if (pluginProcess.getRunningPlugins().isEmpty() || !pluginProcess.isIdle()) {
+                continue;
+            }
+
+            long idleTime = now - pluginProcess.getLastActiveTime();
+            if (idleTime < GRACE_PERIOD || (!isUnderPressure && idleTime < mIdleTimeout)) {
+                continue;
+            }
+            candidates.add(pluginProcess);
+        }
+
+        if (candidates.isEmpty()) {
+            return;
+        }
+
+        if (isUnderPressure) {
+            // 存活时间最短的先回收
+            Collections.sort(candidates, new Comparator<PluginProcess>() {
+                @Override
+                public int compare(PluginProcess o1, PluginProcess o2) {
+                    long diff = o2.getStartTime() - o1.getStartTime();
+                    return diff > 0 ? 1 : (diff < 0 ? -1 : 0);
+                }
+            });
+        }
+
+        int count = (int) Math.ceil(candidates.size() * ratio);
+        List<PluginProcess> victims = candidates.subList(0, count);
+        int[] pids = new int[victims.size()];
+        for (int i = 0; i < pids.length; i++) {
+            pids[i] = victims.get(i).getPid();
+        }
+        int[] pssList = getTotalPss(pids);
+
+        for (int i = 0; i < pids.length; i++) {
+            PluginProcess pluginProcess = victims.get(i);
+            // 统计内存后可能有新组件启动或新的invoker调用，标记后不再接受invoker调用
+            if (!pluginProcess.markKilled()) {
+                continue;
+            }
+
+            Logger.d(TAG, String.format("reap() kill %s(pid = %d), plugins = %s, idle for %d ms, pss = %d KB, " +
+                            "underPressure? %b", pluginProcess.getProcessName(), pids[i],
+                    pluginProcess.getRunningPlugins(), now - pluginProcess.getLastActiveTime(), pssList[i],
+                    isUnderPressure));
+            Process.killProcess(pids[i]);
+            mStats.onReaped(isUnderPressure, pssList[i]);
+        }
+
+        Logger.d(TAG, "reap() " + mStats);
+    }
+
+    private int[] getTotalPss(int[] pids) {
+        int[] pssList = new int[pids.length];
+        try {
+            ActivityManager am = (ActivityManager) mContext.getSystemService(Context.ACTIVITY_SERVICE);
+            Debug.MemoryInfo[] memoryInfos = am.getProcessMemoryInfo(pids);
+            for (int i = 0; i < pids.length && memoryInfos != null && i < memoryInfos.length; i++) {
+                pssList[i] = memoryInfos[i].getTotalPss();
+            }
+        } catch (Exception e) {
+            Logger.e(TAG, "getTotalPss() error!", e);
+        }
+        return pssList;
+    }
+
+    public Stats getStats() {
+        return mStats;
+    }
+
+    public static class Stats {
+        private int mReapedCount;
+        private int mPressureReapedCount;
+        private long mReclaimedPss;
+        private int mLastTrimLevel = -1;
+
+        private synchronized void onReaped(boolean isUnderPressure, int pss) {
+            mReapedCount++;
+            if (isUnderPressure) {
+                mPressureReapedCount++;
+            }
+            mReclaimedPss += pss;
+        }
+
+        /**
+         * 回收的进程数
+         */
+        public synchronized int getReapedCount() {
+            return mReapedCount;
+        }
+
+        /**
+         * 因内存紧张回收的进程数
+         */
+        public synchronized int getPressureReapedCount() {
+            return mPressureReapedCount;
+        }
+
+        /**
+         * 回收进程结束前的PSS总和(KB)
+         */
+        public synchronized long getReclaimedPss() {
+            return mReclaimedPss;
+        }
+
+        public synchronized int getLastTrimLevel() {
+            return mLastTrimLevel;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("Stats[ reaped = %d, underPressure = %d, reclaimedPss = %d KB, lastTrimLevel = %d ]",
+                    mReapedCount, mPressureReapedCount, mReclaimedPss, mLastTrimLevel);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.reginald.pluginm.core;
+
+import android.content.Context;
+import android.os.SystemClock;
+
+import com.reginald.pluginm.utils.Logger;
+import com.reginald.pluginm.utils.PackageUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 一次插件安装的暂存区，安装分为两个阶段：
+ * <p>
+ * 1. 暂存：在 pluginm/.staging/&lt;packageName&gt;-xxx 中准备apk、so和签名，不需要持有安装锁，不同插件可以并行。
+ * 2. 提交：持有安装锁，把暂存区的目录rename到插件目录，替换掉旧的目录，只有几次rename。
+ * <p>
+ * 被替换的旧目录和暂存区在锁外由{@link #close()}删除。提交失败时回滚已替换的目录。
+ */
+class InstallSession {
+
+    private static final String TAG = "InstallSession";
+
+    private static final String[] COMMIT_FOLDERS = new String[]{
+            PackageUtils.PLUGIN_APK_FOLDER_NAME,
+            PackageUtils.PLUGIN_LIB_FOLDER_NAME,
+            PackageUtils.PLUGIN_SIGNATURE_FOLDER_NAME,
+            PackageUtils.PLUGIN_DEX_FOLDER_NAME
+    };
+
+    private final Context mContext;
+    private final String mPackageName;
+    private final File mStagingDir;
+    private final File mTrashDir;
+
+    // 以移动方式暂存的原始apk，未提交时需要还原
+    private File mMovedApk;
+    private boolean mIsCommitted;
+
+    public InstallSession(Context context, String packageName) {
+        mContext = context;
+        mPackageName = packageName;
+        mStagingDir = PackageUtils.makeStagingDir(context, packageName);
+        mTrashDir = new File(mStagingDir.getPath() + ".old");
+    }
+
+    public File getApkFile() {
+        return new File(new File(mStagingDir, PackageUtils.PLUGIN_APK_FOLDER_NAME), PackageUtils.PLUGIN_APK_FILE_NAME);
+    }
+
+    public File getNativeLibDir() {
+        return new File(mStagingDir, PackageUtils.PLUGIN_LIB_FOLDER_NAME);
+    }
+
+    public File getSignatureDir() {
+        return new File(mStagingDir, PackageUtils.PLUGIN_SIGNATURE_FOLDER_NAME);
+    }
+
+    /**
+     * 把apk复制或移动到暂存区
+     *
+     * @return apk的SHA-256，失败时返回null
+     */
+    public String stageApk(File originApk, boolean isMove) {
+        File apkFile = getApkFile();
+        if (!isMove) {
+            return PackageUtils.copyFileWithDigest(originApk, apkFile);
+        }
+
+        String digest = PackageUtils.moveFileWithDigest(originApk, apkFile);
+        if (digest != null) {
+            mMovedApk = originApk;
+        }
+        return digest;
+    }
+
+    /**
+     * 解压so到暂存区，先用已安装的so初始化，未变化的so不再重复解压
+     */
+    public boolean stageNativeLibs() {
+        PackageUtils.seedNativeLibs(PackageUtils.getPluginLibDir(mContext, mPackageName), getNativeLibDir());
+        return PackageUtils.installNativeLibs(mContext, getApkFile(), getNativeLibDir().getAbsolutePath());
+    }
+
+    /**
+     * 用暂存区替换插件目录中的apk、so、签名，并清空旧的dex优化产物。需持有安装锁。
+     */
+    public boolean commit() {
+        long startTime = SystemClock.elapsedRealtime();
+        File pluginDir = PackageUtils.makePluginDir(mContext, mPackageName);
+        mTrashDir.mkdirs();
+
+        // 已替换的目录，失败时回滚
+        List<String> replaced = new ArrayList<>(COMMIT_FOLDERS.length);
+        for (String folder : COMMIT_FOLDERS) {
+            File target = new File(pluginDir, folder);
+            File old = new File(mTrashDir, folder);
+            File staged = new File(mStagingDir, folder);
+
+            if (target.exists() && !target.renameTo(old)) {
+                Logger.e(TAG, "commit() move " + target + " to trash error!");
+                rollback(pluginDir, replaced);
+                return false;
+            }
+            replaced.add(folder);
+
+            if (staged.exists() && !staged.renameTo(target)) {
+                Logger.e(TAG, "commit() move " + staged + " to " + target + " error!");
+                rollback(pluginDir, replaced);
+                return false;
+            }
+        }
+
+        new File(pluginDir, PackageUtils.PLUGIN_DEX_FOLDER_NAME).mkdirs();
+        new File(pluginDir, PackageUtils.PLUGIN_LIB_FOLDER_NAME).mkdirs();
+        mIsCommitted = true;
+        Logger.d(TAG, String.format("commit() %s cost %d ms", mPackageName, SystemClock.elapsedRealtime() - startTime));
+        return true;
+    }
+
+    private void rollback(File pluginDir, List<String> replaced) {
+        for (String folder : replaced) {
+            File target = new File(pluginDir, folder);
+            File old = new File(mTrashDir, folder);
+            File staged = new File(mStagingDir, folder);
+
+            if (target.exists() && !staged.exists()) {
+                target.renameTo(staged);
+            }
+            if (old.exists() && !old.renameTo(target)) {
+                Logger.e(TAG, "rollback() restore " + target + " error!");
+            }
+        }
+    }
+
+    /**
+     * 删除暂存区和被替换的旧目录，未提交时还原以移动方式暂存的原始apk。不需要持有安装锁。
+     */
+    public void close() {
+        if (!mIsCommitted && mMovedApk != null && !mMovedApk.exists()) {
+            if (!getApkFile().renameTo(mMovedApk)) {
+                Logger.w(TAG, "close() restore moved apk " + mMovedApk + " error!");
+            }
+        }
+
+        PackageUtils.deleteAll(mTrashDir);
+        PackageUtils.deleteAll(mStagingDir);
+    }
+}
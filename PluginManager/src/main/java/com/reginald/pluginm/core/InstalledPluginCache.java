@@ -0,0 +1,201 @@
+package com.reginald.pluginm.core;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import com.reginald.pluginm.PluginInfo;
+import com.reginald.pluginm.utils.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 插件进程内的已安装插件信息缓存，避免重复的跨进程查询。
+ * <p>
+ * 缓存以Parcel序列化后的数据保存，每次读取都会生成新的对象，调用方可以随意修改返回值。
+ * 插件安装或卸载时由核心进程通过{@link com.reginald.pluginm.IPluginClient#onPluginsChanged(List, boolean)}通知失效。
+ * 已安装插件的包名集合是不可变的，变化时整体替换(copy-on-write)，读取时无需加锁。
+ * 只有在核心进程登记过的插件进程才能收到通知，因此需要在attach成功后才启用。
+ */
+class InstalledPluginCache {
+
+    private static final String TAG = "InstalledPluginCache";
+
+    private volatile boolean mIsEnabled;
+    private volatile int mGeneration;
+    private volatile InstalledPlugins mInstalledPlugins;
+    private volatile Set<String> mPackageNames;
+    private final Map<String, byte[]> mInfoCache = new ConcurrentHashMap<>();
+
+    public void enable() {
+        Logger.d(TAG, "enable()");
+        synchronized (this) {
+            invalidate();
+            mPackageNames = null;
+        }
+        mIsEnabled = true;
+    }
+
+    public boolean isEnabled() {
+        return mIsEnabled;
+    }
+
+    /**
+     * 发起查询前获取当前版本，填充缓存时用于判断查询期间缓存是否已失效
+     */
+    public int getGeneration() {
+        return mGeneration;
+    }
+
+    public synchronized void invalidate() {
+        mGeneration++;
+        mInstalledPlugins = null;
+        mInfoCache.clear();
+    }
+
+    /**
+     * 插件安装或卸载，其他缓存全部失效，包名集合增量更新
+     */
+    public synchronized void onPluginsChanged(List<String> changedPackageNames, boolean isInstalled) {
+        invalidate();
+
+        Set<String> packageNames = mPackageNames;
+        if (packageNames != null) {
+            Set<String> newPackageNames = new HashSet<>(packageNames);
+            if (isInstalled) {
+                newPackageNames.addAll(changedPackageNames);
+            } else {
+                newPackageNames.removeAll(changedPackageNames);
+            }
+            mPackageNames = Collections.unmodifiableSet(newPackageNames);
+        }
+    }
+
+    /**
+     * @return 未加载时返回null
+     */
+    public Set<String> getPackageNames() {
+        return mPackageNames;
+    }
+
+    /**
+     * 填充已安装插件包名集合，返回本次查询结果，即使查询期间缓存已失效。
+     */
+    public Set<String> putPackageNames(int generation, List<String> packageNames) {
+        if (packageNames == null) {
+            return null;
+        }
+
+        Set<String> newPackageNames = Collections.unmodifiableSet(new HashSet<>(packageNames));
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mPackageNames = newPackageNames;
+            }
+        }
+        return newPackageNames;
+    }
+
+    /**
+     * @return 未加载或已失效时返回null
+     */
+    public InstalledPlugins getInstalledPlugins() {
+        return mInstalledPlugins;
+    }
+
+    /**
+     * 填充已安装插件列表，返回本次查询结果，即使查询期间缓存已失效。
+     */
+    public InstalledPlugins putInstalledPlugins(int generation, List<PluginInfo> pluginInfos) {
+        if (pluginInfos == null) {
+            return null;
+        }
+
+        Map<String, byte[]> plugins = new HashMap<>(pluginInfos.size());
+        for (PluginInfo pluginInfo : pluginInfos) {
+            plugins.put(pluginInfo.packageName, marshall(pluginInfo));
+        }
+        InstalledPlugins installedPlugins = new InstalledPlugins(plugins);
+
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mInstalledPlugins = installedPlugins;
+            }
+        }
+        return installedPlugins;
+    }
+
+    public <T> T get(String key, Parcelable.Creator<T> creator) {
+        return unmarshall(mInfoCache.get(key), creator);
+    }
+
+    public void put(int generation, String key, Parcelable value) {
+        if (value == null) {
+            return;
+        }
+
+        byte[] data = marshall(value);
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mInfoCache.put(key, data);
+            }
+        }
+    }
+
+    private static byte[] marshall(Parcelable value) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            value.writeToParcel(parcel, 0);
+            return parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static <T> T unmarshall(byte[] data, Parcelable.Creator<T> creator) {
+        if (data == null) {
+            return null;
+        }
+
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(data, 0, data.length);
+            parcel.setDataPosition(0);
+            return creator.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * 某一时刻已安装插件的不可变快照
+     */
+    static class InstalledPlugins {
+        private final Map<String, byte[]> mPlugins;
+
+        private InstalledPlugins(Map<String, byte[]> plugins) {
+            mPlugins = Collections.unmodifiableMap(plugins);
+        }
+
+        public boolean contains(String packageName) {
+            return mPlugins.containsKey(packageName);
+        }
+
+        public PluginInfo get(String packageName) {
+            return unmarshall(mPlugins.get(packageName), PluginInfo.CREATOR);
+        }
+
+        public List<PluginInfo> getAll() {
+            List<PluginInfo> pluginInfos = new ArrayList<>(mPlugins.size());
+            for (byte[] data : mPlugins.values()) {
+                pluginInfos.add(unmarshall(data, PluginInfo.CREATOR));
+            }
+            return pluginInfos;
+        }
+    }
+}
@@ -92,6 +92,16 @@ public class PluginClientService extends IPluginClient.Stub {
         return fetchPluginServiceBinder(packageName, serviceName);
     }
 
+    @Override
+    public void onPluginsChanged(List<String> packageNames, boolean isInstalled) throws RemoteException {
+        mPluginManager.onPluginsChanged(packageNames, isInstalled);
+    }
+
+    @Override
+    public void preloadPlugin(String packageName, String processName, List<String> classNames) throws RemoteException {
+        mPluginManager.preloadPluginAsync(packageName, processName, classNames);
+    }
+
     private IBinder fetchPluginServiceBinder(String packageName, String serviceName) {
         String key = keyForInvokerMap(packageName, serviceName);
         if (key == null) {
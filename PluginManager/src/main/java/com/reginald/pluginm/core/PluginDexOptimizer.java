@@ -0,0 +1,195 @@
+package com.reginald.pluginm.core;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.SystemClock;
+
+import com.reginald.pluginm.PluginConfigs;
+import com.reginald.pluginm.PluginInfo;
+import com.reginald.pluginm.utils.Logger;
+import com.reginald.pluginm.utils.PackageUtils;
+import com.reginald.pluginm.utils.ThreadUtils;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * 插件dex优化，在安装锁之外的独立线程池中执行，并发数由{@link PluginConfigs#getDexOptParallelism()}限制。
+ * <p>
+ * 优化成功后在dexDir中写入标记文件，记录系统版本(Build.FINGERPRINT)和apk的大小、修改时间。
+ * 系统升级会使优化产物失效，此时标记文件不再匹配，由{@link #optimizeStale(Collection)}在后台重新优化。
+ */
+class PluginDexOptimizer {
+
+    private static final String TAG = "PluginDexOptimizer";
+
+    private static final String STAMP_FILE_NAME = ".dexopt_stamp";
+
+    private final Context mContext;
+    private final ExecutorService mExecutor;
+    private final PluginConfigs.OnDexOptListener mListener;
+
+    // 同一插件同时只优化一次，key为packageName
+    private final ConcurrentHashMap<String, FutureTask<Boolean>> mRunningTasks = new ConcurrentHashMap<>();
+
+    // 当前一批优化任务的进度，全部完成后清零
+    private int mTotalCount;
+    private int mFinishedCount;
+
+    public PluginDexOptimizer(Context context, PluginConfigs configs) {
+        mContext = context;
+        mExecutor = ThreadUtils.newWorkerPool("pluginm-dexopt", Math.max(1, configs.getDexOptParallelism()));
+        mListener = configs.getDexOptListener();
+    }
+
+    /**
+     * 插件的优化产物是否存在且对当前系统有效
+     */
+    public static boolean isOptimized(PluginInfo pluginInfo) {
+        File dexDir = new File(pluginInfo.dexDir);
+        File apkFile = new File(pluginInfo.apkPath);
+        String stamp = readStamp(dexDir);
+        if (stamp == null || !stamp.equals(makeStamp(apkFile))) {
+            return false;
+        }
+
+        // O以上optimizedDirectory已被忽略，产物由系统放在apk目录下的oat中，只能以标记文件为准
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            return true;
+        }
+
+        File optimizedFile = getOptimizedFile(dexDir, apkFile);
+        return optimizedFile.isFile() && optimizedFile.length() > 0;
+    }
+
+    /**
+     * 提交插件的优化任务，已在优化中的插件返回同一个任务
+     *
+     * @return 优化是否成功
+     */
+    public Future<Boolean> optimize(final PluginInfo pluginInfo) {
+        final String packageName = pluginInfo.packageName;
+        FutureTask<Boolean> task = new FutureTask<>(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return optimizeInner(pluginInfo);
+            }
+        });
+
+        FutureTask<Boolean> runningTask = mRunningTasks.putIfAbsent(packageName, task);
+        if (runningTask != null) {
+            Logger.d(TAG, "optimize() " + packageName + " is running, wait for it.");
+            return runningTask;
+        }
+
+        synchronized (this) {
+            mTotalCount++;
+        }
+        mExecutor.execute(task);
+        return task;
+    }
+
+    /**
+     * 后台重新优化产物已失效的插件，如系统升级后。不等待完成。
+     */
+    public void optimizeStale(Collection<PluginInfo> pluginInfos) {
+        int count = 0;
+        for (PluginInfo pluginInfo : pluginInfos) {
+            if (!isOptimized(pluginInfo)) {
+                optimize(pluginInfo);
+                count++;
+            }
+        }
+        Logger.d(TAG, String.format("optimizeStale() %d of %d plugin(s) need dexopt", count, pluginInfos.size()));
+    }
+
+    private boolean optimizeInner(PluginInfo pluginInfo) {
+        long startTime = SystemClock.elapsedRealtime();
+        boolean isSuccess = false;
+        try {
+            File apkFile = new File(pluginInfo.apkPath);
+            File dexDir = new File(pluginInfo.dexDir);
+            if (!apkFile.exists()) {
+                Logger.w(TAG, "optimize() apk NOT found for " + pluginInfo.packageName);
+                return false;
+            }
+
+            // 旧产物可能与新apk或新系统不匹配，先删除标记，优化完成后再写入
+            new File(dexDir, STAMP_FILE_NAME).delete();
+
+            // 创建classloader即触发dexopt，创建后即丢弃
+            ClassLoader hostClassLoader = mContext.getClassLoader();
+            new PluginDexClassLoader(pluginInfo.apkPath, pluginInfo.dexDir,
+                    pluginInfo.nativeLibDir, hostClassLoader.getParent(), hostClassLoader);
+
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+                File optimizedFile = getOptimizedFile(dexDir, apkFile);
+                if (!optimizedFile.isFile() || optimizedFile.length() == 0) {
+                    Logger.e(TAG, "optimize() optimized file NOT found! " + optimizedFile);
+                    return false;
+                }
+            }
+
+            isSuccess = PackageUtils.writeToFileAtomic(new File(dexDir, STAMP_FILE_NAME), makeStamp(apkFile).getBytes());
+            return isSuccess;
+        } catch (Throwable e) {
+            Logger.e(TAG, "optimize() error for " + pluginInfo.packageName, e);
+            return false;
+        } finally {
+            mRunningTasks.remove(pluginInfo.packageName);
+            Logger.d(TAG, String.format("optimize() %s success? %b, cost %d ms",
+                    pluginInfo.packageName, isSuccess, SystemClock.elapsedRealtime() - startTime));
+            onProgress(pluginInfo.packageName, isSuccess);
+        }
+    }
+
+    private void onProgress(String packageName, boolean isSuccess) {
+        int finished;
+        int total;
+        synchronized (this) {
+            finished = ++mFinishedCount;
+            total = mTotalCount;
+            if (mFinishedCount >= mTotalCount) {
+                mFinishedCount = 0;
+                mTotalCount = 0;
+            }
+        }
+
+        if (mListener != null) {
+            try {
+                mListener.onDexOptProgress(packageName, isSuccess, finished, total);
+            } catch (Throwable e) {
+                Logger.e(TAG, "onProgress() listener error!", e);
+            }
+        }
+    }
+
+    /**
+     * DexClassLoader在optimizedDirectory中生成的文件为 apk文件名.dex
+     */
+    private static File getOptimizedFile(File dexDir, File apkFile) {
+        String name = apkFile.getName();
+        int dot = name.lastIndexOf('.');
+        String baseName = dot > 0 ? name.substring(0, dot) : name;
+        return new File(dexDir, baseName + ".dex");
+    }
+
+    private static String makeStamp(File apkFile) {
+        return Build.FINGERPRINT + "\n" + apkFile.length() + "\n" + apkFile.lastModified();
+    }
+
+    private static String readStamp(File dexDir) {
+        File stampFile = new File(dexDir, STAMP_FILE_NAME);
+        if (!stampFile.isFile()) {
+            return null;
+        }
+
+        byte[] data = PackageUtils.readFromFile(stampFile);
+        return data != null ? new String(data) : null;
+    }
+}
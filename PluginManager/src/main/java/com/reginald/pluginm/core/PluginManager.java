@@ -2,10 +2,18 @@ package com.reginald.pluginm.core;
 
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.android.common.ContextCompat;
@@ -55,7 +63,9 @@ import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 import android.util.LogPrinter;
@@ -74,10 +84,17 @@ public class PluginManager {
     private static final String TAG = "PluginManager";
     private static volatile PluginManager sInstance;
 
+    // 等待主线程初始化插件application的最长时间
+    private static final long MAIN_THREAD_TIMEOUT = 20000;
+    private static final ExecutorService sLoadExecutor = ThreadUtils.newWorkerPool("pluginm-load", 2);
+
     // 本进程已经加载的插件信息：
-    private final Object mPluginLoadLock = new Object();
+    // 正在加载的插件，同一插件的并发加载共享同一个任务，不同插件可以并行加载
+    private final ConcurrentHashMap<String, PluginLoadTask> mPluginLoadTasks = new ConcurrentHashMap<>();
     private final Map<String, PluginInfo> mLoadedPluginMap = new ConcurrentHashMap<>();
     private final Map<String, ClassLoader> mLoadedClassLoaderMap = new ConcurrentHashMap<>();
+    // application已初始化完成的插件
+    private final Set<String> mInitedPlugins = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
     // 本进程正在运行的插件组件信息：
     private final Map<Application, ApplicationInfo> mRunningApplicationMap = new WeakHashMap<>();
@@ -85,6 +102,9 @@ public class PluginManager {
     private final Map<Service, Pair<ServiceInfo, ServiceInfo>> mRunningServiceMap = new WeakHashMap<>();
     private final Map<ContentProvider, Pair<ProviderInfo, ProviderInfo>> mRunningProviderMap = new WeakHashMap<>();
 
+    // 已安装插件信息的本地缓存：
+    private final InstalledPluginCache mInstalledCache = new InstalledPluginCache();
+
     private Context mContext;
     private volatile IPluginManager mService;
     private PackageManager mPluginPackageManager;
@@ -284,80 +304,89 @@ public class PluginManager {
         return loadPlugin(componentInfo.packageName, componentInfo.processName);
     }
 
-    public PluginInfo loadPlugin(String packageName, String pluginProcessName) {
+    /**
+     * 在后台线程加载插件，只有application的创建和初始化会切换到主线程。
+     */
+    public Future<PluginInfo> loadPluginAsync(final String packageName, final String pluginProcessName) {
+        return sLoadExecutor.submit(new Callable<PluginInfo>() {
+            @Override
+            public PluginInfo call() throws Exception {
+                return loadPlugin(packageName, pluginProcessName);
+            }
+        });
+    }
+
+    /**
+     * 在本进程后台加载插件，并预加载指定的类
+     */
+    public Future<PluginInfo> preloadPluginAsync(final String packageName, final String pluginProcessName,
+            final List<String> classNames) {
+        return sLoadExecutor.submit(new Callable<PluginInfo>() {
+            @Override
+            public PluginInfo call() throws Exception {
+                long startTime = SystemClock.elapsedRealtime();
+                PluginInfo pluginInfo = loadPlugin(packageName, pluginProcessName);
+                int preloadCount = 0;
+                if (pluginInfo != null && classNames != null) {
+                    for (String className : classNames) {
+                        try {
+                            pluginInfo.classLoader.loadClass(className);
+                            preloadCount++;
+                        } catch (ClassNotFoundException e) {
+                            Logger.w(TAG, "preloadPluginAsync() class " + className + " NOT found!");
+                        }
+                    }
+                }
+                Logger.d(TAG, String.format("preloadPluginAsync() %s %s! preload %d classes, cost %d ms",
+                        packageName, pluginInfo != null ? "ok" : "error", preloadCount,
+                        SystemClock.elapsedRealtime() - startTime));
+                return pluginInfo;
+            }
+        });
+    }
+
+    public boolean preloadPlugin(String packageName, String processName, List<String> classNames) {
+        IPluginManager service = ensureService(mService);
+        if (service != null) {
+            try {
+                return service.preloadPlugin(packageName, processName, classNames);
+            } catch (RemoteException e) {
+                Logger.e(TAG, "preloadPlugin() error!", e);
+            }
+        }
+        return false;
+    }
+
+    public PluginInfo loadPlugin(String packageName, final String pluginProcessName) {
         Logger.d(TAG, "loadPlugin() packageName = " + packageName + ", pluginProcessName = " + pluginProcessName);
         try {
-            String pluginPackageName = packageName;
+            final String pluginPackageName = packageName;
             PluginInfo pluginInfo = null;
             Logger.d(TAG, "loadPlugin() pluginPackageName = " + pluginPackageName);
 
+            // 只返回已完成初始化的插件，正在初始化的插件application还未创建
             pluginInfo = mLoadedPluginMap.get(pluginPackageName);
-            if (pluginInfo != null) {
+            if (pluginInfo != null && mInitedPlugins.contains(pluginPackageName)) {
                 Logger.d(TAG, "loadPlugin() found loaded pluginInfo " + pluginInfo);
                 return pluginInfo;
             }
 
-            synchronized (mPluginLoadLock) {
-                pluginInfo = mLoadedPluginMap.get(pluginPackageName);
-                if (pluginInfo != null) {
-                    Logger.d(TAG, "loadPlugin() found loaded pluginInfo " + pluginInfo);
-                    return pluginInfo;
-                }
-
-
-                pluginInfo = getInstalledPluginInfo(packageName);
-                Logger.d(TAG, "loadPlugin() getInstalledPluginInfo " + pluginInfo);
-                if (pluginInfo == null) {
-                    Logger.e(TAG, "loadPlugin() " + pluginPackageName + " NOT installed!");
-                    return null;
-                }
-
-                ClassLoader parentClassLoader;
-                ClassLoader hostClassLoader = mContext.getClassLoader();
-                // create classloader
-                Logger.d(TAG, "loadPlugin() mContext.getClassLoader() = " + mContext.getClassLoader());
-
-                parentClassLoader = hostClassLoader.getParent();
-
-                DexClassLoader pluginClassLoader = new PluginDexClassLoader(
-                        pluginInfo.apkPath, pluginInfo.dexDir, pluginInfo.nativeLibDir, parentClassLoader, hostClassLoader);
-                Logger.d(TAG, "loadPlugin() pluginClassLoader = " + pluginClassLoader);
-                Logger.d(TAG, "loadPlugin() pluginClassLoader's parent = " + pluginClassLoader.getParent());
-
-                pluginInfo.pkgParser = ApkParser.getPackageParser(mContext, pluginInfo.apkPath);
-                pluginInfo.applicationInfo = pluginInfo.pkgParser.getApplicationInfo(0);
-                pluginInfo.classLoader = pluginClassLoader;
-                pluginInfo.parentClassLoader = parentClassLoader;
-
-                PluginPackageManager pluginPackageManager = new PluginPackageManager(mContext, mContext.getPackageManager());
-                Logger.d(TAG, "loadPlugin() pluginPackageManager = " + pluginPackageManager);
-                pluginInfo.packageManager = pluginPackageManager;
-
-                // replace resources
-                AssetManager assetManager = ResourcesManager.createAssetManager(pluginInfo.apkPath);
-                Resources resources = ResourcesManager.createResources(mContext, assetManager);
-                if (resources != null) {
-                    pluginInfo.resources = resources;
-                } else {
-                    Logger.e(TAG, "loadPlugin() error! resources is null!");
-                    return null;
-                }
-
-                mLoadedPluginMap.put(pluginPackageName, pluginInfo);
-                mLoadedClassLoaderMap.put(pluginPackageName, pluginClassLoader);
-
-                // 完整进程模式，需要修改进程名称
-                if (PluginM.getConfigs().getProcessType() == PluginConfigs.PROCESS_TYPE_COMPLETE) {
-                    ProcessHelper.setArgV0(pluginProcessName);
-                }
+            PluginLoadTask loadTask = new PluginLoadTask(pluginPackageName, pluginProcessName);
+            PluginLoadTask runningTask = mPluginLoadTasks.putIfAbsent(pluginPackageName, loadTask);
+            if (runningTask != null) {
+                // 其他线程正在加载该插件，等待其加载并初始化完成
+                Logger.d(TAG, "loadPlugin() wait for loading " + pluginPackageName);
+                return runningTask.get();
             }
 
-            if (!initPlugin(pluginInfo, mContext)) {
-                Logger.e(TAG, "loadPlugin() initPlugin error!");
-                return null;
+            try {
+                loadTask.run();
+                pluginInfo = loadTask.get();
+            } finally {
+                mPluginLoadTasks.remove(pluginPackageName, loadTask);
             }
 
-            Logger.d(TAG, "loadPlugin() ok!");
+            Logger.d(TAG, "loadPlugin() " + (pluginInfo != null ? "ok!" : "error!"));
             return pluginInfo;
         } catch (Exception e) {
             Logger.e(TAG, "loadPlugin() error! exception: " + e);
@@ -366,58 +395,171 @@ public class PluginManager {
         }
     }
 
-    private boolean initPlugin(final PluginInfo pluginInfo, final Context hostContext) {
+    /**
+     * 加载并初始化插件，初始化成功后才标记为可用。
+     * 初始化期间插件已在mLoadedPluginMap中，供创建插件Context和插件application回调时查询。
+     */
+    private PluginInfo loadPluginInner(PluginLoadTask loadTask) throws Exception {
+        String pluginPackageName = loadTask.packageName;
+        String pluginProcessName = loadTask.processName;
+        PluginInfo pluginInfo = mLoadedPluginMap.get(pluginPackageName);
+        if (pluginInfo != null && mInitedPlugins.contains(pluginPackageName)) {
+            Logger.d(TAG, "loadPlugin() found loaded pluginInfo " + pluginInfo);
+            return pluginInfo;
+        }
+
+        pluginInfo = getInstalledPluginInfo(pluginPackageName);
+        Logger.d(TAG, "loadPlugin() getInstalledPluginInfo " + pluginInfo);
+        if (pluginInfo == null) {
+            Logger.e(TAG, "loadPlugin() " + pluginPackageName + " NOT installed!");
+            return null;
+        }
+
+        ClassLoader parentClassLoader;
+        ClassLoader hostClassLoader = mContext.getClassLoader();
+        // create classloader
+        Logger.d(TAG, "loadPlugin() mContext.getClassLoader() = " + mContext.getClassLoader());
+
+        parentClassLoader = hostClassLoader.getParent();
+
+        DexClassLoader pluginClassLoader = new PluginDexClassLoader(
+                pluginInfo.apkPath, pluginInfo.dexDir, pluginInfo.nativeLibDir, parentClassLoader, hostClassLoader);
+        Logger.d(TAG, "loadPlugin() pluginClassLoader = " + pluginClassLoader);
+        Logger.d(TAG, "loadPlugin() pluginClassLoader's parent = " + pluginClassLoader.getParent());
+
+        pluginInfo.pkgParser = ApkParser.getPackageParser(mContext, pluginInfo.apkPath);
+        pluginInfo.applicationInfo = pluginInfo.pkgParser.getApplicationInfo(0);
+        pluginInfo.classLoader = pluginClassLoader;
+        pluginInfo.parentClassLoader = parentClassLoader;
+
+        PluginPackageManager pluginPackageManager = new PluginPackageManager(mContext, mContext.getPackageManager());
+        Logger.d(TAG, "loadPlugin() pluginPackageManager = " + pluginPackageManager);
+        pluginInfo.packageManager = pluginPackageManager;
+
+        // replace resources
+        AssetManager assetManager = ResourcesManager.createAssetManager(pluginInfo.apkPath);
+        Resources resources = ResourcesManager.createResources(mContext, assetManager);
+        if (resources != null) {
+            pluginInfo.resources = resources;
+        } else {
+            Logger.e(TAG, "loadPlugin() error! resources is null!");
+            return null;
+        }
+
+        mLoadedPluginMap.put(pluginPackageName, pluginInfo);
+        mLoadedClassLoaderMap.put(pluginPackageName, pluginClassLoader);
+
+        // 完整进程模式，需要修改进程名称
+        if (PluginM.getConfigs().getProcessType() == PluginConfigs.PROCESS_TYPE_COMPLETE) {
+            ProcessHelper.setArgV0(pluginProcessName);
+        }
+
+        if (!initPlugin(pluginInfo, mContext, loadTask)) {
+            Logger.e(TAG, "loadPlugin() initPlugin error!");
+            mLoadedPluginMap.remove(pluginPackageName);
+            mLoadedClassLoaderMap.remove(pluginPackageName);
+            return null;
+        }
+
+        mInitedPlugins.add(pluginPackageName);
+        return pluginInfo;
+    }
+
+    private boolean initPlugin(final PluginInfo pluginInfo, final Context hostContext, PluginLoadTask loadTask) {
         Logger.d(TAG, "initPlugin() pluginInfo = " + pluginInfo);
+        long startTime = SystemClock.elapsedRealtime();
+
+        // 不依赖主线程的准备工作在当前线程完成
+        final PluginLaunchData launchData = preparePluginApplication(pluginInfo, hostContext);
+        if (launchData == null) {
+            Logger.e(TAG, "initPlugin() preparePluginApplication error! ");
+            return false;
+        }
+        final long prepareCost = SystemClock.elapsedRealtime() - startTime;
 
+        // 主线程只负责创建application、安装provider和注册receiver
+        final long postTime = SystemClock.elapsedRealtime();
         final AtomicBoolean isSuc = new AtomicBoolean(false);
+        final long[] mainThreadTimes = new long[2];
         final boolean isHostContextHook = PluginM.getConfigs().isHostContextHook();
-        ThreadUtils.ensureRunOnMainThread(new Runnable() {
+        boolean isFinished = loadTask.runOnMainThread(new Runnable() {
             @Override
             public void run() {
-                if (isHostContextHook) {
-                    boolean isSuc = HostContext.install(hostContext);
-                    Logger.d(TAG, "initPlugin() replace host base context, isSuc? " + isSuc);
-                }
-
-                if (!initPluginHelper(pluginInfo, hostContext)) {
-                    Logger.e(TAG, "initPlugin() initPluginHelper error! ");
-                    return;
-                }
+                long mainStartTime = SystemClock.elapsedRealtime();
+                mainThreadTimes[0] = mainStartTime - postTime;
+                try {
+                    if (isHostContextHook) {
+                        boolean isSuc = HostContext.install(hostContext);
+                        Logger.d(TAG, "initPlugin() replace host base context, isSuc? " + isSuc);
+                    }
 
-                if (!loadPluginApplication(pluginInfo, hostContext)) {
-                    Logger.e(TAG, "initPlugin() initPluginApplication error! ");
-                    return;
-                }
+                    if (!loadPluginApplication(pluginInfo, launchData)) {
+                        Logger.e(TAG, "initPlugin() initPluginApplication error! ");
+                        return;
+                    }
 
-                // ensure Intrumentation hook
-                HostInstrumentation.install(hostContext);
+                    // ensure Intrumentation hook
+                    HostInstrumentation.install(hostContext);
 
-                isSuc.set(true);
+                    isSuc.set(true);
+                } finally {
+                    mainThreadTimes[1] = SystemClock.elapsedRealtime() - mainStartTime;
+                }
             }
-        });
+        }, MAIN_THREAD_TIMEOUT);
 
+        if (!isFinished) {
+            // 主线程上的初始化已取消，由调用方移除已加载的信息，下次加载时重试
+            Logger.e(TAG, String.format("initPlugin() %s wait main thread timeout after %d ms!",
+                    pluginInfo.packageName, MAIN_THREAD_TIMEOUT));
+            return false;
+        }
 
+        Logger.d(TAG, String.format("initPlugin() %s %s! prepare %d ms, wait main thread %d ms, " +
+                        "main thread %d ms, total %d ms", pluginInfo.packageName, isSuc.get() ? "ok" : "error",
+                prepareCost, mainThreadTimes[0], mainThreadTimes[1], SystemClock.elapsedRealtime() - startTime));
         return isSuc.get();
     }
 
-    private boolean loadPluginApplication(PluginInfo pluginInfo, Context hostContext) {
-        Logger.d(TAG, "loadPluginApplication() pluginInfo = " + pluginInfo + " , hostContext = " + hostContext);
+    /**
+     * 后台准备：初始化PluginHelper，创建插件Context，预加载application和receiver类，
+     * 并通过核心进程确定需要在本进程安装的provider和receiver。
+     */
+    private PluginLaunchData preparePluginApplication(PluginInfo pluginInfo, Context hostContext) {
+        if (!initPluginHelper(pluginInfo, hostContext)) {
+            Logger.e(TAG, "preparePluginApplication() initPluginHelper error! ");
+            return null;
+        }
+
         try {
             Context hostBaseContext = hostContext.createPackageContext(hostContext.getPackageName(), Context.CONTEXT_INCLUDE_CODE);
             pluginInfo.baseContext = createPluginContext(pluginInfo.packageName, hostBaseContext);
 
-            ApplicationInfo applicationInfo = pluginInfo.pkgParser.getApplicationInfo(0);
-            Logger.d(TAG, "loadPluginApplication() applicationInfo.name = " + applicationInfo.name);
+            PluginLaunchData launchData = new PluginLaunchData();
+            launchData.applicationInfo = pluginInfo.pkgParser.getApplicationInfo(0);
+            Logger.d(TAG, "preparePluginApplication() applicationInfo.name = " + launchData.applicationInfo.name);
 
-            if (applicationInfo.className == null) {
-                applicationInfo.className = Application.class.getName();//BasePluginApplication.class.getName();
+            if (launchData.applicationInfo.className == null) {
+                launchData.applicationInfo.className = Application.class.getName();//BasePluginApplication.class.getName();
             }
-            Logger.d(TAG, "loadPluginApplication() applicationInfo.className = " + applicationInfo.className);
+            Logger.d(TAG, "preparePluginApplication() applicationInfo.className = " + launchData.applicationInfo.className);
 
-            Class pluginAppClass = pluginInfo.classLoader.loadClass(applicationInfo.className);
-            pluginInfo.application = (Application) pluginAppClass.newInstance();
+            launchData.applicationClass = pluginInfo.classLoader.loadClass(launchData.applicationInfo.className);
+            launchData.providerInfos = getProcessProviders(pluginInfo);
+            launchData.receivers = getProcessStaticReceivers(pluginInfo);
+            return launchData;
+        } catch (Exception e) {
+            Logger.e(TAG, "preparePluginApplication() error!", e);
+        }
+        return null;
+    }
 
-            callApplicationOnAttach(pluginInfo.application, applicationInfo);
+    private boolean loadPluginApplication(PluginInfo pluginInfo, PluginLaunchData launchData) {
+        Logger.d(TAG, "loadPluginApplication() pluginInfo = " + pluginInfo);
+        try {
+            pluginInfo.application = (Application) launchData.applicationClass.newInstance();
+
+            callApplicationOnAttach(pluginInfo.application, launchData.applicationInfo);
 
             Method attachMethod = android.app.Application.class
                     .getDeclaredMethod("attach", Context.class);
@@ -425,11 +567,12 @@ public class PluginManager {
             attachMethod.invoke(pluginInfo.application, pluginInfo.baseContext);
             ContextCompat.setOuterContext(pluginInfo.baseContext, pluginInfo.application);
 
-            loadProviders(pluginInfo);
+            Logger.d(TAG, "loadPluginApplication() providerInfos = " + launchData.providerInfos);
+            PluginStubMainProvider.loadProviders(pluginInfo, launchData.providerInfos);
 
             pluginInfo.application.onCreate();
 
-            loadStaticReceivers(pluginInfo);
+            loadStaticReceivers(pluginInfo, launchData.receivers);
             return true;
         } catch (Exception e) {
             Logger.e(TAG, "loadPluginApplication() error!", e);
@@ -437,12 +580,12 @@ public class PluginManager {
         return false;
     }
 
-    private void loadProviders(PluginInfo pluginInfo) {
+    private List<ProviderInfo> getProcessProviders(PluginInfo pluginInfo) {
         List<ProviderInfo> providerInfos = null;
         try {
             providerInfos = pluginInfo.pkgParser.getProviders();
         } catch (Exception e) {
-            Logger.e(TAG, "loadProviders() error!");
+            Logger.e(TAG, "getProcessProviders() error!");
         }
         List<ProviderInfo> targetProviderInfos = new ArrayList<>();
         if (providerInfos != null) {
@@ -454,41 +597,189 @@ public class PluginManager {
                 }
             }
         }
-
-        Logger.d(TAG, "loadProviders() targetProviderInfos = " + targetProviderInfos);
-        PluginStubMainProvider.loadProviders(pluginInfo, targetProviderInfos);
+        return targetProviderInfos;
     }
 
-    // public api
-
-    private void loadStaticReceivers(PluginInfo pluginInfo) {
-        Map<ActivityInfo, List<IntentFilter>> receiverIntentFilters = pluginInfo.pkgParser.getReceiverIntentFilter();
+    private List<Pair<Class<?>, List<IntentFilter>>> getProcessStaticReceivers(PluginInfo pluginInfo) {
+        List<Pair<Class<?>, List<IntentFilter>>> receivers = new ArrayList<>();
+        Map<ActivityInfo, List<IntentFilter>> receiverIntentFilters = null;
+        try {
+            receiverIntentFilters = pluginInfo.pkgParser.getReceiverIntentFilter();
+        } catch (Exception e) {
+            Logger.e(TAG, "getProcessStaticReceivers() error!", e);
+        }
 
         if (receiverIntentFilters != null) {
             for (Map.Entry<ActivityInfo, List<IntentFilter>> entry : receiverIntentFilters.entrySet()) {
                 ActivityInfo receiverInfo = entry.getKey();
-                List<IntentFilter> intentFilters = entry.getValue();
 
                 String currentProcessName = ProcessHelper.sProcessName;
                 String stubProcessName = selectStubProcessName(receiverInfo.processName, receiverInfo.packageName);
 
                 if (!TextUtils.isEmpty(currentProcessName) && currentProcessName.equals(stubProcessName)) {
                     try {
-                        Logger.d(TAG, "loadStaticReceivers() receiverInfo = " + receiverInfo);
-                        BroadcastReceiver receiver = (BroadcastReceiver) pluginInfo.classLoader.loadClass(receiverInfo.name).newInstance();
-                        int i = 1;
-                        for (IntentFilter filter : intentFilters) {
-                            pluginInfo.application.registerReceiver(receiver, filter);
-                            Logger.d(TAG, "loadStaticReceivers() IntentFilter No." + i++ + " :");
-                            filter.dump(new LogPrinter(Log.DEBUG, "loadStaticReceivers() "), "");
-                            Logger.d(TAG, "loadStaticReceivers() \n");
-                        }
+                        Class<?> receiverClass = pluginInfo.classLoader.loadClass(receiverInfo.name);
+                        receivers.add(new Pair<Class<?>, List<IntentFilter>>(receiverClass, entry.getValue()));
                     } catch (Exception e) {
-                        e.printStackTrace();
+                        Logger.e(TAG, "getProcessStaticReceivers() load receiver " + receiverInfo.name + " error!", e);
                     }
                 }
             }
         }
+        return receivers;
+    }
+
+    private void loadStaticReceivers(PluginInfo pluginInfo, List<Pair<Class<?>, List<IntentFilter>>> receivers) {
+        for (Pair<Class<?>, List<IntentFilter>> receiverPair : receivers) {
+            try {
+                Logger.d(TAG, "loadStaticReceivers() receiver = " + receiverPair.first);
+                BroadcastReceiver receiver = (BroadcastReceiver) receiverPair.first.newInstance();
+                int i = 1;
+                for (IntentFilter filter : receiverPair.second) {
+                    pluginInfo.application.registerReceiver(receiver, filter);
+                    Logger.d(TAG, "loadStaticReceivers() IntentFilter No." + i++ + " :");
+                    filter.dump(new LogPrinter(Log.DEBUG, "loadStaticReceivers() "), "");
+                    Logger.d(TAG, "loadStaticReceivers() \n");
+                }
+            } catch (Exception e) {
+                Logger.e(TAG, "loadStaticReceivers() register " + receiverPair.first + " error!", e);
+            }
+        }
+    }
+
+    /**
+     * 一个插件的加载任务，包括创建ClassLoader、Resources和初始化application，同一插件的并发加载共享同一个任务。
+     * <p>
+     * 初始化中需要在主线程执行的部分同时交给等待本任务的主线程，由先拿到的一方执行，
+     * 避免加载线程等待主线程、主线程又在等待加载任务而死锁。
+     */
+    private class PluginLoadTask {
+        final String packageName;
+        final String processName;
+
+        private final FutureTask<PluginInfo> mFuture = new FutureTask<PluginInfo>(new Callable<PluginInfo>() {
+            @Override
+            public PluginInfo call() throws Exception {
+                return loadPluginInner(PluginLoadTask.this);
+            }
+        }) {
+            @Override
+            protected void done() {
+                synchronized (PluginLoadTask.this) {
+                    PluginLoadTask.this.notifyAll();
+                }
+            }
+        };
+
+        // 等待主线程执行的初始化任务
+        private Runnable mMainThreadPart;
+
+        PluginLoadTask(String packageName, String processName) {
+            this.packageName = packageName;
+            this.processName = processName;
+        }
+
+        void run() {
+            mFuture.run();
+        }
+
+        PluginInfo get() throws Exception {
+            if (Looper.myLooper() != Looper.getMainLooper()) {
+                return mFuture.get();
+            }
+
+            // 主线程等待期间执行加载线程交过来的初始化任务
+            while (true) {
+                Runnable mainThreadPart;
+                synchronized (this) {
+                    while (!mFuture.isDone() && mMainThreadPart == null) {
+                        wait();
+                    }
+                    mainThreadPart = mMainThreadPart;
+                    mMainThreadPart = null;
+                }
+                if (mainThreadPart == null) {
+                    return mFuture.get();
+                }
+                mainThreadPart.run();
+            }
+        }
+
+        /**
+         * 在主线程执行runnable并等待其完成，runnable只会被执行一次。
+         * 超时或被中断时如果主线程还没开始执行，则取消执行；已经开始执行时继续等待其完成。
+         * @return runnable是否已执行完成，返回false时runnable不会再执行
+         */
+        boolean runOnMainThread(final Runnable runnable, long timeout) {
+            final AtomicBoolean isClaimed = new AtomicBoolean(false);
+            final CountDownLatch latch = new CountDownLatch(1);
+            Runnable mainThreadPart = new Runnable() {
+                @Override
+                public void run() {
+                    if (!isClaimed.compareAndSet(false, true)) {
+                        return;
+                    }
+                    try {
+                        runnable.run();
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            };
+
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                mainThreadPart.run();
+                return true;
+            }
+
+            synchronized (this) {
+                mMainThreadPart = mainThreadPart;
+                notifyAll();
+            }
+            ThreadUtils.sMainHandler.post(mainThreadPart);
+
+            boolean isFinished = false;
+            boolean isInterrupted = false;
+            try {
+                isFinished = latch.await(timeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Logger.e(TAG, "runOnMainThread() interrupted!", e);
+                isInterrupted = true;
+            }
+
+            if (!isFinished && !isClaimed.compareAndSet(false, true)) {
+                // 主线程已经开始执行，不能中途放弃
+                while (true) {
+                    try {
+                        latch.await();
+                        break;
+                    } catch (InterruptedException e) {
+                        isInterrupted = true;
+                    }
+                }
+                isFinished = true;
+            }
+
+            synchronized (this) {
+                if (mMainThreadPart == mainThreadPart) {
+                    mMainThreadPart = null;
+                }
+            }
+            if (isInterrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return isFinished;
+        }
+    }
+
+    /**
+     * 插件application启动所需的数据，在后台线程准备好后交给主线程使用
+     */
+    private static class PluginLaunchData {
+        ApplicationInfo applicationInfo;
+        Class<?> applicationClass;
+        List<ProviderInfo> providerInfos;
+        List<Pair<Class<?>, List<IntentFilter>>> receivers;
     }
 
     /**
@@ -719,11 +1010,11 @@ public class PluginManager {
 
     // IPC:
 
-    public PluginInfo installPlugin(String apkPath, boolean loadDex) {
+    public PluginInfo installPlugin(String apkPath, boolean loadDex, boolean isMove) {
         IPluginManager service = ensureService(mService);
         if (service != null) {
             try {
-                return service.install(apkPath, false, loadDex);
+                return service.install(apkPath, false, loadDex, isMove);
             } catch (RemoteException e) {
                 Logger.e(TAG, "installPlugin() error!", e);
             }
@@ -731,6 +1022,42 @@ public class PluginManager {
         return null;
     }
 
+    public PluginInfo installPluginPatch(String packageName, String patchPath, String digest, boolean loadDex) {
+        IPluginManager service = ensureService(mService);
+        if (service != null) {
+            try {
+                return service.installPatch(packageName, patchPath, digest, loadDex);
+            } catch (RemoteException e) {
+                Logger.e(TAG, "installPluginPatch() error!", e);
+            }
+        }
+        return null;
+    }
+
+    public List<PluginInfo> installPlugins(List<String> apkPaths, boolean loadDex, boolean isMove) {
+        IPluginManager service = ensureService(mService);
+        if (service != null) {
+            try {
+                return service.installBatch(apkPaths, loadDex, isMove);
+            } catch (RemoteException e) {
+                Logger.e(TAG, "installPlugins() error!", e);
+            }
+        }
+        return null;
+    }
+
+    public List<PluginInfo> uninstallPlugins(List<String> packageNames) {
+        IPluginManager service = ensureService(mService);
+        if (service != null) {
+            try {
+                return service.uninstallBatch(packageNames);
+            } catch (RemoteException e) {
+                Logger.e(TAG, "uninstallPlugins() error!", e);
+            }
+        }
+        return null;
+    }
+
     public PluginInfo uninstallPlugin(String packageName) {
         IPluginManager service = ensureService(mService);
         if (service != null) {
@@ -811,6 +1138,10 @@ public class PluginManager {
     }
 
     public ActivityInfo resolveActivityInfo(Intent intent, int flags) {
+        if (intent.getComponent() != null && mInstalledCache.isEnabled()) {
+            return getActivityInfo(intent.getComponent(), flags);
+        }
+
         IPluginManager service = ensureService(mService);
         if (service != null) {
             try {
@@ -823,6 +1154,10 @@ public class PluginManager {
     }
 
     public ServiceInfo resolveServiceInfo(Intent intent, int flags) {
+        if (intent.getComponent() != null && mInstalledCache.isEnabled()) {
+            return getServiceInfo(intent.getComponent(), flags);
+        }
+
         IPluginManager service = ensureService(mService);
         if (service != null) {
             try {
@@ -895,10 +1230,23 @@ public class PluginManager {
     }
 
     public ActivityInfo getActivityInfo(ComponentName componentName, int flags) {
+        String cacheKey = getCacheKey("activity", componentName.flattenToShortString(), flags);
+        if (mInstalledCache.isEnabled()) {
+            ActivityInfo cachedInfo = mInstalledCache.get(cacheKey, ActivityInfo.CREATOR);
+            if (cachedInfo != null) {
+                return cachedInfo;
+            }
+        }
+
         IPluginManager service = ensureService(mService);
         if (service != null) {
             try {
-                return service.getActivityInfo(componentName, flags);
+                int generation = mInstalledCache.getGeneration();
+                ActivityInfo info = service.getActivityInfo(componentName, flags);
+                if (mInstalledCache.isEnabled()) {
+                    mInstalledCache.put(generation, cacheKey, info);
+                }
+                return info;
             } catch (RemoteException e) {
                 Logger.e(TAG, "getActivityInfo() error!", e);
             }
@@ -907,10 +1255,23 @@ public class PluginManager {
     }
 
     public ServiceInfo getServiceInfo(ComponentName componentName, int flags) {
+        String cacheKey = getCacheKey("service", componentName.flattenToShortString(), flags);
+        if (mInstalledCache.isEnabled()) {
+            ServiceInfo cachedInfo = mInstalledCache.get(cacheKey, ServiceInfo.CREATOR);
+            if (cachedInfo != null) {
+                return cachedInfo;
+            }
+        }
+
         IPluginManager service = ensureService(mService);
         if (service != null) {
             try {
-                return service.getServiceInfo(componentName, flags);
+                int generation = mInstalledCache.getGeneration();
+                ServiceInfo info = service.getServiceInfo(componentName, flags);
+                if (mInstalledCache.isEnabled()) {
+                    mInstalledCache.put(generation, cacheKey, info);
+                }
+                return info;
             } catch (RemoteException e) {
                 Logger.e(TAG, "getServiceInfo() error!", e);
             }
@@ -919,10 +1280,23 @@ public class PluginManager {
     }
 
     public ActivityInfo getReceiverInfo(ComponentName componentName, int flags) {
+        String cacheKey = getCacheKey("receiver", componentName.flattenToShortString(), flags);
+        if (mInstalledCache.isEnabled()) {
+            ActivityInfo cachedInfo = mInstalledCache.get(cacheKey, ActivityInfo.CREATOR);
+            if (cachedInfo != null) {
+                return cachedInfo;
+            }
+        }
+
         IPluginManager service = ensureService(mService);
         if (service != null) {
             try {
-                return service.getReceiverInfo(componentName, flags);
+                int generation = mInstalledCache.getGeneration();
+                ActivityInfo info = service.getReceiverInfo(componentName, flags);
+                if (mInstalledCache.isEnabled()) {
+                    mInstalledCache.put(generation, cacheKey, info);
+                }
+                return info;
             } catch (RemoteException e) {
                 Logger.e(TAG, "getReceiverInfo() error!", e);
             }
@@ -931,10 +1305,23 @@ public class PluginManager {
     }
 
     public ProviderInfo getProviderInfo(ComponentName componentName, int flags) {
+        String cacheKey = getCacheKey("provider", componentName.flattenToShortString(), flags);
+        if (mInstalledCache.isEnabled()) {
+            ProviderInfo cachedInfo = mInstalledCache.get(cacheKey, ProviderInfo.CREATOR);
+            if (cachedInfo != null) {
+                return cachedInfo;
+            }
+        }
+
         IPluginManager service = ensureService(mService);
         if (service != null) {
             try {
-                return service.getProviderInfo(componentName, flags);
+                int generation = mInstalledCache.getGeneration();
+                ProviderInfo info = service.getProviderInfo(componentName, flags);
+                if (mInstalledCache.isEnabled()) {
+                    mInstalledCache.put(generation, cacheKey, info);
+                }
+                return info;
             } catch (RemoteException e) {
                 Logger.e(TAG, "getProviderInfo() error!", e);
             }
@@ -943,10 +1330,23 @@ public class PluginManager {
     }
 
     public PackageInfo getPackageInfo(String packageName, int flags) {
+        String cacheKey = getCacheKey("package", packageName, flags);
+        if (mInstalledCache.isEnabled()) {
+            PackageInfo cachedInfo = mInstalledCache.get(cacheKey, PackageInfo.CREATOR);
+            if (cachedInfo != null) {
+                return cachedInfo;
+            }
+        }
+
         IPluginManager service = ensureService(mService);
         if (service != null) {
             try {
-                return service.getPackageInfo(packageName, flags);
+                int generation = mInstalledCache.getGeneration();
+                PackageInfo packageInfo = service.getPackageInfo(packageName, flags);
+                if (mInstalledCache.isEnabled()) {
+                    mInstalledCache.put(generation, cacheKey, packageInfo);
+                }
+                return packageInfo;
             } catch (RemoteException e) {
                 Logger.e(TAG, "getPackageInfo() error!", e);
             }
@@ -959,6 +1359,8 @@ public class PluginManager {
         if (service != null) {
             try {
                 service.onPluginProcessAttached(client);
+                // 登记成功后才能收到插件变化的通知
+                mInstalledCache.enable();
             } catch (RemoteException e) {
                 Logger.e(TAG, "onPluginProcessAttached() error!", e);
             }
@@ -1031,7 +1433,23 @@ public class PluginManager {
         }
     }
 
+    public void onProviderUsed(String stubProcessName) {
+        IPluginManager service = ensureService(mService);
+        if (service != null) {
+            try {
+                service.onProviderUsed(stubProcessName);
+            } catch (RemoteException e) {
+                Logger.e(TAG, "onProviderUsed() error!", e);
+            }
+        }
+    }
+
     public PluginInfo getInstalledPluginInfo(String packageName) {
+        InstalledPluginCache.InstalledPlugins installedPlugins = getCachedInstalledPlugins();
+        if (installedPlugins != null) {
+            return installedPlugins.get(packageName);
+        }
+
         IPluginManager service = ensureService(mService);
         if (service != null) {
             try {
@@ -1044,6 +1462,15 @@ public class PluginManager {
     }
 
     public List<PluginInfo> getAllInstalledPlugins() {
+        InstalledPluginCache.InstalledPlugins installedPlugins = getCachedInstalledPlugins();
+        if (installedPlugins != null) {
+            return installedPlugins.getAll();
+        }
+
+        return fetchAllInstalledPlugins();
+    }
+
+    private List<PluginInfo> fetchAllInstalledPlugins() {
         IPluginManager service = ensureService(mService);
         if (service != null) {
             try {
@@ -1084,11 +1511,66 @@ public class PluginManager {
             return false;
         }
 
+        Set<String> packageNames = getCachedPackageNames();
+        if (packageNames != null) {
+            return packageNames.contains(pkgName);
+        }
+
         PluginInfo pluginInfo = getInstalledPluginInfo(pkgName);
 
         return pluginInfo != null;
     }
 
+    /**
+     * 核心进程通知插件安装或卸载，本地缓存失效
+     */
+    public void onPluginsChanged(List<String> packageNames, boolean isInstalled) {
+        Logger.d(TAG, "onPluginsChanged() packageNames = %s, isInstalled? %b", packageNames, isInstalled);
+        mInstalledCache.onPluginsChanged(packageNames, isInstalled);
+    }
+
+    private Set<String> getCachedPackageNames() {
+        if (!mInstalledCache.isEnabled()) {
+            return null;
+        }
+
+        Set<String> packageNames = mInstalledCache.getPackageNames();
+        if (packageNames == null) {
+            int generation = mInstalledCache.getGeneration();
+            packageNames = mInstalledCache.putPackageNames(generation, fetchInstalledPackageNames());
+        }
+        return packageNames;
+    }
+
+    private List<String> fetchInstalledPackageNames() {
+        IPluginManager service = ensureService(mService);
+        if (service != null) {
+            try {
+                return service.getInstalledPackageNames();
+            } catch (RemoteException e) {
+                Logger.e(TAG, "getInstalledPackageNames() error!", e);
+            }
+        }
+        return null;
+    }
+
+    private InstalledPluginCache.InstalledPlugins getCachedInstalledPlugins() {
+        if (!mInstalledCache.isEnabled()) {
+            return null;
+        }
+
+        InstalledPluginCache.InstalledPlugins installedPlugins = mInstalledCache.getInstalledPlugins();
+        if (installedPlugins == null) {
+            int generation = mInstalledCache.getGeneration();
+            installedPlugins = mInstalledCache.putInstalledPlugins(generation, fetchAllInstalledPlugins());
+        }
+        return installedPlugins;
+    }
+
+    private static String getCacheKey(String type, String name, int flags) {
+        return type + "/" + name + "/" + flags;
+    }
+
     public String getPluginProcessName(int pid) {
         IPluginManager service = ensureService(mService);
         if (service != null) {
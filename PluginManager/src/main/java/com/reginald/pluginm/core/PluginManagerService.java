@@ -2,11 +2,18 @@ package com.reginald.pluginm.core;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.reginald.pluginm.BuildConfig;
 import com.reginald.pluginm.IPluginClient;
@@ -14,6 +21,7 @@ import com.reginald.pluginm.IPluginManager;
 import com.reginald.pluginm.PluginInfo;
 import com.reginald.pluginm.PluginM;
 import com.reginald.pluginm.parser.ApkParser;
+import com.reginald.pluginm.parser.IntentIndex;
 import com.reginald.pluginm.parser.IntentMatcher;
 import com.reginald.pluginm.parser.PluginPackageParser;
 import com.reginald.pluginm.reflect.FieldUtils;
@@ -22,9 +30,12 @@ import com.reginald.pluginm.stub.StubManager;
 import com.reginald.pluginm.utils.ConfigUtils;
 import com.reginald.pluginm.utils.Logger;
 import com.reginald.pluginm.utils.PackageUtils;
+import com.reginald.pluginm.utils.PatchUtils;
 import com.reginald.pluginm.utils.ProcessHelper;
+import com.reginald.pluginm.utils.ThreadUtils;
 
 import android.app.Activity;
+import android.content.ComponentCallbacks2;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
@@ -36,6 +47,7 @@ import android.content.pm.ProviderInfo;
 import android.content.pm.ResolveInfo;
 import android.content.pm.ServiceInfo;
 import android.content.pm.Signature;
+import android.content.res.Configuration;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Build;
@@ -44,7 +56,6 @@ import android.os.IBinder;
 import android.os.RemoteException;
 import android.os.SystemClock;
 import android.text.TextUtils;
-import dalvik.system.DexClassLoader;
 
 /**
  * Created by lxy on 17-8-22.
@@ -56,11 +67,29 @@ public class PluginManagerService extends IPluginManager.Stub {
     private static final String TAG = "PluginManagerService";
     private static volatile PluginManagerService sInstance;
 
+    private static final int INIT_POOL_SIZE = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final long INIT_WAIT_TIMEOUT = 15000;
+
+    /**
+     * 启动时恢复内置插件超时，查询接口抛出的IllegalStateException以此开头
+     */
+    public static final String ERROR_PLUGINS_NOT_READY = "plugins are not ready";
+
     private final Object mInstallLock = new Object();
 
+    // 启动时恢复内置插件的进度：
+    private final Map<String, CountDownLatch> mPluginInitLatches = new ConcurrentHashMap<>();
+    private final CountDownLatch mPluginsInitLatch = new CountDownLatch(1);
+
     // 已安装的插件信息：
     private final Map<String, PluginInfo> mInstalledPluginMap = new ConcurrentHashMap<>();
     private final Map<String, PluginPackageParser> mInstalledPkgParser = new ConcurrentHashMap<>();
+    // 已安装插件组件的IntentFilter索引
+    private final IntentIndex mIntentIndex = new IntentIndex();
+    // provider authority -> ProviderInfo，authority以';'分隔的多个值分别索引
+    private final Map<String, ProviderInfo> mProviderAuthorities = new ConcurrentHashMap<>();
+    // Intent解析结果缓存
+    private final ResolveCache mResolveCache = new ResolveCache();
 
     // 运行中的插件信息：
     private final Map<String, IPluginClient> mPluginClientMap = new HashMap<>(2);
@@ -69,14 +98,69 @@ public class PluginManagerService extends IPluginManager.Stub {
 
     private Context mContext;
     private StubManager mStubManager;
+    private PluginRegistry mRegistry;
+    private PluginDexOptimizer mDexOptimizer;
+    private WarmProcessPool mWarmProcessPool;
+    private IdleProcessReaper mIdleProcessReaper;
 
     private PluginManagerService(Context hostContext) {
         Context appContext = hostContext.getApplicationContext();
         mContext = appContext != null ? appContext : hostContext;
         mStubManager = StubManager.getInstance(mContext);
+        mRegistry = new PluginRegistry(mContext);
+        mDexOptimizer = new PluginDexOptimizer(mContext, PluginM.getConfigs());
+        int warmPoolSize = PluginM.getConfigs().getWarmProcessPoolSize();
+        if (warmPoolSize > 0) {
+            mWarmProcessPool = new WarmProcessPool(this, mStubManager, warmPoolSize);
+            mStubManager.setStubProcessListener(mWarmProcessPool);
+        }
+        long idleProcessTimeout = PluginM.getConfigs().getIdleProcessTimeout();
+        if (idleProcessTimeout > 0) {
+            mIdleProcessReaper = new IdleProcessReaper(mContext, this, idleProcessTimeout);
+        }
+        registerMemoryCallbacks();
         onPluginsInit();
     }
 
+    private void registerMemoryCallbacks() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            return;
+        }
+
+        mContext.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                PluginManagerService.this.onTrimMemory(level);
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+            }
+
+            @Override
+            public void onLowMemory() {
+                PluginManagerService.this.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+            }
+        });
+    }
+
+    private void onTrimMemory(int level) {
+        Logger.d(TAG, "onTrimMemory() level = " + level);
+        if (mWarmProcessPool != null) {
+            mWarmProcessPool.onTrimMemory(level);
+        }
+        if (mIdleProcessReaper != null) {
+            mIdleProcessReaper.onTrimMemory(level);
+        }
+    }
+
+    /**
+     * 空闲插件进程的回收统计，未开启回收时返回null
+     */
+    public IdleProcessReaper.Stats getIdleReaperStats() {
+        return mIdleProcessReaper != null ? mIdleProcessReaper.getStats() : null;
+    }
+
     public static synchronized PluginManagerService getInstance(Context hostContext) {
         if (sInstance == null) {
             sInstance = new PluginManagerService(hostContext);
@@ -184,6 +268,13 @@ public class PluginManagerService extends IPluginManager.Stub {
 
     private void onPluginsInit() {
         long realtime = SystemClock.elapsedRealtime();
+
+        // 上次未完成的安装留下的暂存区
+        File stagingRoot = PackageUtils.getStagingRootDir(mContext);
+        if (stagingRoot.exists()) {
+            PackageUtils.deleteAll(stagingRoot);
+        }
+
         List<File> apkfiles = new ArrayList<>();
         try {
             File baseDir = mContext.getDir(PackageUtils.PLUGIN_ROOT, Context.MODE_PRIVATE);
@@ -209,24 +300,183 @@ public class PluginManagerService extends IPluginManager.Stub {
         Logger.d(TAG, String.format("onPluginsInit() find %d internal apk(s) cost %s ms",
                 apkfiles.size(), (SystemClock.elapsedRealtime() - realtime)));
 
-        realtime = SystemClock.elapsedRealtime();
-        if (apkfiles != null && apkfiles.size() > 0) {
-            for (File pluginFile : apkfiles) {
-                long subTime = SystemClock.elapsedRealtime();
-                try {
-                    PluginInfo pluginInfo = install(pluginFile.getAbsolutePath(), true, false);
-                    Logger.d(TAG, String.format("onPluginsInit() install %s %s! cost %s ms",
-                            pluginFile.getAbsoluteFile(), pluginInfo != null ? "ok" : "error",
-                            (SystemClock.elapsedRealtime() - subTime)));
-                } catch (Throwable e) {
-                    Logger.e(TAG, "onPluginsInit() install internal apk file error for " + pluginFile.getAbsolutePath(), e);
+        mRegistry.load();
+
+        if (apkfiles.isEmpty()) {
+            onPluginsInitFinished(Collections.<String>emptySet());
+            return;
+        }
+
+        final Set<String> installedPkgs = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final AtomicInteger pendingCount = new AtomicInteger(apkfiles.size());
+
+        // 先登记所有插件，保证返回前就能按包名等待
+        for (File pluginFile : apkfiles) {
+            // apk路径为 pluginm/<packageName>/apk/base.apk
+            String packageName = pluginFile.getParentFile().getParentFile().getName();
+            mPluginInitLatches.put(packageName, new CountDownLatch(1));
+        }
+
+        ExecutorService executor = ThreadUtils.newWorkerPool("pluginm-init", INIT_POOL_SIZE);
+        for (final File pluginFile : apkfiles) {
+            final String packageName = pluginFile.getParentFile().getParentFile().getName();
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        PluginInfo pluginInfo = initPlugin(packageName, pluginFile);
+                        if (pluginInfo != null) {
+                            installedPkgs.add(pluginInfo.packageName);
+                        }
+                    } catch (Throwable e) {
+                        Logger.e(TAG, "onPluginsInit() install internal apk file error for " + pluginFile.getAbsolutePath(), e);
+                    } finally {
+                        CountDownLatch latch = mPluginInitLatches.remove(packageName);
+                        if (latch != null) {
+                            latch.countDown();
+                        }
+                        if (pendingCount.decrementAndGet() == 0) {
+                            onPluginsInitFinished(installedPkgs);
+                        }
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+    }
+
+    private void onPluginsInitFinished(Set<String> installedPkgs) {
+        synchronized (mInstallLock) {
+            // 启动过程中可能有新安装的插件，以当前已安装的插件为准
+            mRegistry.retain(mInstalledPluginMap.keySet());
+            mRegistry.commit();
+        }
+        mPluginsInitLatch.countDown();
+        Logger.d(TAG, String.format("onPluginsInitFinished() %d plugin(s) ready", installedPkgs.size()));
+
+        // 恢复的插件没有进行dexopt，系统升级后原有产物也会失效，在后台补做
+        mDexOptimizer.optimizeStale(new ArrayList<>(mInstalledPluginMap.values()));
+
+        if (mWarmProcessPool != null) {
+            mWarmProcessPool.start();
+        }
+        if (mIdleProcessReaper != null) {
+            mIdleProcessReaper.start();
+        }
+    }
+
+    /**
+     * 恢复单个内置插件，优先使用注册表，注册表过期时重新安装。
+     */
+    private PluginInfo initPlugin(String packageName, File apkFile) {
+        long startTime = SystemClock.elapsedRealtime();
+        long restoreCost = 0;
+        long checkCost = 0;
+        long installCost = 0;
+
+        PluginInfo pluginInfo = mRegistry.restore(packageName, apkFile);
+        restoreCost = SystemClock.elapsedRealtime() - startTime;
+
+        if (pluginInfo != null) {
+            long checkTime = SystemClock.elapsedRealtime();
+            // 注册表已按大小和修改时间确认apk未变化，不重新计算摘要，签名缓存使用注册表中记录的摘要
+            boolean isValid = checkInstall(pluginInfo, true);
+            if (isValid) {
+                synchronized (mInstallLock) {
+                    isValid = addProviderAuthorities(pluginInfo);
+                    if (isValid) {
+                        mInstalledPkgParser.put(pluginInfo.packageName, pluginInfo.pkgParser);
+                        mIntentIndex.addPackage(pluginInfo.pkgParser);
+                        mInstalledPluginMap.put(pluginInfo.packageName, pluginInfo);
+                    }
                 }
             }
+
+            if (!isValid) {
+                Logger.e(TAG, String.format("initPlugin() invalid restored plugin! plugin = %s", pluginInfo));
+                pluginInfo = null;
+            }
+            checkCost = SystemClock.elapsedRealtime() - checkTime;
         }
 
-        Logger.d(TAG, String.format("onPluginsInit() install %d internal apk(s) cost %s ms",
-                apkfiles.size(), (SystemClock.elapsedRealtime() - realtime)));
+        boolean isRestored = pluginInfo != null;
+        if (!isRestored) {
+            long installTime = SystemClock.elapsedRealtime();
+            pluginInfo = installPackage(apkFile.getAbsolutePath(), true, false, false, true);
+            installCost = SystemClock.elapsedRealtime() - installTime;
+        }
 
+        Logger.d(TAG, String.format("initPlugin() %s %s %s! restore %d ms, check %d ms, install %d ms, total %d ms",
+                isRestored ? "restore" : "install", packageName, pluginInfo != null ? "ok" : "error",
+                restoreCost, checkCost, installCost, SystemClock.elapsedRealtime() - startTime));
+
+        return pluginInfo;
+    }
+
+    /**
+     * 查询前等待插件恢复完成，超过{@link #INIT_WAIT_TIMEOUT}仍未完成时抛出IllegalStateException，
+     * 避免把恢复未完成时的结果当作"未安装"返回
+     */
+    private void waitForPluginReady(String packageName) {
+        CountDownLatch latch = packageName != null ? mPluginInitLatches.get(packageName) : null;
+        if (latch != null && !awaitInit(latch, packageName, INIT_WAIT_TIMEOUT)) {
+            throw new IllegalStateException(ERROR_PLUGINS_NOT_READY + ": " + packageName);
+        }
+    }
+
+    private void waitForPluginsReady() {
+        if (!awaitInit(mPluginsInitLatch, "all plugins", INIT_WAIT_TIMEOUT)) {
+            throw new IllegalStateException(ERROR_PLUGINS_NOT_READY);
+        }
+    }
+
+    /**
+     * 安装和卸载前一直等待插件恢复完成，不能基于不完整的已安装信息进行修改
+     */
+    private void waitForPluginInstallable(String packageName) {
+        CountDownLatch latch = packageName != null ? mPluginInitLatches.get(packageName) : null;
+        if (latch != null && !awaitInit(latch, packageName, 0)) {
+            throw new IllegalStateException(ERROR_PLUGINS_NOT_READY + ": " + packageName);
+        }
+    }
+
+    private void waitForIntentReady(Intent intent) {
+        if (intent.getComponent() != null) {
+            waitForPluginReady(intent.getComponent().getPackageName());
+        } else if (intent.getPackage() != null) {
+            waitForPluginReady(intent.getPackage());
+        } else {
+            waitForPluginsReady();
+        }
+    }
+
+    /**
+     * @param timeout 最长等待时间(ms)，小于等于0时一直等待
+     * @return 是否已完成，超时或被中断时返回false
+     */
+    private static boolean awaitInit(CountDownLatch latch, String target, long timeout) {
+        if (latch.getCount() == 0) {
+            return true;
+        }
+
+        long startTime = SystemClock.elapsedRealtime();
+        boolean isReady = false;
+        try {
+            if (timeout > 0) {
+                isReady = latch.await(timeout, TimeUnit.MILLISECONDS);
+            } else {
+                latch.await();
+                isReady = true;
+            }
+            if (!isReady) {
+                Logger.e(TAG, "awaitInit() timeout for " + target);
+            }
+        } catch (InterruptedException e) {
+            Logger.w(TAG, "awaitInit() interrupted for " + target);
+            Thread.currentThread().interrupt();
+        }
+        Logger.d(TAG, String.format("awaitInit() wait %s cost %d ms", target, SystemClock.elapsedRealtime() - startTime));
+        return isReady;
     }
 
     // public api
@@ -240,12 +490,42 @@ public class PluginManagerService extends IPluginManager.Stub {
 
         PluginProcess removed = mRunningPluginProcess.remove(processName);
         Logger.d(TAG, "onPluginClientDied() PluginProcess removed? " + removed);
+
+        mStubManager.onStubProcessDied(processName);
+    }
+
+    private void notifyPluginsChanged(String packageName, boolean isInstalled) {
+        notifyPluginsChanged(Collections.singletonList(packageName), isInstalled);
+    }
+
+    /**
+     * 通知所有插件进程已安装插件发生变化，使其本地缓存失效。批量安装时多个插件只通知一次。
+     */
+    private void notifyPluginsChanged(List<String> packageNames, boolean isInstalled) {
+        List<IPluginClient> pluginClients;
+        synchronized (mPluginClientMap) {
+            pluginClients = new ArrayList<>(mPluginClientMap.values());
+        }
+
+        Logger.d(TAG, String.format("notifyPluginsChanged() packageNames = %s, isInstalled? %b, %d clients",
+                packageNames, isInstalled, pluginClients.size()));
+        for (IPluginClient pluginClient : pluginClients) {
+            try {
+                pluginClient.onPluginsChanged(packageNames, isInstalled);
+            } catch (RemoteException e) {
+                Logger.e(TAG, "notifyPluginsChanged() error!", e);
+            }
+        }
     }
 
     public PluginProcess getPluginProcess(String processName) {
         return mRunningPluginProcess.get(processName);
     }
 
+    public List<PluginProcess> getPluginProcesses() {
+        return new ArrayList<>(mRunningPluginProcess.values());
+    }
+
     public String getPluginProcessName(int pid) {
         for (PluginProcess pluginProcess : mRunningPluginProcess.values()) {
             if (pid == pluginProcess.getPid()) {
@@ -256,10 +536,201 @@ public class PluginManagerService extends IPluginManager.Stub {
     }
 
     @Override
-    public PluginInfo install(String pluginPath, boolean isInternal, boolean isLoadDex) {
+    public PluginInfo install(String pluginPath, boolean isInternal, boolean isLoadDex, boolean isMove) {
+        return installPackage(pluginPath, isInternal, isLoadDex, isMove, false);
+    }
+
+    /**
+     * 批量安装，各个apk并行暂存，全部在一次安装锁中提交，只写一次注册表、只通知一次插件进程。
+     *
+     * @return 与pluginPaths一一对应的安装结果，安装失败的为null
+     */
+    @Override
+    public List<PluginInfo> installBatch(List<String> pluginPaths, boolean isLoadDex, final boolean isMove) {
+        long startTime = SystemClock.elapsedRealtime();
+        int count = pluginPaths.size();
+        List<PluginInfo> results = new ArrayList<>(Collections.<PluginInfo>nCopies(count, null));
+        final PendingInstall[] pendingInstalls = new PendingInstall[count];
+
+        ExecutorService executor = ThreadUtils.newWorkerPool("pluginm-install", INIT_POOL_SIZE);
+        List<Future<?>> futures = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            final String pluginPath = pluginPaths.get(i);
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    pendingInstalls[index] = prepareInstall(pluginPath, false, isMove, false);
+                }
+            }));
+        }
+        executor.shutdown();
+
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (Exception e) {
+                Logger.e(TAG, "installBatch() prepare error!", e);
+            }
+        }
+
+        List<String> installedPkgs = new ArrayList<>(count);
+        try {
+            synchronized (mInstallLock) {
+                for (int i = 0; i < count; i++) {
+                    PendingInstall pendingInstall = pendingInstalls[i];
+                    if (pendingInstall != null && commitInstallLocked(pendingInstall)) {
+                        results.set(i, pendingInstall.pluginInfo);
+                        installedPkgs.add(pendingInstall.pluginInfo.packageName);
+                    }
+                }
+                if (!installedPkgs.isEmpty()) {
+                    mRegistry.commit();
+                }
+            }
+
+            if (!installedPkgs.isEmpty()) {
+                notifyPluginsChanged(installedPkgs, true);
+            }
+
+            if (isLoadDex) {
+                List<Future<Boolean>> dexOptFutures = new ArrayList<>(count);
+                for (PluginInfo pluginInfo : results) {
+                    if (pluginInfo != null) {
+                        dexOptFutures.add(mDexOptimizer.optimize(pluginInfo));
+                    }
+                }
+                for (Future<Boolean> future : dexOptFutures) {
+                    waitForDexOpt(future);
+                }
+            }
+        } finally {
+            for (PendingInstall pendingInstall : pendingInstalls) {
+                if (pendingInstall != null) {
+                    pendingInstall.close();
+                }
+            }
+        }
+
+        Logger.d(TAG, String.format("installBatch() %d of %d plugin(s) installed, cost %d ms",
+                installedPkgs.size(), count, SystemClock.elapsedRealtime() - startTime));
+        return results;
+    }
+
+    /**
+     * 安装分为暂存和提交两个阶段，复制apk、解压so、校验签名都在暂存区进行，不需要持有安装锁，
+     * 安装锁只用于最后替换目录和更新已安装插件信息。内置插件的apk已在插件目录中，不需要暂存。
+     *
+     * @param isMove 是否允许直接移动apk而不是复制，移动后原文件不再存在
+     */
+    private PluginInfo installPackage(String pluginPath, boolean isInternal, boolean isLoadDex, boolean isMove, boolean isInit) {
+        PendingInstall pendingInstall = prepareInstall(pluginPath, isInternal, isMove, isInit);
+        if (pendingInstall == null) {
+            return null;
+        }
+
+        return commitInstall(pendingInstall, isLoadDex, isInit);
+    }
+
+    /**
+     * 增量更新：把补丁应用到已安装插件的apk上生成新apk，校验SHA-256后按正常流程安装。
+     * 新apk直接生成在暂存目录所在的文件系统中，之后以移动的方式暂存，不需要再次复制。
+     *
+     * @param digest 新apk的SHA-256，为null时不校验
+     */
+    @Override
+    public PluginInfo installPatch(String packageName, String patchPath, String digest, boolean isLoadDex) {
+        Logger.d(TAG, String.format("installPatch() packageName = %s, patchPath = %s, digest = %s",
+                packageName, patchPath, digest));
+        waitForPluginInstallable(packageName);
+        PluginInfo installedPluginInfo = mInstalledPluginMap.get(packageName);
+        if (installedPluginInfo == null) {
+            Logger.e(TAG, "installPatch() plugin " + packageName + " NOT installed!");
+            return null;
+        }
+
+        File patchedApk = new File(PackageUtils.makeStagingDir(mContext, packageName), PackageUtils.PLUGIN_APK_FILE_NAME);
         try {
-            Logger.d(TAG, String.format("install() pluginPath = %s, isInternal? %b, isLoadDex? %b",
-                    pluginPath, isInternal, isLoadDex));
+            String patchedDigest = PatchUtils.applyPatch(new File(installedPluginInfo.apkPath), new File(patchPath), patchedApk);
+            if (patchedDigest == null) {
+                Logger.e(TAG, "installPatch() apply patch error for " + packageName);
+                return null;
+            }
+
+            if (digest != null && !digest.equalsIgnoreCase(patchedDigest)) {
+                Logger.e(TAG, String.format("installPatch() digest mismatch for %s! expected %s, but got %s",
+                        packageName, digest, patchedDigest));
+                return null;
+            }
+
+            PendingInstall pendingInstall = prepareInstall(patchedApk.getAbsolutePath(), false, true, false);
+            if (pendingInstall == null) {
+                return null;
+            }
+
+            if (!packageName.equals(pendingInstall.pluginInfo.packageName)) {
+                Logger.e(TAG, String.format("installPatch() patched apk is %s, but NOT %s!",
+                        pendingInstall.pluginInfo.packageName, packageName));
+                pendingInstall.close();
+                return null;
+            }
+
+            return commitInstall(pendingInstall, isLoadDex, false);
+        } finally {
+            PackageUtils.deleteAll(patchedApk.getParentFile());
+        }
+    }
+
+    /**
+     * 在安装锁中提交已暂存的安装，之后通知插件进程并进行dexopt
+     */
+    private PluginInfo commitInstall(PendingInstall pendingInstall, boolean isLoadDex, boolean isInit) {
+        try {
+            PluginInfo pluginInfo = pendingInstall.pluginInfo;
+            long lockTime = SystemClock.elapsedRealtime();
+            boolean isCommitted;
+            synchronized (mInstallLock) {
+                isCommitted = commitInstallLocked(pendingInstall);
+                if (isCommitted && !isInit) {
+                    mRegistry.commit();
+                }
+            }
+            Logger.d(TAG, String.format("install() %s hold install lock %d ms",
+                    pluginInfo.packageName, SystemClock.elapsedRealtime() - lockTime));
+
+            if (!isCommitted) {
+                return null;
+            }
+
+            if (!isInit) {
+                notifyPluginsChanged(pluginInfo.packageName, true);
+            }
+
+            // dexopt在安装锁之外进行，不阻塞其他插件的安装和查询
+            if (isLoadDex) {
+                waitForDexOpt(mDexOptimizer.optimize(pluginInfo));
+            }
+
+            return pluginInfo;
+        } catch (Exception e) {
+            Logger.e(TAG, "install() error!", e);
+            return null;
+        } finally {
+            pendingInstall.close();
+        }
+    }
+
+    /**
+     * 暂存阶段：解析、校验、复制apk、解压so，不需要持有安装锁
+     *
+     * @return 失败时返回null
+     */
+    private PendingInstall prepareInstall(String pluginPath, boolean isInternal, boolean isMove, boolean isInit) {
+        InstallSession session = null;
+        boolean isPrepared = false;
+        try {
+            Logger.d(TAG, String.format("install() pluginPath = %s, isInternal? %b, isMove? %b",
+                    pluginPath, isInternal, isMove));
 
             PluginInfo pluginInfo = null;
             File originApk = new File(pluginPath);
@@ -276,107 +747,202 @@ public class PluginManagerService extends IPluginManager.Stub {
             String pluginPkgName = pluginInfo.packageName;
 
             resolveConfigInfo(pluginInfo);
-            pluginInfo.dexDir = PackageUtils.makePluginDexDir(mContext, pluginPkgName).getAbsolutePath();
-            pluginInfo.nativeLibDir = PackageUtils.makePluginLibDir(mContext, pluginPkgName).getAbsolutePath();
-            pluginInfo.apkPath = PackageUtils.getPluginApk(mContext, pluginPkgName).getAbsolutePath();
+            // 只计算路径，插件目录在提交时才创建，安装失败时不会留下空目录
+            pluginInfo.dexDir = PackageUtils.getPluginDexDir(mContext, pluginPkgName).getAbsolutePath();
+            pluginInfo.nativeLibDir = PackageUtils.getPluginLibDir(mContext, pluginPkgName).getAbsolutePath();
+            pluginInfo.apkPath = PackageUtils.getPluginApkFile(mContext, pluginPkgName).getAbsolutePath();
             pluginInfo.fileSize = originApk.length();
             pluginInfo.lastModified = originApk.lastModified();
 
-            if (!checkInstall(pluginInfo, isInternal)) {
-                Logger.e(TAG, String.format("install() invalid plugin! plugin = %s", pluginInfo));
-                return null;
+            if (!isInternal) {
+                session = new InstallSession(mContext, pluginPkgName);
             }
 
-            synchronized (mInstallLock) {
-                PluginInfo installedPluginInfo = mInstalledPluginMap.get(pluginPkgName);
+            if (!isInit) {
+                waitForPluginInstallable(pluginPkgName);
+            }
 
-                // already installed
-                if (installedPluginInfo != null) {
-                    if (!checkUpdate(pluginInfo, installedPluginInfo)) {
-                        Logger.e(TAG, String.format("install() invalid update! Try update new plugin = %s,  old plugin = %s ", pluginInfo, installedPluginInfo));
-                        return null;
-                    }
+            // 提前检查版本，避免无效的复制，提交时会再次检查
+            PluginInfo installedPluginInfo = mInstalledPluginMap.get(pluginPkgName);
+            if (installedPluginInfo != null && !checkUpdate(pluginInfo, installedPluginInfo)) {
+                Logger.e(TAG, String.format("install() invalid update! Try update new plugin = %s,  old plugin = %s ", pluginInfo, installedPluginInfo));
+                return null;
+            }
 
-                    if (isPluginRunning(pluginPkgName)) {
-                        // running now ... wait process reboot
-                        Logger.w(TAG, String.format("install() wait reboot! Try update new plugin = %s,  old RUNNING plugin = %s ", pluginInfo, installedPluginInfo));
-                        return null;
-                    }
+            // 先暂存apk再校验，保证校验的就是最终安装的文件
+            File apkFile = originApk;
+            if (session != null) {
+                pluginInfo.digest = session.stageApk(originApk, isMove);
+                if (pluginInfo.digest == null) {
+                    Logger.e(TAG, String.format("install() %s apk from %s to %s error!", isMove ? "move" : "copy",
+                            originApk.getAbsolutePath(), session.getApkFile()));
+                    return null;
                 }
+                apkFile = session.getApkFile();
+            } else {
+                pluginInfo.digest = PackageUtils.getFileDigest(originApk);
+            }
 
-                // if not from internal apk
-                if (!isInternal) {
-                    boolean isSuccess = PackageUtils.copyFile(originApk.getAbsolutePath(), pluginInfo.apkPath);
-                    if (!isSuccess) {
-                        Logger.e(TAG, String.format("install() copy apk from %s to %s error!", originApk.getAbsolutePath(), pluginInfo.apkPath));
-                        return null;
-                    }
-                    File apkFile = new File(pluginInfo.apkPath);
-
-                    // create classloader & dexopt
-                    if (isLoadDex) {
-                        Logger.d(TAG, "install() mContext.getClassLoader() = " + mContext.getClassLoader());
-                        ClassLoader parentClassLoader;
-                        ClassLoader hostClassLoader = mContext.getClassLoader();
+            File signatureDir = session != null ? session.getSignatureDir() :
+                    PackageUtils.makePluginSignatureDir(mContext, pluginPkgName);
+            if (!checkInstall(pluginInfo, isInternal, apkFile, signatureDir)) {
+                Logger.e(TAG, String.format("install() invalid plugin! plugin = %s", pluginInfo));
+                return null;
+            }
 
-                        parentClassLoader = hostClassLoader.getParent();
-                        DexClassLoader dexClassLoader = new PluginDexClassLoader(
-                                pluginInfo.apkPath, pluginInfo.dexDir,
-                                pluginInfo.nativeLibDir, parentClassLoader, hostClassLoader);
+            // install so
+            if (session != null && !session.stageNativeLibs()) {
+                Logger.e(TAG, "install() install native libs error for " + pluginPkgName);
+                return null;
+            }
 
-                        Logger.d(TAG, "install() dexClassLoader = " + dexClassLoader);
-                        Logger.d(TAG, "install() dexClassLoader's parent = " + dexClassLoader.getParent());
+            isPrepared = true;
+            return new PendingInstall(pluginInfo, session);
+        } catch (Exception e) {
+            Logger.e(TAG, "install() error!", e);
+            return null;
+        } finally {
+            if (!isPrepared && session != null) {
+                session.close();
+            }
+        }
+    }
 
-                        pluginInfo.classLoader = dexClassLoader;
-                        pluginInfo.parentClassLoader = parentClassLoader;
-                    }
+    /**
+     * 提交阶段：替换插件目录，更新已安装插件信息和注册表(不写入文件)。需持有mInstallLock
+     */
+    private boolean commitInstallLocked(PendingInstall pendingInstall) {
+        PluginInfo pluginInfo = pendingInstall.pluginInfo;
+        String pluginPkgName = pluginInfo.packageName;
+        try {
+            PluginInfo installedPluginInfo = mInstalledPluginMap.get(pluginPkgName);
 
-                    // install so
-                    File tempSoDir = new File(apkFile.getParentFile(), "temp");
-                    Set<String> soList = PackageUtils.unZipSo(apkFile, tempSoDir);
-                    if (soList != null) {
-                        for (String soName : soList) {
-                            PackageUtils.copySo(tempSoDir, soName, pluginInfo.nativeLibDir);
-                        }
-                        //删掉临时文件
-                        PackageUtils.deleteAll(tempSoDir);
-                    }
+            // already installed
+            if (installedPluginInfo != null) {
+                if (!checkUpdate(pluginInfo, installedPluginInfo)) {
+                    Logger.e(TAG, String.format("install() invalid update! Try update new plugin = %s,  old plugin = %s ", pluginInfo, installedPluginInfo));
+                    return false;
                 }
 
-                Logger.d(TAG, "install() pluginInfo = " + pluginInfo);
+                if (isPluginRunning(pluginPkgName)) {
+                    // running now ... wait process reboot
+                    Logger.w(TAG, String.format("install() wait reboot! Try update new plugin = %s,  old RUNNING plugin = %s ", pluginInfo, installedPluginInfo));
+                    return false;
+                }
+            }
 
-                Logger.d(TAG, "install() mInstalledPkgParser add " + pluginInfo.packageName);
-                mInstalledPkgParser.put(pluginInfo.packageName, pluginInfo.pkgParser);
+            if (findConflictAuthority(pluginInfo) != null) {
+                Logger.e(TAG, String.format("install() provider authority conflict! plugin = %s", pluginInfo));
+                return false;
+            }
 
-                Logger.d(TAG, "install() mInstalledPluginMap add " + pluginInfo.packageName);
-                mInstalledPluginMap.put(pluginInfo.packageName, pluginInfo);
+            if (pendingInstall.session != null && !pendingInstall.session.commit()) {
+                Logger.e(TAG, "install() commit error for " + pluginPkgName);
+                return false;
             }
 
-            return pluginInfo;
+            Logger.d(TAG, "install() pluginInfo = " + pluginInfo);
+
+            Logger.d(TAG, "install() mInstalledPkgParser add " + pluginInfo.packageName);
+            mInstalledPkgParser.put(pluginInfo.packageName, pluginInfo.pkgParser);
+            mIntentIndex.addPackage(pluginInfo.pkgParser);
+            addProviderAuthorities(pluginInfo);
+
+            Logger.d(TAG, "install() mInstalledPluginMap add " + pluginInfo.packageName);
+            mInstalledPluginMap.put(pluginInfo.packageName, pluginInfo);
+            invalidateResolveCache();
+
+            mRegistry.put(pluginInfo);
+            return true;
         } catch (Exception e) {
-            Logger.e(TAG, "install() error!", e);
-            return null;
+            Logger.e(TAG, "install() commit error!", e);
+            return false;
         }
+    }
 
+    private static void waitForDexOpt(Future<Boolean> future) {
+        try {
+            boolean isOptimized = future.get();
+            Logger.d(TAG, "install() dexopt success? " + isOptimized);
+        } catch (Exception e) {
+            Logger.e(TAG, "install() dexopt error!", e);
+        }
     }
 
     @Override
     public PluginInfo uninstall(String pluginPackageName) throws RemoteException {
         Logger.d(TAG, "uninstall() pluginPackageName = " + pluginPackageName);
+        waitForPluginInstallable(pluginPackageName);
+        PluginInfo uninstalledPluginInfo = uninstallPackage(pluginPackageName);
+        if (uninstalledPluginInfo != null) {
+            notifyPluginsChanged(pluginPackageName, false);
+        }
+        return uninstalledPluginInfo;
+    }
+
+    /**
+     * 批量卸载，只写一次注册表、只通知一次插件进程。
+     *
+     * @return 与packageNames一一对应的卸载结果，卸载失败的为null
+     */
+    @Override
+    public List<PluginInfo> uninstallBatch(List<String> packageNames) {
+        Logger.d(TAG, "uninstallBatch() packageNames = " + packageNames);
+        for (String packageName : packageNames) {
+            waitForPluginInstallable(packageName);
+        }
+
+        List<PluginInfo> results = new ArrayList<>(packageNames.size());
+        List<String> uninstalledPkgs = new ArrayList<>(packageNames.size());
         synchronized (mInstallLock) {
-            PluginInfo installedPluginInfo = mInstalledPluginMap.get(pluginPackageName);
-            if (installedPluginInfo != null) {
-                if (!isPluginRunning(pluginPackageName)) {
-                    mInstalledPluginMap.remove(pluginPackageName);
-                    mInstalledPkgParser.remove(pluginPackageName);
-                    File pluginDir = PackageUtils.getPluginDir(mContext, pluginPackageName);
-                    PackageUtils.deleteAll(pluginDir);
-                    Logger.d(TAG, "uninstall() ok! uninstalledPluginInfo = " + installedPluginInfo);
-                    return installedPluginInfo;
-                } else {
-                    Logger.w(TAG, "uninstall() plugin " + pluginPackageName + " is running now!");
+            for (String packageName : packageNames) {
+                PluginInfo uninstalledPluginInfo = uninstallPackageLocked(packageName);
+                results.add(uninstalledPluginInfo);
+                if (uninstalledPluginInfo != null) {
+                    uninstalledPkgs.add(packageName);
                 }
             }
+            if (!uninstalledPkgs.isEmpty()) {
+                mRegistry.commit();
+            }
+        }
+
+        if (!uninstalledPkgs.isEmpty()) {
+            notifyPluginsChanged(uninstalledPkgs, false);
+        }
+        return results;
+    }
+
+    private PluginInfo uninstallPackage(String pluginPackageName) {
+        synchronized (mInstallLock) {
+            PluginInfo uninstalledPluginInfo = uninstallPackageLocked(pluginPackageName);
+            if (uninstalledPluginInfo != null) {
+                mRegistry.commit();
+            }
+            return uninstalledPluginInfo;
+        }
+    }
+
+    /**
+     * 需持有mInstallLock，不写入注册表文件
+     */
+    private PluginInfo uninstallPackageLocked(String pluginPackageName) {
+        PluginInfo installedPluginInfo = mInstalledPluginMap.get(pluginPackageName);
+        if (installedPluginInfo != null) {
+            if (!isPluginRunning(pluginPackageName)) {
+                mInstalledPluginMap.remove(pluginPackageName);
+                mInstalledPkgParser.remove(pluginPackageName);
+                mIntentIndex.removePackage(pluginPackageName);
+                removeProviderAuthorities(pluginPackageName);
+                invalidateResolveCache();
+                mRegistry.remove(pluginPackageName);
+                File pluginDir = PackageUtils.getPluginDir(mContext, pluginPackageName);
+                PackageUtils.deleteAll(pluginDir);
+                Logger.d(TAG, "uninstall() ok! uninstalledPluginInfo = " + installedPluginInfo);
+                return installedPluginInfo;
+            } else {
+                Logger.w(TAG, "uninstall() plugin " + pluginPackageName + " is running now!");
+            }
         }
 
         Logger.w(TAG, "uninstall() failed! " + pluginPackageName);
@@ -399,23 +965,33 @@ public class PluginManagerService extends IPluginManager.Stub {
     }
 
     private boolean checkInstall(PluginInfo newPlugin, boolean isInternal) {
+        return checkInstall(newPlugin, isInternal, new File(newPlugin.apkPath),
+                PackageUtils.makePluginSignatureDir(mContext, newPlugin.packageName));
+    }
+
+    /**
+     * @param apkFile      需要校验签名的apk
+     * @param signatureDir 签名的保存位置，新安装的插件保存到暂存区，提交后才生效
+     */
+    private boolean checkInstall(PluginInfo newPlugin, boolean isInternal, File apkFile, File signatureDir) {
         try {
-            // load cached signatures
+            // load cached signatures, only valid for the same apk digest
             Signature[] signatures = null;
             if (isInternal) {
-                // read signature from cache
-                signatures = PackageUtils.readSignatures(mContext, newPlugin.packageName);
-                if (signatures != null) {
-                    // write cached signature to package parser.
-                    newPlugin.pkgParser.writeSignature(signatures);
-                }
+                signatures = PluginSignatures.read(signatureDir, newPlugin.digest);
             }
+            boolean isCached = signatures != null;
 
-            int flags = PackageManager.GET_PERMISSIONS;
             if (signatures == null) {
-                flags |= PackageManager.GET_SIGNATURES;
+                signatures = collectSignatures(apkFile);
+                if (signatures == null || signatures.length <= 0) {
+                    throw new IllegalStateException("CAN NOT get signatures for " + newPlugin.packageName);
+                }
             }
-            PackageInfo pkgInfo = newPlugin.pkgParser.getPackageInfo(flags);
+            // write signatures to package parser, avoid collectCertificates() in it.
+            newPlugin.pkgParser.writeSignature(signatures);
+
+            PackageInfo pkgInfo = newPlugin.pkgParser.getPackageInfo(PackageManager.GET_PERMISSIONS);
 
             // check sdk config
             ApplicationInfo stubAppInfo = mStubManager.getStubApplicationInfo();
@@ -454,15 +1030,6 @@ public class PluginManagerService extends IPluginManager.Stub {
 //                return false;
             }
 
-            // load signature from packageManager
-            if (signatures == null) {
-                if (pkgInfo.signatures == null || pkgInfo.signatures.length <= 0) {
-                    throw new IllegalStateException("CAN NOT get signatures for " + newPlugin.packageName);
-                }
-                signatures = pkgInfo.signatures;
-                PackageUtils.saveSignatures(mContext, pkgInfo);
-            }
-
             // check signatures:
             if (PluginM.getConfigs().isSignatureCheckEnabled()) {
                 Logger.e(TAG, String.format("checkInstall() check signatures for plugin %s!",
@@ -492,6 +1059,10 @@ public class PluginManagerService extends IPluginManager.Stub {
                 }
             }
 
+            if (!isCached) {
+                PluginSignatures.save(signatureDir, newPlugin.digest, signatures);
+            }
+
         } catch (Exception e) {
             Logger.e(TAG, "checkInstall() error!", e);
             return false;
@@ -500,6 +1071,22 @@ public class PluginManagerService extends IPluginManager.Stub {
         return true;
     }
 
+    /**
+     * 优先并行校验v1签名，不支持时(如只有v2签名)由系统解析
+     */
+    private Signature[] collectSignatures(File apkFile) {
+        long startTime = SystemClock.elapsedRealtime();
+        Signature[] signatures = PluginSignatures.verify(apkFile);
+        if (signatures == null) {
+            PackageInfo archiveInfo = mContext.getPackageManager().getPackageArchiveInfo(
+                    apkFile.getAbsolutePath(), PackageManager.GET_SIGNATURES);
+            signatures = archiveInfo != null ? archiveInfo.signatures : null;
+        }
+        Logger.d(TAG, String.format("collectSignatures() for %s cost %d ms",
+                apkFile, SystemClock.elapsedRealtime() - startTime));
+        return signatures;
+    }
+
 
     private void resolveConfigInfo(PluginInfo pluginInfo) {
         try {
@@ -571,7 +1158,7 @@ public class PluginManagerService extends IPluginManager.Stub {
 
     @Override
     public Bundle getPluginProviderUri(String auth) {
-        ProviderInfo providerInfo = PluginManager.getInstance().resolveProviderInfo(auth);
+        ProviderInfo providerInfo = resolveProviderInfo(auth);
         Logger.d(TAG, "getPluginProviderUri() auth = " + auth + ",resolved providerInfo = " + providerInfo);
 
         if (providerInfo == null) {
@@ -584,6 +1171,11 @@ public class PluginManagerService extends IPluginManager.Stub {
                 providerInfo, stubProvider));
 
         if (stubProvider != null) {
+            PluginProcess pluginProcess = mRunningPluginProcess.get(stubProvider.processName);
+            if (pluginProcess != null) {
+                pluginProcess.onProviderUsed();
+            }
+
             Bundle resultBundle = new Bundle();
             Bundle providerBundle = new Bundle();
             providerBundle.putParcelable(PluginManager.EXTRA_INTENT_TARGET_PROVIDERINFO, providerInfo);
@@ -596,6 +1188,43 @@ public class PluginManagerService extends IPluginManager.Stub {
         }
     }
 
+    @Override
+    public boolean preloadPlugin(String packageName, String processName, List<String> classNames) {
+        PluginInfo pluginInfo = getInstalledPluginInfo(packageName);
+        if (pluginInfo == null) {
+            Logger.w(TAG, "preloadPlugin() plugin " + packageName + " NOT installed!");
+            return false;
+        }
+
+        if (processName == null) {
+            processName = pluginInfo.applicationInfo != null && pluginInfo.applicationInfo.processName != null ?
+                    pluginInfo.applicationInfo.processName : packageName;
+        }
+
+        // 预加载只是推测，桩进程已全部占用时放弃，不结束其它插件进程也不等待
+        StubManager.ProcessInfo processInfo = mStubManager.selectFreeStubProcess(processName, packageName);
+        if (processInfo == null) {
+            Logger.w(TAG, String.format("preloadPlugin() %s @ %s no free stub process!", packageName, processName));
+            return false;
+        }
+
+        String stubProcessName = processInfo.processName;
+        IPluginClient pluginClient = fetchPluginClient(stubProcessName, true);
+        Logger.d(TAG, String.format("preloadPlugin() %s @ %s -> %s, pluginClient = %s",
+                packageName, processName, stubProcessName, pluginClient));
+        if (pluginClient == null) {
+            return false;
+        }
+
+        try {
+            pluginClient.preloadPlugin(packageName, processName, classNames);
+            return true;
+        } catch (RemoteException e) {
+            Logger.e(TAG, "preloadPlugin() error!", e);
+        }
+        return false;
+    }
+
     @Override
     public String selectStubProcessName(String processName, String pkgName) {
         StubManager.ProcessInfo processInfo = mStubManager.selectStubProcess(processName, pkgName);
@@ -604,11 +1233,30 @@ public class PluginManagerService extends IPluginManager.Stub {
 
     @Override
     public ActivityInfo resolveActivityInfo(Intent intent, int flags) {
+        boolean isCacheable = isResolveCacheable(intent);
+        if (isCacheable) {
+            ResolveCache.Result result = mResolveCache.get(ResolveCache.TYPE_ACTIVITY, intent, flags);
+            if (result != null) {
+                return result.info != null ? new ActivityInfo((ActivityInfo) result.info) : null;
+            }
+        }
+
+        int generation = mResolveCache.getGeneration();
+        ActivityInfo activityInfo = resolveActivityInfoInner(intent, flags);
+        if (isCacheable) {
+            mResolveCache.put(generation, ResolveCache.TYPE_ACTIVITY, intent, flags,
+                    activityInfo != null ? new ActivityInfo(activityInfo) : null);
+        }
+        return activityInfo;
+    }
+
+    private ActivityInfo resolveActivityInfoInner(Intent intent, int flags) {
         if (intent.getComponent() != null) {
             return getActivityInfo(intent.getComponent(), flags);
         }
+        waitForIntentReady(intent);
         try {
-            List<ResolveInfo> resolveInfos = IntentMatcher.resolveActivityIntent(mContext, mInstalledPkgParser, intent, intent.resolveTypeIfNeeded(mContext.getContentResolver()), flags);
+            List<ResolveInfo> resolveInfos = IntentMatcher.resolveActivityIntent(mContext, mInstalledPkgParser, mIntentIndex, intent, intent.resolveTypeIfNeeded(mContext.getContentResolver()), flags);
             if (resolveInfos == null || resolveInfos.isEmpty()) {
                 return null;
             }
@@ -624,11 +1272,30 @@ public class PluginManagerService extends IPluginManager.Stub {
 
     @Override
     public ServiceInfo resolveServiceInfo(Intent intent, int flags) {
+        boolean isCacheable = isResolveCacheable(intent);
+        if (isCacheable) {
+            ResolveCache.Result result = mResolveCache.get(ResolveCache.TYPE_SERVICE, intent, flags);
+            if (result != null) {
+                return result.info != null ? new ServiceInfo((ServiceInfo) result.info) : null;
+            }
+        }
+
+        int generation = mResolveCache.getGeneration();
+        ServiceInfo serviceInfo = resolveServiceInfoInner(intent, flags);
+        if (isCacheable) {
+            mResolveCache.put(generation, ResolveCache.TYPE_SERVICE, intent, flags,
+                    serviceInfo != null ? new ServiceInfo(serviceInfo) : null);
+        }
+        return serviceInfo;
+    }
+
+    private ServiceInfo resolveServiceInfoInner(Intent intent, int flags) {
         if (intent.getComponent() != null) {
             return getServiceInfo(intent.getComponent(), flags);
         }
+        waitForIntentReady(intent);
         try {
-            List<ResolveInfo> resolveInfos = IntentMatcher.resolveServiceIntent(mContext, mInstalledPkgParser, intent, intent.resolveTypeIfNeeded(mContext.getContentResolver()), flags);
+            List<ResolveInfo> resolveInfos = IntentMatcher.resolveServiceIntent(mContext, mInstalledPkgParser, mIntentIndex, intent, intent.resolveTypeIfNeeded(mContext.getContentResolver()), flags);
             if (resolveInfos == null || resolveInfos.isEmpty()) {
                 return null;
             }
@@ -642,29 +1309,104 @@ public class PluginManagerService extends IPluginManager.Stub {
         return null;
     }
 
+    /**
+     * 插件初始化期间的解析结果可能不完整，不缓存
+     */
+    private boolean isResolveCacheable(Intent intent) {
+        return mPluginsInitLatch.getCount() == 0 && ResolveCache.isCacheable(intent);
+    }
+
+    private void invalidateResolveCache() {
+        mResolveCache.invalidate();
+    }
+
+    public long getResolveCacheHitCount() {
+        return mResolveCache.getHitCount();
+    }
+
+    public long getResolveCacheMissCount() {
+        return mResolveCache.getMissCount();
+    }
+
     @Override
     public ProviderInfo resolveProviderInfo(String name) {
-        Logger.d(TAG, "resolveProviderInfo() name = " + name + " ,mInstalledPkgParser = " + mInstalledPkgParser);
+        if (name == null) {
+            return null;
+        }
+
+        // 初始化期间已恢复的插件可以直接命中，未命中时才需要等待
+        ProviderInfo providerInfo = mProviderAuthorities.get(name);
+        if (providerInfo == null) {
+            waitForPluginsReady();
+            providerInfo = mProviderAuthorities.get(name);
+        }
+        Logger.d(TAG, "resolveProviderInfo() name = " + name + ", providerInfo = " + providerInfo);
+        return providerInfo != null ? new ProviderInfo(providerInfo) : null;
+    }
+
+    private static List<ProviderInfo> getProviders(PluginInfo pluginInfo) {
         try {
-            for (PluginPackageParser pluginPackageParser : mInstalledPkgParser.values()) {
-                List<ProviderInfo> providerInfos = pluginPackageParser.getProviders();
-                for (ProviderInfo providerInfo : providerInfos) {
-                    Logger.d(TAG, "resolveProviderInfo() check providerInfo " + providerInfo);
-                    if (TextUtils.equals(providerInfo.authority, name)) {
-                        return providerInfo;
-                    }
+            return pluginInfo.pkgParser.getProviders();
+        } catch (Exception e) {
+            Logger.e(TAG, "getProviders() error! plugin = " + pluginInfo.packageName, e);
+        }
+        return Collections.emptyList();
+    }
+
+    private static String[] splitAuthorities(ProviderInfo providerInfo) {
+        return providerInfo.authority != null ? providerInfo.authority.split(";") : new String[0];
+    }
+
+    /**
+     * 需持有mInstallLock
+     * @return 已被其他插件占用的authority，没有冲突时返回null
+     */
+    private String findConflictAuthority(PluginInfo pluginInfo) {
+        for (ProviderInfo providerInfo : getProviders(pluginInfo)) {
+            for (String authority : splitAuthorities(providerInfo)) {
+                ProviderInfo existing = mProviderAuthorities.get(authority);
+                if (existing != null && !TextUtils.equals(existing.packageName, pluginInfo.packageName)) {
+                    Logger.e(TAG, String.format("findConflictAuthority() authority %s of %s is already used by %s",
+                            authority, pluginInfo.packageName, existing.packageName));
+                    return authority;
                 }
             }
-        } catch (Exception e) {
-            Logger.e(TAG, "resolveProviderInfo() error!", e);
         }
         return null;
     }
 
+    /**
+     * 需持有mInstallLock，替换该插件原有的authority
+     * @return 与其他插件冲突时返回false且不做修改
+     */
+    private boolean addProviderAuthorities(PluginInfo pluginInfo) {
+        if (findConflictAuthority(pluginInfo) != null) {
+            return false;
+        }
+
+        removeProviderAuthorities(pluginInfo.packageName);
+        for (ProviderInfo providerInfo : getProviders(pluginInfo)) {
+            for (String authority : splitAuthorities(providerInfo)) {
+                mProviderAuthorities.put(authority, providerInfo);
+            }
+        }
+        return true;
+    }
+
+    private void removeProviderAuthorities(String packageName) {
+        Iterator<ProviderInfo> iterator = mProviderAuthorities.values().iterator();
+        while (iterator.hasNext()) {
+            if (TextUtils.equals(iterator.next().packageName, packageName)) {
+                iterator.remove();
+            }
+        }
+    }
+
     @Override
     public List<ResolveInfo> queryIntentActivities(Intent intent, int flags) {
+        waitForIntentReady(intent);
         try {
-            return IntentMatcher.resolveActivityIntent(mContext, mInstalledPkgParser, intent, intent.resolveTypeIfNeeded(mContext.getContentResolver()), flags);
+            return IntentMatcher.resolveActivityIntent(mContext, mInstalledPkgParser, mIntentIndex, intent, intent.resolveTypeIfNeeded(mContext.getContentResolver()), flags);
         } catch (Exception e) {
             Logger.e(TAG, "queryIntentActivities() intent = " + intent, e);
         }
@@ -673,8 +1415,9 @@ public class PluginManagerService extends IPluginManager.Stub {
 
     @Override
     public List<ResolveInfo> queryIntentServices(Intent intent, int flags) {
+        waitForIntentReady(intent);
         try {
-            return IntentMatcher.resolveServiceIntent(mContext, mInstalledPkgParser, intent, intent.resolveTypeIfNeeded(mContext.getContentResolver()), flags);
+            return IntentMatcher.resolveServiceIntent(mContext, mInstalledPkgParser, mIntentIndex, intent, intent.resolveTypeIfNeeded(mContext.getContentResolver()), flags);
         } catch (Exception e) {
             Logger.e(TAG, "queryIntentServices() intent = " + intent, e);
         }
@@ -683,8 +1426,9 @@ public class PluginManagerService extends IPluginManager.Stub {
 
     @Override
     public List<ResolveInfo> queryBroadcastReceivers(Intent intent, int flags) {
+        waitForIntentReady(intent);
         try {
-            return IntentMatcher.resolveReceiverIntent(mContext, mInstalledPkgParser, intent, intent.resolveTypeIfNeeded(mContext.getContentResolver()), flags);
+            return IntentMatcher.resolveReceiverIntent(mContext, mInstalledPkgParser, mIntentIndex, intent, intent.resolveTypeIfNeeded(mContext.getContentResolver()), flags);
         } catch (Exception e) {
             Logger.e(TAG, "queryBroadcastReceivers() intent = " + intent, e);
         }
@@ -693,8 +1437,9 @@ public class PluginManagerService extends IPluginManager.Stub {
 
     @Override
     public List<ResolveInfo> queryIntentContentProviders(Intent intent, int flags) {
+        waitForIntentReady(intent);
         try {
-            return IntentMatcher.resolveProviderIntent(mContext, mInstalledPkgParser, intent, intent.resolveTypeIfNeeded(mContext.getContentResolver()), flags);
+            return IntentMatcher.resolveProviderIntent(mContext, mInstalledPkgParser, mIntentIndex, intent, intent.resolveTypeIfNeeded(mContext.getContentResolver()), flags);
         } catch (Exception e) {
             Logger.e(TAG, "queryIntentContentProviders() intent = " + intent, e);
         }
@@ -817,6 +1562,8 @@ public class PluginManagerService extends IPluginManager.Stub {
             mRunningPluginProcess.put(processName, pluginProcess);
         }
 
+        mStubManager.onStubProcessAttached(processName);
+
         if (client != null) {
             IPluginClient pluginClient = IPluginClient.Stub.asInterface(client);
             onPluginClientStarted(processName, pluginClient);
@@ -903,16 +1650,32 @@ public class PluginManagerService extends IPluginManager.Stub {
         pluginProcess.onProviderCreated(stubInfo, targetInfo);
     }
 
+    @Override
+    public void onProviderUsed(String stubProcessName) {
+        PluginProcess pluginProcess = mRunningPluginProcess.get(stubProcessName);
+        if (pluginProcess != null) {
+            pluginProcess.onProviderUsed();
+        }
+    }
+
     @Override
     public PluginInfo getInstalledPluginInfo(String packageName) {
+        waitForPluginReady(packageName);
         return mInstalledPluginMap.get(packageName);
     }
 
     @Override
     public List<PluginInfo> getAllInstalledPlugins() {
+        waitForPluginsReady();
         return new ArrayList<>(mInstalledPluginMap.values());
     }
 
+    @Override
+    public List<String> getInstalledPackageNames() {
+        waitForPluginsReady();
+        return new ArrayList<>(mInstalledPluginMap.keySet());
+    }
+
     @Override
     public List<PluginInfo> getAllRunningPlugins() throws RemoteException {
         return new ArrayList<>(getRunningPluginsMap().values());
@@ -953,4 +1716,24 @@ public class PluginManagerService extends IPluginManager.Stub {
 
         return pluginInfo.pkgParser;
     }
+
+    /**
+     * 已完成暂存、等待提交的安装
+     */
+    private static class PendingInstall {
+        final PluginInfo pluginInfo;
+        // 内置插件不需要暂存，为null
+        final InstallSession session;
+
+        PendingInstall(PluginInfo pluginInfo, InstallSession session) {
+            this.pluginInfo = pluginInfo;
+            this.session = session;
+        }
+
+        void close() {
+            if (session != null) {
+                session.close();
+            }
+        }
+    }
 }
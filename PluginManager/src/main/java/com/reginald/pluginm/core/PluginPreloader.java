@@ -0,0 +1,125 @@
+package com.reginald.pluginm.core;
+
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.SystemClock;
+
+import com.reginald.pluginm.utils.Logger;
+import com.reginald.pluginm.utils.ThreadUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * 插件预热：在插件的目标stub进程中提前启动进程、加载插件并预加载指定的类，
+ * 使首次打开插件页面时无需等待classloader、资源和Application的初始化。
+ * <p>
+ * 预热任务在主线程空闲时才开始，之后在低优先级的后台线程执行，开始前可以随时取消。
+ */
+public class PluginPreloader {
+
+    private static final String TAG = "PluginPreloader";
+
+    private static final ExecutorService sPreloadExecutor = ThreadUtils.newWorkerPool("pluginm-preload", 1);
+
+    public static PreloadTask preload(String packageName, String processName, List<String> classNames) {
+        PreloadTask task = new PreloadTask(packageName, processName, classNames);
+        task.schedule();
+        return task;
+    }
+
+    public static class PreloadTask {
+        private final String mPackageName;
+        private final String mProcessName;
+        private final List<String> mClassNames;
+
+        private volatile boolean mIsCancelled;
+        private volatile boolean mIsDone;
+        private volatile boolean mIsSuccess;
+        private Future<?> mFuture;
+
+        private final MessageQueue.IdleHandler mIdleHandler = new MessageQueue.IdleHandler() {
+            @Override
+            public boolean queueIdle() {
+                onIdle();
+                return false;
+            }
+        };
+
+        private PreloadTask(String packageName, String processName, List<String> classNames) {
+            mPackageName = packageName;
+            mProcessName = processName;
+            mClassNames = classNames != null ? new ArrayList<>(classNames) : null;
+        }
+
+        private void schedule() {
+            ThreadUtils.sMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mIsCancelled) {
+                        Looper.myQueue().addIdleHandler(mIdleHandler);
+                    }
+                }
+            });
+        }
+
+        private synchronized void onIdle() {
+            if (mIsCancelled) {
+                return;
+            }
+
+            mFuture = sPreloadExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    if (mIsCancelled) {
+                        return;
+                    }
+
+                    long startTime = SystemClock.elapsedRealtime();
+                    mIsSuccess = PluginManager.getInstance().preloadPlugin(mPackageName, mProcessName, mClassNames);
+                    mIsDone = true;
+                    Logger.d(TAG, String.format("preload %s @ %s, success? %b, cost %d ms",
+                            mPackageName, mProcessName, mIsSuccess, SystemClock.elapsedRealtime() - startTime));
+                }
+            });
+        }
+
+        /**
+         * 取消尚未开始的预热，已经开始的预热不受影响
+         */
+        public synchronized void cancel() {
+            if (mIsCancelled || mIsDone) {
+                return;
+            }
+
+            mIsCancelled = true;
+            ThreadUtils.sMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    Looper.myQueue().removeIdleHandler(mIdleHandler);
+                }
+            });
+            if (mFuture != null) {
+                mFuture.cancel(false);
+            }
+            Logger.d(TAG, "cancel() " + mPackageName);
+        }
+
+        public boolean isCancelled() {
+            return mIsCancelled;
+        }
+
+        public boolean isDone() {
+            return mIsDone;
+        }
+
+        /**
+         * 目标进程是否已收到预热请求
+         */
+        public boolean isSuccess() {
+            return mIsSuccess;
+        }
+    }
+}
@@ -5,6 +5,7 @@ import android.content.pm.ApplicationInfo;
 import android.content.pm.ProviderInfo;
 import android.content.pm.ServiceInfo;
 import android.os.RemoteException;
+import android.os.SystemClock;
 
 import com.reginald.pluginm.stub.StubManager;
 import com.reginald.pluginm.utils.CommonUtils;
@@ -22,6 +23,9 @@ import java.util.Map;
 public class PluginProcess {
     private static final String TAG = "PluginProcess";
 
+    // 最近一次使用ContentProvider后的保护时间，使用方每隔一段时间上报一次(见PluginContentResolver)
+    private static final long PROVIDER_GRACE_PERIOD = 30 * 1000;
+
     // plugin pkg -> appInfo
     private final Map<String, ApplicationInfo> mRunningPluginMap = new HashMap<>();
 
@@ -33,9 +37,20 @@ public class PluginProcess {
     private final int mPid;
     private final StubManager.ProcessInfo mStubProcess;
 
+    private final long mStartTime;
+    // 最近一次组件创建、销毁或invoker调用的时间
+    private volatile long mLastActiveTime;
+    // 最近一次获取或使用插件ContentProvider的时间
+    private volatile long mLastProviderTime;
+    // 进行中的invoker调用，与mIsKilled一起由this保护
+    private int mInvokingCount;
+    private boolean mIsKilled;
+
     public PluginProcess(int pid, StubManager.ProcessInfo stubProcess) {
         mPid = pid;
         mStubProcess = stubProcess;
+        mStartTime = SystemClock.elapsedRealtime();
+        mLastActiveTime = mStartTime;
     }
 
     public int getPid() {
@@ -52,13 +67,111 @@ public class PluginProcess {
     }
 
     public List<String> getRunningPlugins() {
-        return new ArrayList<>(mRunningPluginMap.keySet());
+        synchronized (mRunningPluginMap) {
+            return new ArrayList<>(mRunningPluginMap.keySet());
+        }
+    }
+
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    public long getLastActiveTime() {
+        return mLastActiveTime;
+    }
+
+    /**
+     * 正在运行的Activity和Service数量
+     */
+    public int getRunningComponentCount() {
+        int count = 0;
+        synchronized (mRunningActivityMap) {
+            count += count(mRunningActivityMap);
+        }
+        synchronized (mRunningServiceMap) {
+            count += count(mRunningServiceMap);
+        }
+        return count;
+    }
+
+    public synchronized int getInvokingCount() {
+        return mInvokingCount;
+    }
+
+    /**
+     * 进程中没有正在运行的Activity和Service，没有进行中的invoker调用，且最近一段时间内没有使用ContentProvider。
+     * <p>
+     * ContentProvider的调用直接通过binder进行，无法计数，只按最近使用的时间判断。
+     */
+    public boolean isIdle() {
+        return getRunningComponentCount() == 0 && getInvokingCount() == 0 &&
+                SystemClock.elapsedRealtime() - mLastProviderTime >= PROVIDER_GRACE_PERIOD;
+    }
+
+    /**
+     * 进程空闲时标记为即将结束，之后的invoker调用不再转发到该进程
+     * @return 是否可以结束该进程
+     */
+    public synchronized boolean markKilled() {
+        if (mIsKilled) {
+            return true;
+        }
+        if (!isIdle()) {
+            return false;
+        }
+        mIsKilled = true;
+        return true;
+    }
+
+    /**
+     * invoker调用开始
+     * @return 进程已被标记结束时返回false
+     */
+    public synchronized boolean onInvokeStart() {
+        if (mIsKilled) {
+            return false;
+        }
+        mInvokingCount++;
+        mLastActiveTime = SystemClock.elapsedRealtime();
+        return true;
+    }
+
+    public synchronized void onInvokeFinish() {
+        if (mInvokingCount > 0) {
+            mInvokingCount--;
+        }
+        mLastActiveTime = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * 其它进程获取或使用了该进程中的插件ContentProvider
+     */
+    public void onProviderUsed() {
+        long now = SystemClock.elapsedRealtime();
+        mLastProviderTime = now;
+        mLastActiveTime = now;
+    }
+
+    /**
+     * 有其它进程获取了插件的服务binder等，不计为进行中的调用，只更新活动时间
+     */
+    public void onActive() {
+        mLastActiveTime = SystemClock.elapsedRealtime();
+    }
+
+    private static int count(Map<String, ? extends List<?>> runningMap) {
+        int count = 0;
+        for (List<?> components : runningMap.values()) {
+            count += components.size();
+        }
+        return count;
     }
 
     public void onApplicationAttached(ApplicationInfo targetInfo) {
         Logger.d(TAG, String.format("onApplicationAttached() processName = %s, targetInfo = %s",
                 mStubProcess.processName, targetInfo));
 
+        mLastActiveTime = SystemClock.elapsedRealtime();
         synchronized (mRunningPluginMap) {
             mRunningPluginMap.put(targetInfo.packageName, targetInfo);
         }
@@ -66,6 +179,7 @@ public class PluginProcess {
 
     public void onActivityCreated(ActivityInfo stubInfo, ActivityInfo targetInfo) throws RemoteException {
         Logger.d(TAG, String.format("onActivityCreated() stubInfo = %s, targetInfo = %s", stubInfo, targetInfo));
+        mLastActiveTime = SystemClock.elapsedRealtime();
         synchronized (mRunningActivityMap) {
             List<ActivityInfo> activityInfos = mRunningActivityMap.get(stubInfo.name);
             if (activityInfos == null) {
@@ -80,6 +194,7 @@ public class PluginProcess {
 
     public void onActivityDestory(ActivityInfo stubInfo, ActivityInfo targetInfo) throws RemoteException {
         Logger.d(TAG, String.format("onActivityDestory() stubInfo = %s, targetInfo = %s", stubInfo, targetInfo));
+        mLastActiveTime = SystemClock.elapsedRealtime();
         synchronized (mRunningActivityMap) {
             List<ActivityInfo> activityInfos = mRunningActivityMap.get(stubInfo.name);
             if (activityInfos != null) {
@@ -109,6 +224,7 @@ public class PluginProcess {
 
     public void onServiceCreated(ServiceInfo stubInfo, ServiceInfo targetInfo) throws RemoteException {
         Logger.d(TAG, String.format("onServiceCreated() stubInfo = %s, targetInfo = %s", stubInfo, targetInfo));
+        mLastActiveTime = SystemClock.elapsedRealtime();
         synchronized (mRunningServiceMap) {
             List<ServiceInfo> serviceInfos = mRunningServiceMap.get(stubInfo.name);
             if (serviceInfos == null) {
@@ -129,6 +245,7 @@ public class PluginProcess {
 
     public void onServiceDestory(ServiceInfo stubInfo, ServiceInfo targetInfo) throws RemoteException {
         Logger.d(TAG, String.format("onServiceDestory() stubInfo = %s, targetInfo = %s", stubInfo, targetInfo));
+        mLastActiveTime = SystemClock.elapsedRealtime();
         synchronized (mRunningServiceMap) {
             List<ServiceInfo> serviceInfos = mRunningServiceMap.get(stubInfo.name);
             if (serviceInfos != null) {
@@ -142,6 +259,7 @@ public class PluginProcess {
 
     public void onProviderCreated(ProviderInfo stubInfo, ProviderInfo targetInfo) throws RemoteException {
         Logger.d(TAG, String.format("onProviderCreated() stubInfo = %s, targetInfo = %s", stubInfo, targetInfo));
+        mLastActiveTime = SystemClock.elapsedRealtime();
         synchronized (mRunningProviderMap) {
             List<ProviderInfo> providerInfos = mRunningProviderMap.get(stubInfo.name);
             if (providerInfos == null) {
@@ -162,8 +280,8 @@ public class PluginProcess {
     @Override
     public String toString() {
         return String.format("PluginProcess[ processName = %s, mRunningPluginMap = %s, " +
-                        "mRunningActivityMap = %s, mRunningServiceMap = %s, mRunningProviderMap = %s]",
+                        "mRunningActivityMap = %s, mRunningServiceMap = %s, mRunningProviderMap = %s, invoking = %d]",
                 mStubProcess.processName, mRunningPluginMap, mRunningActivityMap,
-                mRunningServiceMap, mRunningProviderMap);
+                mRunningServiceMap, mRunningProviderMap, getInvokingCount());
     }
 }
@@ -0,0 +1,237 @@
+package com.reginald.pluginm.core;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.os.Parcel;
+import android.os.SystemClock;
+import android.text.TextUtils;
+
+import com.reginald.pluginm.PluginInfo;
+import com.reginald.pluginm.parser.PluginPackageParser;
+import com.reginald.pluginm.utils.Logger;
+import com.reginald.pluginm.utils.PackageUtils;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 已安装插件的持久化注册表。
+ * <p>
+ * 安装时把PluginInfo和解析结果的快照写入 pluginm/registry，核心进程启动时直接从中恢复，
+ * 只有当apk的大小或修改时间与记录不一致时才需要重新解析apk。
+ * 系统升级或宿主升级后Parcel格式可能变化，此时整个注册表作废。
+ */
+class PluginRegistry {
+
+    private static final String TAG = "PluginRegistry";
+
+    private static final String REGISTRY_FILE_NAME = "registry";
+    private static final int MAGIC = 0x504d5247;
+    private static final int VERSION = 2;
+
+    private final Context mContext;
+    private final File mRegistryFile;
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    private boolean mIsDirty;
+
+    public PluginRegistry(Context context) {
+        mContext = context;
+        mRegistryFile = new File(PackageUtils.getPluginRootDir(context), REGISTRY_FILE_NAME);
+    }
+
+    public synchronized void load() {
+        long startTime = SystemClock.elapsedRealtime();
+        mEntries.clear();
+
+        if (!mRegistryFile.exists()) {
+            Logger.d(TAG, "load() no registry found.");
+            return;
+        }
+
+        byte[] data = PackageUtils.readFromFile(mRegistryFile);
+        if (data == null) {
+            return;
+        }
+
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(data, 0, data.length);
+            parcel.setDataPosition(0);
+
+            if (parcel.readInt() != MAGIC || parcel.readInt() != VERSION) {
+                Logger.w(TAG, "load() unknown registry format!");
+                mIsDirty = true;
+                return;
+            }
+
+            if (!TextUtils.equals(parcel.readString(), Build.FINGERPRINT) ||
+                    parcel.readLong() != getHostUpdateTime()) {
+                Logger.w(TAG, "load() system or host updated! registry is stale.");
+                mIsDirty = true;
+                return;
+            }
+
+            int count = parcel.readInt();
+            for (int i = 0; i < count; i++) {
+                Entry entry = new Entry();
+                entry.packageName = parcel.readString();
+                entry.apkPath = parcel.readString();
+                entry.fileSize = parcel.readLong();
+                entry.lastModified = parcel.readLong();
+                entry.digest = parcel.readString();
+                entry.data = parcel.createByteArray();
+                mEntries.put(entry.packageName, entry);
+            }
+        } catch (Exception e) {
+            Logger.e(TAG, "load() error!", e);
+            mEntries.clear();
+            mIsDirty = true;
+        } finally {
+            parcel.recycle();
+        }
+
+        Logger.d(TAG, String.format("load() %d entries, cost %d ms",
+                mEntries.size(), SystemClock.elapsedRealtime() - startTime));
+    }
+
+    /**
+     * 从注册表恢复插件信息。
+     * @return 记录不存在或已过期时返回null
+     */
+    public PluginInfo restore(String packageName, File apkFile) {
+        Entry entry;
+        synchronized (this) {
+            entry = mEntries.get(packageName);
+        }
+
+        if (entry == null) {
+            return null;
+        }
+
+        if (!TextUtils.equals(entry.apkPath, apkFile.getAbsolutePath()) ||
+                entry.fileSize != apkFile.length() || entry.lastModified != apkFile.lastModified()) {
+            Logger.w(TAG, "restore() stale entry for " + packageName);
+            return null;
+        }
+
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(entry.data, 0, entry.data.length);
+            parcel.setDataPosition(0);
+            PluginInfo pluginInfo = PluginInfo.CREATOR.createFromParcel(parcel);
+            pluginInfo.pkgParser = PluginPackageParser.readSnapshot(mContext, apkFile, parcel);
+            // apk未变化，沿用记录时的摘要
+            pluginInfo.digest = entry.digest;
+            return pluginInfo;
+        } catch (Exception e) {
+            Logger.e(TAG, "restore() error for " + packageName, e);
+        } finally {
+            parcel.recycle();
+        }
+
+        return null;
+    }
+
+    public void put(PluginInfo pluginInfo) {
+        File apkFile = new File(pluginInfo.apkPath);
+        Entry entry = new Entry();
+        entry.packageName = pluginInfo.packageName;
+        entry.apkPath = apkFile.getAbsolutePath();
+        entry.fileSize = apkFile.length();
+        entry.lastModified = apkFile.lastModified();
+        entry.digest = pluginInfo.digest != null ? pluginInfo.digest : PackageUtils.getFileDigest(apkFile);
+
+        Parcel parcel = Parcel.obtain();
+        try {
+            pluginInfo.writeToParcel(parcel, 0);
+            pluginInfo.pkgParser.writeSnapshot(parcel);
+            entry.data = parcel.marshall();
+        } catch (Exception e) {
+            Logger.e(TAG, "put() error for " + pluginInfo.packageName, e);
+            remove(pluginInfo.packageName);
+            return;
+        } finally {
+            parcel.recycle();
+        }
+
+        synchronized (this) {
+            mEntries.put(entry.packageName, entry);
+            mIsDirty = true;
+        }
+    }
+
+    public synchronized void remove(String packageName) {
+        if (mEntries.remove(packageName) != null) {
+            mIsDirty = true;
+        }
+    }
+
+    /**
+     * 删除不在packageNames中的记录
+     */
+    public synchronized void retain(Set<String> packageNames) {
+        Iterator<String> iterator = mEntries.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (!packageNames.contains(iterator.next())) {
+                iterator.remove();
+                mIsDirty = true;
+            }
+        }
+    }
+
+    public synchronized boolean commit() {
+        if (!mIsDirty) {
+            return true;
+        }
+
+        long startTime = SystemClock.elapsedRealtime();
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeInt(MAGIC);
+            parcel.writeInt(VERSION);
+            parcel.writeString(Build.FINGERPRINT);
+            parcel.writeLong(getHostUpdateTime());
+            parcel.writeInt(mEntries.size());
+            for (Entry entry : mEntries.values()) {
+                parcel.writeString(entry.packageName);
+                parcel.writeString(entry.apkPath);
+                parcel.writeLong(entry.fileSize);
+                parcel.writeLong(entry.lastModified);
+                parcel.writeString(entry.digest);
+                parcel.writeByteArray(entry.data);
+            }
+
+            boolean isSuc = PackageUtils.writeToFileAtomic(mRegistryFile, parcel.marshall());
+            if (isSuc) {
+                mIsDirty = false;
+            }
+            Logger.d(TAG, String.format("commit() %d entries %s, cost %d ms", mEntries.size(),
+                    isSuc ? "ok" : "error", SystemClock.elapsedRealtime() - startTime));
+            return isSuc;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private long getHostUpdateTime() {
+        try {
+            return mContext.getPackageManager().getPackageInfo(mContext.getPackageName(), 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            Logger.e(TAG, "getHostUpdateTime() error!", e);
+        }
+        return 0;
+    }
+
+    private static class Entry {
+        String packageName;
+        String apkPath;
+        long fileSize;
+        long lastModified;
+        String digest;
+        byte[] data;
+    }
+}
@@ -0,0 +1,309 @@
+package com.reginald.pluginm.core;
+
+import android.content.pm.Signature;
+import android.os.Parcel;
+import android.os.SystemClock;
+import android.text.TextUtils;
+
+import com.reginald.pluginm.utils.Logger;
+import com.reginald.pluginm.utils.PackageUtils;
+import com.reginald.pluginm.utils.ThreadUtils;
+
+import java.io.File;
+import java.io.InputStream;
+import java.security.CodeSigner;
+import java.security.MessageDigest;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * 插件签名的校验和缓存。
+ * <p>
+ * 每个插件只保存一条记录 signatures/record，包含apk的SHA-256和各个证书及其SHA-256。
+ * 只有apk的SHA-256与记录一致时才直接使用记录中的签名，否则重新校验。从注册表恢复插件时也会重新计算apk的SHA-256。
+ * <p>
+ * 校验时按v1(JAR)签名并行检查apk中每个文件的摘要，无法校验时(如只有v2签名)返回null，由调用方退回系统的解析流程。
+ * 与系统一致，每个签名者对应一个签名，取其证书链中的签名证书。
+ */
+class PluginSignatures {
+
+    private static final String TAG = "PluginSignatures";
+
+    private static final String RECORD_FILE_NAME = "record";
+    private static final int MAGIC = 0x504d5347;
+    // 版本1的记录可能包含证书链中的中间证书，需要重新校验
+    private static final int VERSION = 2;
+
+    private static final int VERIFY_POOL_SIZE = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final ExecutorService sVerifyExecutor = ThreadUtils.newWorkerPool("pluginm-verify", VERIFY_POOL_SIZE);
+
+    /**
+     * 读取签名记录，兼容旧版本每个签名一个文件的格式
+     *
+     * @param apkDigest apk的SHA-256，与记录不一致时返回null
+     */
+    public static Signature[] read(File signatureDir, String apkDigest) {
+        File recordFile = new File(signatureDir, RECORD_FILE_NAME);
+        if (!recordFile.isFile()) {
+            // 旧格式没有apk的摘要，读取后转换为新格式
+            Signature[] signatures = readLegacy(signatureDir);
+            if (signatures != null && apkDigest != null) {
+                save(signatureDir, apkDigest, signatures);
+            }
+            return signatures;
+        }
+
+        byte[] data = PackageUtils.readFromFile(recordFile);
+        if (data == null) {
+            return null;
+        }
+
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(data, 0, data.length);
+            parcel.setDataPosition(0);
+            if (parcel.readInt() != MAGIC || parcel.readInt() != VERSION) {
+                Logger.w(TAG, "read() unknown record format in " + signatureDir);
+                return null;
+            }
+
+            String recordApkDigest = parcel.readString();
+            if (apkDigest != null && !TextUtils.equals(apkDigest, recordApkDigest)) {
+                Logger.w(TAG, "read() apk changed, record is stale in " + signatureDir);
+                return null;
+            }
+
+            int count = parcel.readInt();
+            Signature[] signatures = new Signature[count];
+            for (int i = 0; i < count; i++) {
+                parcel.readString(); // 证书的SHA-256
+                signatures[i] = new Signature(parcel.createByteArray());
+            }
+            return count > 0 ? signatures : null;
+        } catch (Exception e) {
+            Logger.e(TAG, "read() error in " + signatureDir, e);
+        } finally {
+            parcel.recycle();
+        }
+
+        return null;
+    }
+
+    private static Signature[] readLegacy(File signatureDir) {
+        File[] files = signatureDir.listFiles();
+        if (files == null) {
+            return null;
+        }
+
+        Arrays.sort(files);
+        List<Signature> signatures = new ArrayList<>();
+        for (File file : files) {
+            if (file.getName().startsWith(PackageUtils.PLUGIN_SIGNATURE_FILE_PREFIX)) {
+                byte[] data = PackageUtils.readFromFile(file);
+                if (data == null) {
+                    return null;
+                }
+                signatures.add(new Signature(data));
+            }
+        }
+        return signatures.isEmpty() ? null : signatures.toArray(new Signature[signatures.size()]);
+    }
+
+    /**
+     * 保存签名记录，同时删除旧格式的签名文件
+     */
+    public static boolean save(File signatureDir, String apkDigest, Signature[] signatures) {
+        if (signatures == null || signatures.length == 0) {
+            return false;
+        }
+
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeInt(MAGIC);
+            parcel.writeInt(VERSION);
+            parcel.writeString(apkDigest);
+            parcel.writeInt(signatures.length);
+            for (Signature signature : signatures) {
+                byte[] data = signature.toByteArray();
+                parcel.writeString(digest(data));
+                parcel.writeByteArray(data);
+            }
+
+            signatureDir.mkdirs();
+            boolean isSuc = PackageUtils.writeToFileAtomic(new File(signatureDir, RECORD_FILE_NAME), parcel.marshall());
+            if (isSuc) {
+                File[] files = signatureDir.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        if (file.getName().startsWith(PackageUtils.PLUGIN_SIGNATURE_FILE_PREFIX)) {
+                            file.delete();
+                        }
+                    }
+                }
+            }
+            return isSuc;
+        } catch (Exception e) {
+            Logger.e(TAG, "save() error in " + signatureDir, e);
+        } finally {
+            parcel.recycle();
+        }
+
+        return false;
+    }
+
+    /**
+     * 并行校验apk的v1签名，apk中的文件分成几组，每组用独立的JarFile读取并校验摘要。
+     *
+     * @return 所有文件共同的签名，无v1签名或校验失败时返回null
+     */
+    public static Signature[] verify(final File apkFile) {
+        long startTime = SystemClock.elapsedRealtime();
+        List<String> names = new ArrayList<>();
+        boolean hasSignatureFile = false;
+        JarFile jarFile = null;
+        try {
+            jarFile = new JarFile(apkFile, false);
+            Enumeration<JarEntry> entries = jarFile.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                if (name.startsWith("META-INF/")) {
+                    String upperName = name.toUpperCase();
+                    hasSignatureFile |= upperName.endsWith(".RSA") || upperName.endsWith(".DSA") ||
+                            upperName.endsWith(".EC");
+                    continue;
+                }
+                names.add(name);
+            }
+        } catch (Exception e) {
+            Logger.e(TAG, "verify() read entries error for " + apkFile, e);
+            return null;
+        } finally {
+            closeQuietly(jarFile);
+        }
+
+        if (!hasSignatureFile || names.isEmpty()) {
+            Logger.w(TAG, "verify() no v1 signature found in " + apkFile);
+            return null;
+        }
+
+        int groupCount = Math.min(VERIFY_POOL_SIZE, names.size());
+        List<Future<Set<Certificate>>> futures = new ArrayList<>(groupCount);
+        for (int i = 0; i < groupCount; i++) {
+            final List<String> group = names.subList(names.size() * i / groupCount, names.size() * (i + 1) / groupCount);
+            futures.add(sVerifyExecutor.submit(new Callable<Set<Certificate>>() {
+                @Override
+                public Set<Certificate> call() throws Exception {
+                    return verifyEntries(apkFile, group);
+                }
+            }));
+        }
+
+        Set<Certificate> certificates = null;
+        try {
+            for (Future<Set<Certificate>> future : futures) {
+                Set<Certificate> groupCertificates = future.get();
+                if (groupCertificates == null) {
+                    return null;
+                }
+                if (certificates == null) {
+                    certificates = groupCertificates;
+                } else if (!certificates.equals(groupCertificates)) {
+                    Logger.e(TAG, "verify() entries signed by different certificates in " + apkFile);
+                    return null;
+                }
+            }
+
+            Signature[] signatures = new Signature[certificates.size()];
+            int i = 0;
+            for (Certificate certificate : certificates) {
+                signatures[i++] = new Signature(certificate.getEncoded());
+            }
+
+            Logger.d(TAG, String.format("verify() %d entries in %d groups, cost %d ms",
+                    names.size(), groupCount, SystemClock.elapsedRealtime() - startTime));
+            return signatures;
+        } catch (Exception e) {
+            Logger.e(TAG, "verify() error for " + apkFile, e);
+        } finally {
+            for (Future<Set<Certificate>> future : futures) {
+                future.cancel(true);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * 读取每个文件的全部内容，JarFile会在读取结束时校验摘要，摘要不一致时抛出SecurityException
+     */
+    private static Set<Certificate> verifyEntries(File apkFile, List<String> names) {
+        Set<Certificate> certificates = null;
+        byte[] buffer = new byte[16 * 1024];
+        JarFile jarFile = null;
+        try {
+            jarFile = new JarFile(apkFile, true);
+            for (String name : names) {
+                JarEntry entry = jarFile.getJarEntry(name);
+                InputStream in = jarFile.getInputStream(entry);
+                try {
+                    while (in.read(buffer) != -1) {
+                    }
+                } finally {
+                    in.close();
+                }
+
+                CodeSigner[] signers = entry.getCodeSigners();
+                if (signers == null || signers.length == 0) {
+                    Logger.e(TAG, "verifyEntries() " + name + " is NOT signed!");
+                    return null;
+                }
+
+                // 证书链中可能包含中间证书，只取每个签名者的签名证书
+                Set<Certificate> entrySet = new HashSet<>(signers.length);
+                for (CodeSigner signer : signers) {
+                    entrySet.add(signer.getSignerCertPath().getCertificates().get(0));
+                }
+                if (certificates == null) {
+                    certificates = entrySet;
+                } else if (!certificates.equals(entrySet)) {
+                    Logger.e(TAG, "verifyEntries() " + name + " has different certificates!");
+                    return null;
+                }
+            }
+            return certificates;
+        } catch (Exception e) {
+            Logger.e(TAG, "verifyEntries() error for " + apkFile, e);
+        } finally {
+            closeQuietly(jarFile);
+        }
+
+        return null;
+    }
+
+    private static String digest(byte[] data) throws Exception {
+        return PackageUtils.toHexString(MessageDigest.getInstance("SHA-256").digest(data));
+    }
+
+    private static void closeQuietly(JarFile jarFile) {
+        if (jarFile != null) {
+            try {
+                jarFile.close();
+            } catch (Exception e) {
+            }
+        }
+    }
+}
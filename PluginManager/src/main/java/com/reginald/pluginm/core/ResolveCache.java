@@ -0,0 +1,139 @@
+package com.reginald.pluginm.core;
+
+import android.content.ContentResolver;
+import android.content.Intent;
+import android.os.Build;
+
+import com.reginald.pluginm.utils.Logger;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Intent解析结果的LRU缓存，key为 Intent.FilterComparison + 组件类型 + flags。
+ * <p>
+ * 插件安装或卸载时整体失效。解析结果(包括未找到)只在插件初始化完成后缓存，
+ * 调用方需要自行拷贝返回值。
+ */
+class ResolveCache {
+
+    private static final String TAG = "ResolveCache";
+
+    public static final int TYPE_ACTIVITY = 0;
+    public static final int TYPE_SERVICE = 1;
+
+    private static final int MAX_SIZE = 64;
+
+    private final Map<Key, Result> mCache = new LinkedHashMap<Key, Result>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Result> eldest) {
+            return size() > MAX_SIZE;
+        }
+    };
+    private int mGeneration;
+
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+
+    /**
+     * FilterComparison不包含selector，且content uri的类型需要查询provider，这两种情况不缓存
+     */
+    public static boolean isCacheable(Intent intent) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH_MR1 && intent.getSelector() != null) {
+            return false;
+        }
+
+        return intent.getType() != null || intent.getData() == null ||
+                !ContentResolver.SCHEME_CONTENT.equals(intent.getData().getScheme());
+    }
+
+    public synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    public synchronized void invalidate() {
+        mGeneration++;
+        mCache.clear();
+    }
+
+    /**
+     * @return 未命中时返回null
+     */
+    public Result get(int type, Intent intent, int flags) {
+        Result result;
+        synchronized (this) {
+            result = mCache.get(new Key(type, new Intent.FilterComparison(intent), flags));
+        }
+
+        if (result != null) {
+            mHitCount.incrementAndGet();
+        } else {
+            mMissCount.incrementAndGet();
+        }
+        return result;
+    }
+
+    public void put(int generation, int type, Intent intent, int flags, Object info) {
+        Key key = new Key(type, new Intent.FilterComparison(intent.cloneFilter()), flags);
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mCache.put(key, new Result(info));
+            }
+        }
+    }
+
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    public void dump() {
+        int size;
+        synchronized (this) {
+            size = mCache.size();
+        }
+        Logger.d(TAG, String.format("dump() size = %d, hit = %d, miss = %d", size, getHitCount(), getMissCount()));
+    }
+
+    public static class Result {
+        // 为null表示该Intent无法解析到插件组件
+        public final Object info;
+
+        private Result(Object info) {
+            this.info = info;
+        }
+    }
+
+    private static class Key {
+        private final int type;
+        private final Intent.FilterComparison intent;
+        private final int flags;
+
+        private Key(int type, Intent.FilterComparison intent, int flags) {
+            this.type = type;
+            this.intent = intent;
+            this.flags = flags;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return type == key.type && flags == key.flags && intent.equals(key.intent);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * type + flags) + intent.hashCode();
+        }
+    }
+}
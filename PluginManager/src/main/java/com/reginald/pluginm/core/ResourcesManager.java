@@ -1,6 +1,10 @@
 package com.reginald.pluginm.core;
 
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
 
 import com.reginald.pluginm.PluginInfo;
 import com.reginald.pluginm.reflect.MethodUtils;
@@ -19,6 +23,9 @@ public class ResourcesManager {
 
     private static final String TAG = "ResourcesManager";
 
+    // 已经通过addAssetPath添加过的apk路径，避免重复添加
+    private static final Map<AssetManager, Set<String>> sAddedAssetPaths = new WeakHashMap<>();
+
     public static Resources createResources(Context hostContext, AssetManager assetManager) {
         try {
             if (assetManager != null) {
@@ -40,8 +47,19 @@ public class ResourcesManager {
             */
             // TODO 在插件进程中，宿主资源与插件资源混合，如果没有对插件包进行资源id隔离，有产生资源冲突的风险。
             AssetManager assetManager = hostContext.getAssets();
-            for (PluginInfo pluginInfo : pluginInfos) {
-                MethodUtils.invokeMethod(assetManager, "addAssetPath", pluginInfo.apkPath);
+            synchronized (sAddedAssetPaths) {
+                Set<String> addedPaths = sAddedAssetPaths.get(assetManager);
+                if (addedPaths == null) {
+                    addedPaths = new HashSet<>();
+                    sAddedAssetPaths.put(assetManager, addedPaths);
+                }
+                for (PluginInfo pluginInfo : pluginInfos) {
+                    if (addedPaths.contains(pluginInfo.apkPath)) {
+                        continue;
+                    }
+                    MethodUtils.invokeMethod(assetManager, "addAssetPath", pluginInfo.apkPath);
+                    addedPaths.add(pluginInfo.apkPath);
+                }
             }
             return assetManager;
         } catch (Exception e) {
@@ -0,0 +1,169 @@
+package com.reginald.pluginm.core;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.reginald.pluginm.IPluginClient;
+import com.reginald.pluginm.stub.StubManager;
+import com.reginald.pluginm.utils.Logger;
+import com.reginald.pluginm.utils.ProcessHelper;
+import com.reginald.pluginm.utils.ThreadUtils;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 预热的桩进程池：提前启动并初始化好(hook、连接core进程)空闲的桩进程，插件启动时直接分配，
+ * 省去进程创建和PluginManager初始化的时间。
+ * <p>
+ * 池的大小根据最近一段时间的插件进程启动次数调整，不超过{@link com.reginald.pluginm.PluginConfigs#getWarmProcessPoolSize()}；
+ * 内存紧张(onTrimMemory，见{@link ProcessHelper#getTrimMemoryRatio(int)})时结束预热进程，并在一段时间内不再补充。
+ */
+class WarmProcessPool implements StubManager.StubProcessListener {
+
+    private static final String TAG = "WarmProcessPool";
+
+    // 统计启动次数的时间窗口
+    private static final long LAUNCH_WINDOW = 5 * 60 * 1000;
+    // 内存紧张后暂停补充的时间
+    private static final long TRIM_COOLDOWN = 60 * 1000;
+    private static final int MAX_LAUNCH_RECORDS = 64;
+
+    private final PluginManagerService mService;
+    private final StubManager mStubManager;
+    private final int mMaxSize;
+    private final ExecutorService mExecutor = ThreadUtils.newWorkerPool("pluginm-warm", 1);
+    private final AtomicBoolean mIsReplenishScheduled = new AtomicBoolean();
+
+    // 最近分配新桩进程的时间
+    private final ArrayDeque<Long> mLaunchTimes = new ArrayDeque<>();
+    // 内存紧张时的池大小上限及其有效期
+    private int mTrimLimit = Integer.MAX_VALUE;
+    private long mTrimUntil;
+
+    private int mHitCount;
+    private int mMissCount;
+
+    public WarmProcessPool(PluginManagerService service, StubManager stubManager, int maxSize) {
+        mService = service;
+        mStubManager = stubManager;
+        mMaxSize = maxSize;
+    }
+
+    public void start() {
+        Logger.d(TAG, "start() maxSize = " + mMaxSize);
+        scheduleReplenish();
+    }
+
+    @Override
+    public void onStubAllocated(String stubProcessName, boolean isWarm) {
+        synchronized (this) {
+            if (isWarm) {
+                mHitCount++;
+            } else {
+                mMissCount++;
+            }
+            mLaunchTimes.addLast(SystemClock.elapsedRealtime());
+            if (mLaunchTimes.size() > MAX_LAUNCH_RECORDS) {
+                mLaunchTimes.pollFirst();
+            }
+        }
+        scheduleReplenish();
+    }
+
+    public void onTrimMemory(int level) {
+        // UI_HIDDEN和BACKGROUND不是内存紧张，打开插件页面时宿主界面隐藏，此时正需要预热进程
+        float ratio = ProcessHelper.getTrimMemoryRatio(level);
+        int limit;
+        if (ratio >= 1f) {
+            limit = 0;
+        } else if (ratio > 0f) {
+            limit = mStubManager.getWarmStubCount() / 2;
+        } else {
+            return;
+        }
+
+        synchronized (this) {
+            mTrimLimit = Math.min(mTrimLimit, limit);
+            mTrimUntil = SystemClock.elapsedRealtime() + TRIM_COOLDOWN;
+        }
+        Logger.d(TAG, String.format("onTrimMemory() level = %d, limit = %d", level, limit));
+        scheduleReplenish();
+    }
+
+    /**
+     * 目标大小：最近每分钟的平均启动次数，至少1个，且不超过配置的上限和内存紧张时的限制
+     */
+    synchronized int getTargetSize() {
+        long now = SystemClock.elapsedRealtime();
+        while (!mLaunchTimes.isEmpty() && now - mLaunchTimes.peekFirst() > LAUNCH_WINDOW) {
+            mLaunchTimes.pollFirst();
+        }
+
+        int launchesPerMinute = (int) Math.ceil(mLaunchTimes.size() * 60f * 1000 / LAUNCH_WINDOW);
+        int target = Math.min(mMaxSize, Math.max(1, launchesPerMinute));
+
+        if (now < mTrimUntil) {
+            target = Math.min(target, mTrimLimit);
+        } else {
+            mTrimLimit = Integer.MAX_VALUE;
+        }
+        return target;
+    }
+
+    private void scheduleReplenish() {
+        if (mIsReplenishScheduled.compareAndSet(false, true)) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mIsReplenishScheduled.set(false);
+                    replenish();
+                }
+            });
+        }
+    }
+
+    private void replenish() {
+        long startTime = SystemClock.elapsedRealtime();
+        int target = getTargetSize();
+
+        // 超出目标大小的预热进程直接结束
+        while (mStubManager.getWarmStubCount() > target) {
+            StubManager.ProcessInfo processInfo = mStubManager.takeWarmStub();
+            if (processInfo == null) {
+                break;
+            }
+            PluginProcess pluginProcess = mService.getPluginProcess(processInfo.processName);
+            if (pluginProcess != null) {
+                Logger.d(TAG, "replenish() kill warm process " + processInfo.processName);
+                Process.killProcess(pluginProcess.getPid());
+            }
+        }
+
+        int started = 0;
+        while (mStubManager.getWarmStubCount() < target) {
+            StubManager.ProcessInfo processInfo = mStubManager.reserveWarmStub();
+            if (processInfo == null) {
+                break;
+            }
+
+            IPluginClient pluginClient = mService.fetchPluginClient(processInfo.processName, true);
+            if (pluginClient == null) {
+                Logger.w(TAG, "replenish() start warm process " + processInfo.processName + " error!");
+                mStubManager.cancelWarmStub(processInfo.processName);
+                break;
+            }
+            started++;
+        }
+
+        Logger.d(TAG, String.format("replenish() target = %d, started = %d, %s, cost %d ms",
+                target, started, this, SystemClock.elapsedRealtime() - startTime));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("WarmProcessPool[ maxSize = %d, warm = %d, hit = %d, miss = %d ]",
+                mMaxSize, mStubManager.getWarmStubCount(), mHitCount, mMissCount);
+    }
+}
@@ -8,6 +8,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.reginald.pluginm.core.PluginManager;
 import com.reginald.pluginm.reflect.FieldUtils;
@@ -29,6 +30,8 @@ public class SystemServiceHook extends ServiceHook {
 
     private static final Set<String> sServiceUnhookList = new HashSet<>();
     private static final Map<String, MethodHandler> sBinderMethodHandlers = new HashMap<>();
+    // 每个接口方法中可能携带包名的参数位置(bit i 对应第i个参数)
+    private static final Map<Method, Integer> sPkgParamMasks = new ConcurrentHashMap<>();
 
     // 缓存的系统服务binder
     private Map<String, IBinder> mProxyMap = new HashMap<>();
@@ -92,7 +95,11 @@ public class SystemServiceHook extends ServiceHook {
 
             // 修改所有带有plugin包名的参数
             if (args != null && args.length > 0) {
+                int pkgParamMask = getPkgParamMask(method);
                 for (int index = 0; index < args.length; index++) {
+                    if (index < Integer.SIZE && (pkgParamMask & (1 << index)) == 0) {
+                        continue;
+                    }
                     Object param = args[index];
                     if (param == null) {
                         continue;
@@ -157,6 +164,26 @@ public class SystemServiceHook extends ServiceHook {
 
     }
 
+    /**
+     * 只有声明为String、ComponentName或者其父类型的参数才可能携带包名
+     */
+    private static int getPkgParamMask(Method method) {
+        Integer mask = sPkgParamMasks.get(method);
+        if (mask == null) {
+            Class<?>[] paramTypes = method.getParameterTypes();
+            int newMask = 0;
+            for (int i = 0; i < paramTypes.length && i < Integer.SIZE; i++) {
+                if (paramTypes[i].isAssignableFrom(String.class) ||
+                        paramTypes[i].isAssignableFrom(ComponentName.class)) {
+                    newMask |= 1 << i;
+                }
+            }
+            mask = newMask;
+            sPkgParamMasks.put(method, mask);
+        }
+        return mask;
+    }
+
     private static void addMethodBlocker(MethodBlocker methodBlocker) {
         sBinderMethodHandlers.put(methodBlocker.getName(), methodBlocker);
     }
@@ -0,0 +1,238 @@
+package com.reginald.pluginm.parser;
+
+import android.content.ComponentName;
+import android.content.IntentFilter;
+import android.support.annotation.VisibleForTesting;
+
+import com.reginald.pluginm.utils.Logger;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 所有已安装插件组件IntentFilter的索引，参考系统IntentResolver。
+ * <p>
+ * 按 action -> MIME主类型 建立索引，隐式Intent只需在候选集合中做最终的IntentFilter.match，无需遍历所有插件。
+ * 没有action的Intent可以匹配任意action，只能退化为遍历全部IntentFilter。
+ * 插件安装、卸载时增量更新。
+ */
+public class IntentIndex {
+
+    private static final String TAG = "IntentIndex";
+
+    public static final int TYPE_ACTIVITY = 0;
+    public static final int TYPE_SERVICE = 1;
+    public static final int TYPE_RECEIVER = 2;
+    public static final int TYPE_PROVIDER = 3;
+    private static final int TYPE_COUNT = 4;
+
+    // IntentFilter未声明任何MIME类型
+    private static final String NO_TYPE = "";
+    // IntentFilter声明了 */* 或 *
+    private static final String ANY_TYPE = "*";
+
+    private final Table[] mTables = new Table[TYPE_COUNT];
+
+    public IntentIndex() {
+        for (int i = 0; i < TYPE_COUNT; i++) {
+            mTables[i] = new Table();
+        }
+    }
+
+    /**
+     * 添加插件的所有组件，已存在的同名插件会先被移除
+     */
+    public synchronized void addPackage(PluginPackageParser parser) {
+        String packageName = parser.getPackageName();
+        removePackage(packageName);
+
+        int count = 0;
+        count += addComponents(mTables[TYPE_ACTIVITY], parser.getActivityComponents(), parser, TYPE_ACTIVITY);
+        count += addComponents(mTables[TYPE_SERVICE], parser.getServiceComponents(), parser, TYPE_SERVICE);
+        count += addComponents(mTables[TYPE_RECEIVER], parser.getReceiverComponents(), parser, TYPE_RECEIVER);
+        count += addComponents(mTables[TYPE_PROVIDER], parser.getProviderComponents(), parser, TYPE_PROVIDER);
+        Logger.d(TAG, String.format("addPackage() %s, %d filters", packageName, count));
+    }
+
+    public synchronized void removePackage(String packageName) {
+        for (Table table : mTables) {
+            table.remove(packageName);
+        }
+    }
+
+    /**
+     * 查询可能匹配的候选项，调用方仍需对每个候选项做IntentFilter.match
+     *
+     * @param type         组件类型 TYPE_XXX
+     * @param action       Intent的action
+     * @param resolvedType Intent解析后的MIME类型
+     */
+    public synchronized List<Entry> query(int type, String action, String resolvedType) {
+        Table table = mTables[type];
+
+        if (action == null) {
+            return new ArrayList<>(table.mAllEntries);
+        }
+
+        if (resolvedType == null) {
+            return copyOf(table.mEntries.get(keyOf(action, NO_TYPE)));
+        }
+
+        String baseType = getBaseType(resolvedType);
+        if (baseType.contains("*")) {
+            // Intent本身是通配类型，任意带类型的IntentFilter都可能匹配
+            List<Entry> result = new ArrayList<>();
+            for (Entry entry : table.mAllEntries) {
+                if (entry.filter.hasAction(action) && entry.filter.countDataTypes() > 0) {
+                    result.add(entry);
+                }
+            }
+            return result;
+        }
+
+        Set<Entry> result = new LinkedHashSet<>();
+        addAll(result, table.mEntries.get(keyOf(action, baseType)));
+        addAll(result, table.mEntries.get(keyOf(action, ANY_TYPE)));
+        return new ArrayList<>(result);
+    }
+
+    /**
+     * 直接添加一个IntentFilter，用于测试
+     */
+    @VisibleForTesting
+    synchronized void addFilter(int type, ComponentName component, IntentFilter filter) {
+        mTables[type].add(new Entry(component, filter));
+    }
+
+    private static int addComponents(Table table, List<ComponentName> components, PluginPackageParser parser, int type) {
+        int count = 0;
+        for (ComponentName component : components) {
+            List<IntentFilter> filters = getIntentFilters(parser, component, type);
+            if (filters == null) {
+                continue;
+            }
+            for (IntentFilter filter : filters) {
+                table.add(new Entry(component, filter));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static List<IntentFilter> getIntentFilters(PluginPackageParser parser, ComponentName component, int type) {
+        switch (type) {
+            case TYPE_ACTIVITY:
+                return parser.getActivityIntentFilter(component);
+            case TYPE_SERVICE:
+                return parser.getServiceIntentFilter(component);
+            case TYPE_RECEIVER:
+                return parser.getReceiverIntentFilter(component);
+            case TYPE_PROVIDER:
+                return parser.getProviderIntentFilter(component);
+            default:
+                return null;
+        }
+    }
+
+    private static Set<String> getTypeKeys(IntentFilter filter) {
+        Set<String> typeKeys = new HashSet<>();
+        Iterator<String> types = filter.countDataTypes() > 0 ? filter.typesIterator() : null;
+        if (types == null) {
+            typeKeys.add(NO_TYPE);
+            return typeKeys;
+        }
+
+        while (types.hasNext()) {
+            String baseType = getBaseType(types.next());
+            typeKeys.add(baseType.contains("*") ? ANY_TYPE : baseType);
+        }
+        return typeKeys;
+    }
+
+    private static String getBaseType(String type) {
+        int slash = type.indexOf('/');
+        return slash > 0 ? type.substring(0, slash) : type;
+    }
+
+    private static String keyOf(String action, String typeKey) {
+        return action + "|" + typeKey;
+    }
+
+    private static List<Entry> copyOf(List<Entry> entries) {
+        return entries != null ? new ArrayList<>(entries) : new ArrayList<Entry>(0);
+    }
+
+    private static void addAll(Collection<Entry> to, List<Entry> entries) {
+        if (entries != null) {
+            to.addAll(entries);
+        }
+    }
+
+    public static class Entry {
+        public final ComponentName component;
+        public final IntentFilter filter;
+
+        private Entry(ComponentName component, IntentFilter filter) {
+            this.component = component;
+            this.filter = filter;
+        }
+    }
+
+    private static class Table {
+        // key: action|MIME主类型
+        private final Map<String, List<Entry>> mEntries = new HashMap<>();
+        private final List<Entry> mAllEntries = new ArrayList<>();
+
+        void add(Entry entry) {
+            mAllEntries.add(entry);
+
+            Iterator<String> actions = entry.filter.countActions() > 0 ? entry.filter.actionsIterator() : null;
+            if (actions == null) {
+                return;
+            }
+
+            Set<String> typeKeys = getTypeKeys(entry.filter);
+            while (actions.hasNext()) {
+                String action = actions.next();
+                for (String typeKey : typeKeys) {
+                    String key = keyOf(action, typeKey);
+                    List<Entry> entries = mEntries.get(key);
+                    if (entries == null) {
+                        entries = new ArrayList<>(1);
+                        mEntries.put(key, entries);
+                    }
+                    entries.add(entry);
+                }
+            }
+        }
+
+        void remove(String packageName) {
+            removeFrom(mAllEntries, packageName);
+
+            Iterator<List<Entry>> iterator = mEntries.values().iterator();
+            while (iterator.hasNext()) {
+                List<Entry> entries = iterator.next();
+                removeFrom(entries, packageName);
+                if (entries.isEmpty()) {
+                    iterator.remove();
+                }
+            }
+        }
+
+        private static void removeFrom(List<Entry> entries, String packageName) {
+            Iterator<Entry> iterator = entries.iterator();
+            while (iterator.hasNext()) {
+                if (packageName.equals(iterator.next().component.getPackageName())) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+}
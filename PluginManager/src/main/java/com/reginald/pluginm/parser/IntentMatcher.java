@@ -84,6 +84,13 @@ public class IntentMatcher {
             };
 
     public static final List<ResolveInfo> resolveReceiverIntent(Context context, Map<String, PluginPackageParser> pluginPackages, Intent intent, String resolvedType, int flags) throws Exception {
+        return resolveReceiverIntent(context, pluginPackages, null, intent, resolvedType, flags);
+    }
+
+    /**
+     * @param index 不为null时，未指定包名的隐式Intent通过索引查找候选组件
+     */
+    public static final List<ResolveInfo> resolveReceiverIntent(Context context, Map<String, PluginPackageParser> pluginPackages, IntentIndex index, Intent intent, String resolvedType, int flags) throws Exception {
         if (intent == null || context == null) {
             return null;
         }
@@ -121,8 +128,12 @@ public class IntentMatcher {
                 //intent指定的包名不在我们的插件列表中。
             }
         } else {
-            for (PluginPackageParser parser : pluginPackages.values()) {
-                queryIntentReceiverForPackage(context, parser, intent, flags, list);
+            if (index != null) {
+                queryIntentFromIndex(context, pluginPackages, index, IntentIndex.TYPE_RECEIVER, intent, flags, list);
+            } else {
+                for (PluginPackageParser parser : pluginPackages.values()) {
+                    queryIntentReceiverForPackage(context, parser, intent, flags, list);
+                }
             }
 
         }
@@ -132,6 +143,13 @@ public class IntentMatcher {
 
 
     public static final List<ResolveInfo> resolveServiceIntent(Context context, Map<String, PluginPackageParser> pluginPackages, Intent intent, String resolvedType, int flags) throws Exception {
+        return resolveServiceIntent(context, pluginPackages, null, intent, resolvedType, flags);
+    }
+
+    /**
+     * @param index 不为null时，未指定包名的隐式Intent通过索引查找候选组件
+     */
+    public static final List<ResolveInfo> resolveServiceIntent(Context context, Map<String, PluginPackageParser> pluginPackages, IntentIndex index, Intent intent, String resolvedType, int flags) throws Exception {
         if (intent == null || context == null) {
             return null;
         }
@@ -169,8 +187,12 @@ public class IntentMatcher {
                 //intent指定的包名不在我们的插件列表中。
             }
         } else {
-            for (PluginPackageParser parser : pluginPackages.values()) {
-                queryIntentServiceForPackage(context, parser, intent, flags, list);
+            if (index != null) {
+                queryIntentFromIndex(context, pluginPackages, index, IntentIndex.TYPE_SERVICE, intent, flags, list);
+            } else {
+                for (PluginPackageParser parser : pluginPackages.values()) {
+                    queryIntentServiceForPackage(context, parser, intent, flags, list);
+                }
             }
         }
         Collections.sort(list, mResolvePrioritySorter);
@@ -180,6 +202,14 @@ public class IntentMatcher {
 
     @TargetApi(VERSION_CODES.KITKAT)
     public static final List<ResolveInfo> resolveProviderIntent(Context context, Map<String, PluginPackageParser> pluginPackages, Intent intent, String resolvedType, int flags) throws Exception {
+        return resolveProviderIntent(context, pluginPackages, null, intent, resolvedType, flags);
+    }
+
+    /**
+     * @param index 不为null时，未指定包名的隐式Intent通过索引查找候选组件
+     */
+    @TargetApi(VERSION_CODES.KITKAT)
+    public static final List<ResolveInfo> resolveProviderIntent(Context context, Map<String, PluginPackageParser> pluginPackages, IntentIndex index, Intent intent, String resolvedType, int flags) throws Exception {
         if (intent == null || context == null) {
             return null;
         }
@@ -218,8 +248,12 @@ public class IntentMatcher {
                 //intent指定的包名不在我们的插件列表中。
             }
         } else {
-            for (PluginPackageParser parser : pluginPackages.values()) {
-                queryIntentProviderForPackage(context, parser, intent, flags, list);
+            if (index != null) {
+                queryIntentFromIndex(context, pluginPackages, index, IntentIndex.TYPE_PROVIDER, intent, flags, list);
+            } else {
+                for (PluginPackageParser parser : pluginPackages.values()) {
+                    queryIntentProviderForPackage(context, parser, intent, flags, list);
+                }
             }
 
         }
@@ -229,6 +263,13 @@ public class IntentMatcher {
 
 
     public static final List<ResolveInfo> resolveActivityIntent(Context context, Map<String, PluginPackageParser> pluginPackages, Intent intent, String resolvedType, int flags) throws Exception {
+        return resolveActivityIntent(context, pluginPackages, null, intent, resolvedType, flags);
+    }
+
+    /**
+     * @param index 不为null时，未指定包名的隐式Intent通过索引查找候选组件
+     */
+    public static final List<ResolveInfo> resolveActivityIntent(Context context, Map<String, PluginPackageParser> pluginPackages, IntentIndex index, Intent intent, String resolvedType, int flags) throws Exception {
         if (intent == null || context == null) {
             return null;
         }
@@ -266,8 +307,12 @@ public class IntentMatcher {
                 //intent指定的包名不在我们的插件列表中。
             }
         } else {
-            for (PluginPackageParser parser : pluginPackages.values()) {
-                queryIntentActivityForPackage(context, parser, intent, flags, list);
+            if (index != null) {
+                queryIntentFromIndex(context, pluginPackages, index, IntentIndex.TYPE_ACTIVITY, intent, flags, list);
+            } else {
+                for (PluginPackageParser parser : pluginPackages.values()) {
+                    queryIntentActivityForPackage(context, parser, intent, flags, list);
+                }
             }
 
         }
@@ -346,16 +391,73 @@ public class IntentMatcher {
         return list;
     }
 
+    private static void queryIntentFromIndex(Context context, Map<String, PluginPackageParser> pluginPackages,
+            IntentIndex index, int type, Intent intent, int flags, List<ResolveInfo> outList) throws Exception {
+        // 与IntentFilter.match(ContentResolver, Intent, boolean, String)一致，类型只解析一次
+        String resolvedType = intent.resolveType(context.getContentResolver());
+        List<IntentIndex.Entry> candidates = index.query(type, intent.getAction(), resolvedType);
+        Logger.d(TAG, "queryIntentFromIndex() intent = " + intent + ", candidates = " + candidates.size());
+        for (IntentIndex.Entry entry : candidates) {
+            PluginPackageParser packageParser = pluginPackages.get(entry.component.getPackageName());
+            if (packageParser == null) {
+                continue;
+            }
+
+            IntentFilter intentFilter = entry.filter;
+            int match = intentFilter.match(intent.getAction(), resolvedType, intent.getScheme(),
+                    intent.getData(), intent.getCategories(), "");
+            if (match < 0) {
+                continue;
+            }
+
+            boolean isDefault = (flags & PackageManager.MATCH_DEFAULT_ONLY) != 0;
+            if (isDefault && !intentFilter.hasCategory(Intent.CATEGORY_DEFAULT)) {
+                //只是匹配默认。这里也算匹配不上。
+                continue;
+            }
+
+            ResolveInfo resolveInfo = newResolveInfo(packageParser, type, entry.component, intentFilter, flags);
+            if (resolveInfo != null) {
+                resolveInfo.match = match;
+                resolveInfo.isDefault = isDefault;
+                outList.add(resolveInfo);
+            }
+        }
+    }
+
+    private static ResolveInfo newResolveInfo(PluginPackageParser packageParser, int type, ComponentName className,
+            IntentFilter intentFilter, int flags) throws Exception {
+        switch (type) {
+            case IntentIndex.TYPE_ACTIVITY:
+                ActivityInfo activityInfo = packageParser.getActivityInfo(className, flags);
+                return activityInfo != null ? newResolveInfo(activityInfo, intentFilter) : null;
+            case IntentIndex.TYPE_SERVICE:
+                ServiceInfo serviceInfo = packageParser.getServiceInfo(className, flags);
+                return serviceInfo != null ? newResolveInfo(serviceInfo, intentFilter) : null;
+            case IntentIndex.TYPE_RECEIVER:
+                ActivityInfo receiverInfo = packageParser.getReceiverInfo(className, flags);
+                return receiverInfo != null ? newResolveInfo(receiverInfo, intentFilter) : null;
+            case IntentIndex.TYPE_PROVIDER:
+                if (VERSION.SDK_INT >= VERSION_CODES.KITKAT) {
+                    ProviderInfo providerInfo = packageParser.getProviderInfo(className, flags);
+                    return providerInfo != null ? newResolveInfo(providerInfo, intentFilter) : null;
+                }
+                return null;
+            default:
+                return null;
+        }
+    }
+
     private static void queryIntentReceiverForPackage(Context context, PluginPackageParser packageParser, Intent intent, int flags, List<ResolveInfo> outList) throws Exception {
-        List<ActivityInfo> receivers = packageParser.getReceivers();
+        List<ComponentName> receivers = packageParser.getReceiverComponents();
         if (receivers != null && receivers.size() >= 0) {
-            for (ActivityInfo receiver : receivers) {
-                List<IntentFilter> intentFilters = packageParser.getReceiverIntentFilter(receiver);
+            for (ComponentName className : receivers) {
+                List<IntentFilter> intentFilters = packageParser.getReceiverIntentFilter(className);
                 if (intentFilters != null && intentFilters.size() > 0) {
                     for (IntentFilter intentFilter : intentFilters) {
                         int match = intentFilter.match(context.getContentResolver(), intent, true, "");
                         if (match >= 0) {
-                            ActivityInfo flagInfo = packageParser.getReceiverInfo(new ComponentName(receiver.packageName, receiver.name), flags);
+                            ActivityInfo flagInfo = packageParser.getReceiverInfo(className, flags);
                             if ((flags & PackageManager.MATCH_DEFAULT_ONLY) != 0) {
                                 if (intentFilter.hasCategory(Intent.CATEGORY_DEFAULT)) {
                                     ResolveInfo resolveInfo = newResolveInfo(flagInfo, intentFilter);
@@ -386,16 +488,15 @@ public class IntentMatcher {
     }
 
     private static void queryIntentProviderForPackage(Context context, PluginPackageParser packageParser, Intent intent, int flags, List<ResolveInfo> outList) throws Exception {
-        List<ProviderInfo> providerInfos = packageParser.getProviders();
-        if (providerInfos != null && providerInfos.size() >= 0) {
-            for (ProviderInfo providerInfo : providerInfos) {
-                ComponentName className = new ComponentName(providerInfo.packageName, providerInfo.name);
+        List<ComponentName> providers = packageParser.getProviderComponents();
+        if (providers != null && providers.size() >= 0) {
+            for (ComponentName className : providers) {
                 List<IntentFilter> intentFilters = packageParser.getProviderIntentFilter(className);
                 if (intentFilters != null && intentFilters.size() > 0) {
                     for (IntentFilter intentFilter : intentFilters) {
                         int match = intentFilter.match(context.getContentResolver(), intent, true, "");
                         if (match >= 0) {
-                            ProviderInfo flagInfo = packageParser.getProviderInfo(new ComponentName(providerInfo.packageName, providerInfo.name), flags);
+                            ProviderInfo flagInfo = packageParser.getProviderInfo(className, flags);
                             if ((flags & PackageManager.MATCH_DEFAULT_ONLY) != 0) {
                                 if (intentFilter.hasCategory(Intent.CATEGORY_DEFAULT)) {
                                     ResolveInfo resolveInfo = newResolveInfo(flagInfo, intentFilter);
@@ -427,17 +528,16 @@ public class IntentMatcher {
 
     private static void queryIntentServiceForPackage(Context context, PluginPackageParser packageParser, Intent intent, int flags, List<ResolveInfo> outList) throws Exception {
         Logger.d(TAG, "queryIntentServiceForPackage() intent = " + intent);
-        List<ServiceInfo> serviceInfos = packageParser.getServices();
-        Logger.d(TAG, "queryIntentServiceForPackage() serviceInfos = " + serviceInfos);
-        if (serviceInfos != null && serviceInfos.size() >= 0) {
-            for (ServiceInfo serviceInfo : serviceInfos) {
-                ComponentName className = new ComponentName(serviceInfo.packageName, serviceInfo.name);
+        List<ComponentName> services = packageParser.getServiceComponents();
+        Logger.d(TAG, "queryIntentServiceForPackage() services = " + services);
+        if (services != null && services.size() >= 0) {
+            for (ComponentName className : services) {
                 List<IntentFilter> intentFilters = packageParser.getServiceIntentFilter(className);
                 if (intentFilters != null && intentFilters.size() > 0) {
                     for (IntentFilter intentFilter : intentFilters) {
                         int match = intentFilter.match(context.getContentResolver(), intent, true, "");
                         if (match >= 0) {
-                            ServiceInfo flagServiceInfo = packageParser.getServiceInfo(new ComponentName(serviceInfo.packageName, serviceInfo.name), flags);
+                            ServiceInfo flagServiceInfo = packageParser.getServiceInfo(className, flags);
                             if ((flags & PackageManager.MATCH_DEFAULT_ONLY) != 0) {
                                 if (intentFilter.hasCategory(Intent.CATEGORY_DEFAULT)) {
                                     ResolveInfo resolveInfo = newResolveInfo(flagServiceInfo, intentFilter);
@@ -468,16 +568,15 @@ public class IntentMatcher {
     }
 
     private static void queryIntentActivityForPackage(Context context, PluginPackageParser packageParser, Intent intent, int flags, List<ResolveInfo> outList) throws Exception {
-        List<ActivityInfo> activityInfos = packageParser.getActivities();
-        if (activityInfos != null && activityInfos.size() >= 0) {
-            for (ActivityInfo activityInfo : activityInfos) {
-                ComponentName className = new ComponentName(activityInfo.packageName, activityInfo.name);
+        List<ComponentName> activities = packageParser.getActivityComponents();
+        if (activities != null && activities.size() >= 0) {
+            for (ComponentName className : activities) {
                 List<IntentFilter> intentFilters = packageParser.getActivityIntentFilter(className);
                 if (intentFilters != null && intentFilters.size() > 0) {
                     for (IntentFilter intentFilter : intentFilters) {
                         int match = intentFilter.match(context.getContentResolver(), intent, true, "");
                         if (match >= 0) {
-                            ActivityInfo flagInfo = packageParser.getActivityInfo(new ComponentName(activityInfo.packageName, activityInfo.name), flags);
+                            ActivityInfo flagInfo = packageParser.getActivityInfo(className, flags);
                             if ((flags & PackageManager.MATCH_DEFAULT_ONLY) != 0) {
                                 if (intentFilter.hasCategory(Intent.CATEGORY_DEFAULT)) {
                                     ResolveInfo resolveInfo = newResolveInfo(flagInfo, intentFilter);
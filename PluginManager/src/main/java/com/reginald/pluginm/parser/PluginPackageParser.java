@@ -36,6 +36,8 @@ import android.content.pm.ProviderInfo;
 import android.content.pm.ServiceInfo;
 import android.content.pm.Signature;
 import android.os.Build;
+import android.os.Bundle;
+import android.os.Parcel;
 import android.text.TextUtils;
 
 import com.reginald.pluginm.reflect.FieldUtils;
@@ -52,12 +54,25 @@ import java.util.TreeMap;
 /**
  * 解析插件apk
  * <p/>
+ * 解析时只保留组件的原始对象和IntentFilter，ActivityInfo等信息在第一次查询时才生成并缓存，
+ * 缓存中保存的是带meta-data的完整信息，返回时按flags复制一份。
+ * <p/>
  * Created by Andy Zhang(zhangyong232@gmail.com) on 2015/2/13.
  */
 public class PluginPackageParser {
 
+    /**
+     * 缓存中不包含的信息，请求这些flag时需要通过PackageParser重新生成
+     */
+    private static final int UNCACHED_FLAGS = PackageManager.GET_SHARED_LIBRARY_FILES |
+            PackageManager.GET_URI_PERMISSION_PATTERNS | PackageManager.GET_INSTRUMENTATION |
+            PackageManager.GET_CONFIGURATIONS | PackageManager.GET_INTENT_FILTERS;
+
+    private static final int CACHED_INFO_FLAGS = PackageManager.GET_META_DATA;
+
     private final File mPluginFile;
-    private final PackageParser mParser;
+    // 从快照恢复时为null，需要时才解析apk
+    private volatile PackageParser mParser;
     private final String mPackageName;
     private final Context mHostContext;
     private final PackageInfo mHostPackageInfo;
@@ -74,20 +89,26 @@ public class PluginPackageParser {
     private ArrayList<String> mRequestedPermissionsCache = new ArrayList<String>();
 
 
+    // IntentFilter缓存同时也是组件的名称索引
     private Map<ComponentName, List<IntentFilter>> mActivityIntentFilterCache = new TreeMap<ComponentName, List<IntentFilter>>(new ComponentNameComparator());
     private Map<ComponentName, List<IntentFilter>> mServiceIntentFilterCache = new TreeMap<ComponentName, List<IntentFilter>>(new ComponentNameComparator());
     private Map<ComponentName, List<IntentFilter>> mProviderIntentFilterCache = new TreeMap<ComponentName, List<IntentFilter>>(new ComponentNameComparator());
     private Map<ComponentName, List<IntentFilter>> mReceiverIntentFilterCache = new TreeMap<ComponentName, List<IntentFilter>>(new ComponentNameComparator());
 
 
-    private Map<ComponentName, ActivityInfo> mActivityInfoCache = new TreeMap<ComponentName, ActivityInfo>(new ComponentNameComparator());
-    private Map<ComponentName, ServiceInfo> mServiceInfoCache = new TreeMap<ComponentName, ServiceInfo>(new ComponentNameComparator());
-    private Map<ComponentName, ProviderInfo> mProviderInfoCache = new TreeMap<ComponentName, ProviderInfo>(new ComponentNameComparator());
-    private Map<ComponentName, ActivityInfo> mReceiversInfoCache = new TreeMap<ComponentName, ActivityInfo>(new ComponentNameComparator());
+    // 按需生成的组件信息
+    private Map<ComponentName, ActivityInfo> mActivityInfoCache = new HashMap<ComponentName, ActivityInfo>();
+    private Map<ComponentName, ServiceInfo> mServiceInfoCache = new HashMap<ComponentName, ServiceInfo>();
+    private Map<ComponentName, ProviderInfo> mProviderInfoCache = new HashMap<ComponentName, ProviderInfo>();
+    private Map<ComponentName, ActivityInfo> mReceiversInfoCache = new HashMap<ComponentName, ActivityInfo>();
     private Map<ComponentName, InstrumentationInfo> mInstrumentationInfoCache = new TreeMap<ComponentName, InstrumentationInfo>(new ComponentNameComparator());
     private Map<ComponentName, PermissionGroupInfo> mPermissionGroupInfoCache = new TreeMap<ComponentName, PermissionGroupInfo>(new ComponentNameComparator());
     private Map<ComponentName, PermissionInfo> mPermissionsInfoCache = new TreeMap<ComponentName, PermissionInfo>(new ComponentNameComparator());
 
+    private ApplicationInfo mApplicationInfo;
+    // 快照模式下的PackageInfo
+    private byte[] mSnapshotPackageInfo;
+
 
     public PluginPackageParser(Context hostContext, File pluginFile) throws Exception {
         mHostContext = hostContext;
@@ -97,135 +118,203 @@ public class PluginPackageParser {
         mPackageName = mParser.getPackageName();
         mHostPackageInfo = mHostContext.getPackageManager().getPackageInfo(mHostContext.getPackageName(), 0);
 
-        List datas = mParser.getActivities();
-        for (Object data : datas) {
-            ComponentName componentName = new ComponentName(mPackageName, mParser.readNameFromComponent(data));
-            synchronized (mActivityObjCache) {
-                mActivityObjCache.put(componentName, data);
-            }
-            synchronized (mActivityInfoCache) {
-                ActivityInfo value = mParser.generateActivityInfo(data, 0);
-                fixApplicationInfo(value.applicationInfo);
-                if (TextUtils.isEmpty(value.processName)) {
-                    value.processName = value.packageName;
+        readComponents(mParser, mParser.getActivities(), mActivityObjCache, mActivityIntentFilterCache);
+        readComponents(mParser, mParser.getServices(), mServiceObjCache, mServiceIntentFilterCache);
+        readComponents(mParser, mParser.getProviders(), mProviderObjCache, mProviderIntentFilterCache);
+        readComponents(mParser, mParser.getReceivers(), mReceiversObjCache, mReceiverIntentFilterCache);
+        readComponents(mParser, mParser.getInstrumentations(), mInstrumentationObjCache, null);
+        readComponents(mParser, mParser.getPermissions(), mPermissionsObjCache, null);
+        readComponents(mParser, mParser.getPermissionGroups(), mPermissionGroupObjCache, null);
+
+        synchronized (mPermissionsObjCache) {
+            for (Map.Entry<ComponentName, Object> entry : mPermissionsObjCache.entrySet()) {
+                PermissionInfo value = mParser.generatePermissionInfo(entry.getValue(), 0);
+                synchronized (mPermissionsInfoCache) {
+                    mPermissionsInfoCache.put(entry.getKey(), value);
                 }
-                mActivityInfoCache.put(componentName, value);
             }
+        }
 
-            List<IntentFilter> filters = mParser.readIntentFilterFromComponent(data);
-            synchronized (mActivityIntentFilterCache) {
-                mActivityIntentFilterCache.remove(componentName);
-                mActivityIntentFilterCache.put(componentName, new ArrayList<IntentFilter>(filters));
+        List<String> requestedPermissions = mParser.getRequestedPermissions();
+        if (requestedPermissions != null && requestedPermissions.size() > 0) {
+            synchronized (mRequestedPermissionsCache) {
+                mRequestedPermissionsCache.addAll(requestedPermissions);
             }
         }
+    }
 
-        datas = mParser.getServices();
-        for (Object data : datas) {
-            ComponentName componentName = new ComponentName(mPackageName, mParser.readNameFromComponent(data));
-            synchronized (mServiceObjCache) {
-                mServiceObjCache.put(componentName, data);
-            }
-            synchronized (mServiceInfoCache) {
-                ServiceInfo value = mParser.generateServiceInfo(data, 0);
-                fixApplicationInfo(value.applicationInfo);
-                if (TextUtils.isEmpty(value.processName)) {
-                    value.processName = value.packageName;
-                }
-                mServiceInfoCache.put(componentName, value);
-            }
+    private PluginPackageParser(Context hostContext, File pluginFile, Parcel in) throws Exception {
+        mHostContext = hostContext;
+        mPluginFile = pluginFile;
+        mPackageName = in.readString();
+        mHostPackageInfo = mHostContext.getPackageManager().getPackageInfo(mHostContext.getPackageName(), 0);
 
-            List<IntentFilter> filters = mParser.readIntentFilterFromComponent(data);
-            synchronized (mServiceIntentFilterCache) {
-                mServiceIntentFilterCache.remove(componentName);
-                mServiceIntentFilterCache.put(componentName, new ArrayList<IntentFilter>(filters));
-            }
+        mApplicationInfo = ApplicationInfo.CREATOR.createFromParcel(in);
+        mSnapshotPackageInfo = in.createByteArray();
+        mRequestedPermissionsCache.addAll(in.createStringArrayList());
+
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            ComponentName componentName = new ComponentName(mPackageName, in.readString());
+            mActivityInfoCache.put(componentName, ActivityInfo.CREATOR.createFromParcel(in));
+            mActivityIntentFilterCache.put(componentName, in.createTypedArrayList(IntentFilter.CREATOR));
         }
 
+        count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            ComponentName componentName = new ComponentName(mPackageName, in.readString());
+            mServiceInfoCache.put(componentName, ServiceInfo.CREATOR.createFromParcel(in));
+            mServiceIntentFilterCache.put(componentName, in.createTypedArrayList(IntentFilter.CREATOR));
+        }
 
-        datas = mParser.getProviders();
-        for (Object data : datas) {
-            ComponentName componentName = new ComponentName(mPackageName, mParser.readNameFromComponent(data));
-            synchronized (mProviderObjCache) {
-                mProviderObjCache.put(componentName, data);
-            }
-            synchronized (mProviderInfoCache) {
-                ProviderInfo value = mParser.generateProviderInfo(data, 0);
-                fixApplicationInfo(value.applicationInfo);
-                if (TextUtils.isEmpty(value.processName)) {
-                    value.processName = value.packageName;
-                }
-                mProviderInfoCache.put(componentName, value);
-            }
+        count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            ComponentName componentName = new ComponentName(mPackageName, in.readString());
+            mProviderInfoCache.put(componentName, ProviderInfo.CREATOR.createFromParcel(in));
+            mProviderIntentFilterCache.put(componentName, in.createTypedArrayList(IntentFilter.CREATOR));
+        }
 
-            List<IntentFilter> filters = mParser.readIntentFilterFromComponent(data);
-            synchronized (mProviderIntentFilterCache) {
-                mProviderIntentFilterCache.remove(componentName);
-                mProviderIntentFilterCache.put(componentName, new ArrayList<IntentFilter>(filters));
-            }
+        count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            ComponentName componentName = new ComponentName(mPackageName, in.readString());
+            mReceiversInfoCache.put(componentName, ActivityInfo.CREATOR.createFromParcel(in));
+            mReceiverIntentFilterCache.put(componentName, in.createTypedArrayList(IntentFilter.CREATOR));
         }
 
+        count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            ComponentName componentName = new ComponentName(mPackageName, in.readString());
+            mPermissionsInfoCache.put(componentName, PermissionInfo.CREATOR.createFromParcel(in));
+        }
 
-        datas = mParser.getReceivers();
-        for (Object data : datas) {
-            ComponentName componentName = new ComponentName(mPackageName, mParser.readNameFromComponent(data));
-            synchronized (mReceiversObjCache) {
-                mReceiversObjCache.put(componentName, data);
-            }
+        mSignatures = in.createTypedArray(Signature.CREATOR);
+    }
 
-            synchronized (mReceiversInfoCache) {
-                ActivityInfo value = mParser.generateReceiverInfo(data, 0);
-                fixApplicationInfo(value.applicationInfo);
-                if (TextUtils.isEmpty(value.processName)) {
-                    value.processName = value.packageName;
-                }
-                mReceiversInfoCache.put(componentName, value);
-            }
-            List<IntentFilter> filters = mParser.readIntentFilterFromComponent(data);
-            synchronized (mReceiverIntentFilterCache) {
-                mReceiverIntentFilterCache.remove(componentName);
-                mReceiverIntentFilterCache.put(componentName, new ArrayList<IntentFilter>(filters));
-            }
+    /**
+     * 从快照中恢复解析结果，不需要读取apk。
+     * 快照中没有的信息在第一次用到时才会真正解析apk。
+     */
+    public static PluginPackageParser readSnapshot(Context hostContext, File pluginFile, Parcel in) throws Exception {
+        return new PluginPackageParser(hostContext, pluginFile, in);
+    }
+
+    /**
+     * 把组件、IntentFilter、签名等信息写入快照，与{@link #readSnapshot(Context, File, Parcel)}对应。
+     */
+    public void writeSnapshot(Parcel out) throws Exception {
+        out.writeString(mPackageName);
+        getApplicationInfo(CACHED_INFO_FLAGS).writeToParcel(out, 0);
+
+        Parcel packageInfoParcel = Parcel.obtain();
+        try {
+            getPackageInfo(PackageManager.GET_PERMISSIONS).writeToParcel(packageInfoParcel, 0);
+            out.writeByteArray(packageInfoParcel.marshall());
+        } finally {
+            packageInfoParcel.recycle();
         }
 
-        datas = mParser.getInstrumentations();
-        for (Object data : datas) {
-            ComponentName componentName = new ComponentName(mPackageName, mParser.readNameFromComponent(data));
-            synchronized (mInstrumentationObjCache) {
-                mInstrumentationObjCache.put(componentName, data);
+        out.writeStringList(getRequestedPermissions());
+
+        List<ComponentName> components = getActivityComponents();
+        out.writeInt(components.size());
+        for (ComponentName componentName : components) {
+            out.writeString(componentName.getClassName());
+            getActivityInfo(componentName, CACHED_INFO_FLAGS).writeToParcel(out, 0);
+            out.writeTypedList(getActivityIntentFilter(componentName));
+        }
+
+        components = getServiceComponents();
+        out.writeInt(components.size());
+        for (ComponentName componentName : components) {
+            out.writeString(componentName.getClassName());
+            getServiceInfo(componentName, CACHED_INFO_FLAGS).writeToParcel(out, 0);
+            out.writeTypedList(getServiceIntentFilter(componentName));
+        }
+
+        components = getProviderComponents();
+        out.writeInt(components.size());
+        for (ComponentName componentName : components) {
+            out.writeString(componentName.getClassName());
+            getProviderInfo(componentName, CACHED_INFO_FLAGS).writeToParcel(out, 0);
+            out.writeTypedList(getProviderIntentFilter(componentName));
+        }
+
+        components = getReceiverComponents();
+        out.writeInt(components.size());
+        for (ComponentName componentName : components) {
+            out.writeString(componentName.getClassName());
+            getReceiverInfo(componentName, CACHED_INFO_FLAGS).writeToParcel(out, 0);
+            out.writeTypedList(getReceiverIntentFilter(componentName));
+        }
+
+        synchronized (mPermissionsInfoCache) {
+            out.writeInt(mPermissionsInfoCache.size());
+            for (Map.Entry<ComponentName, PermissionInfo> entry : mPermissionsInfoCache.entrySet()) {
+                out.writeString(entry.getKey().getClassName());
+                entry.getValue().writeToParcel(out, 0);
             }
         }
 
-        datas = mParser.getPermissions();
-        for (Object data : datas) {
-            String cls = mParser.readNameFromComponent(data);
-            if (cls != null) {
-                ComponentName componentName = new ComponentName(mPackageName, cls);
-                synchronized (mPermissionsObjCache) {
-                    mPermissionsObjCache.put(componentName, data);
-                }
-                synchronized (mPermissionsInfoCache) {
-                    PermissionInfo value = mParser.generatePermissionInfo(data, 0);
-                    mPermissionsInfoCache.put(componentName, value);
+        out.writeTypedArray(mSignatures, 0);
+    }
+
+    private static boolean isCached(int flags) {
+        return (flags & UNCACHED_FLAGS) == 0;
+    }
+
+    private PackageParser ensureParser() throws Exception {
+        PackageParser parser = mParser;
+        if (parser != null) {
+            return parser;
+        }
+
+        synchronized (this) {
+            if (mParser == null) {
+                parser = PackageParser.newPluginParser(mHostContext);
+                parser.parsePackage(mPluginFile, 0);
+                if (mSignatures != null) {
+                    parser.writeSignature(mSignatures);
                 }
+
+                readComponents(parser, parser.getActivities(), mActivityObjCache, null);
+                readComponents(parser, parser.getServices(), mServiceObjCache, null);
+                readComponents(parser, parser.getProviders(), mProviderObjCache, null);
+                readComponents(parser, parser.getReceivers(), mReceiversObjCache, null);
+                readComponents(parser, parser.getInstrumentations(), mInstrumentationObjCache, null);
+                readComponents(parser, parser.getPermissions(), mPermissionsObjCache, null);
+                readComponents(parser, parser.getPermissionGroups(), mPermissionGroupObjCache, null);
+                mParser = parser;
             }
+            return mParser;
         }
+    }
 
-        datas = mParser.getPermissionGroups();
+    private void readComponents(PackageParser parser, List datas, Map<ComponentName, Object> objCache,
+            Map<ComponentName, List<IntentFilter>> filterCache) throws Exception {
         for (Object data : datas) {
-            String cls = mParser.readNameFromComponent(data);
-            if (cls != null) {
-                ComponentName componentName = new ComponentName(mPackageName, mParser.readNameFromComponent(data));
-                synchronized (mPermissionGroupObjCache) {
-                    mPermissionGroupObjCache.put(componentName, data);
+            String cls = parser.readNameFromComponent(data);
+            if (cls == null) {
+                continue;
+            }
+
+            ComponentName componentName = new ComponentName(mPackageName, cls);
+            synchronized (objCache) {
+                objCache.put(componentName, data);
+            }
+
+            if (filterCache != null) {
+                List<IntentFilter> filters = parser.readIntentFilterFromComponent(data);
+                synchronized (filterCache) {
+                    filterCache.put(componentName, new ArrayList<IntentFilter>(filters));
                 }
             }
         }
+    }
 
-        List<String> requestedPermissions = mParser.getRequestedPermissions();
-        if (requestedPermissions != null && requestedPermissions.size() > 0) {
-            synchronized (mRequestedPermissionsCache) {
-                mRequestedPermissionsCache.addAll(requestedPermissions);
-            }
+    private Object getComponentObj(Map<ComponentName, Object> objCache, ComponentName className) throws Exception {
+        ensureParser();
+        synchronized (objCache) {
+            return objCache.get(className);
         }
     }
 
@@ -234,7 +323,31 @@ public class PluginPackageParser {
     }
 
     public void collectCertificates(int flags) throws Exception {
-        mParser.collectCertificates(flags);
+        ensureParser().collectCertificates(flags);
+    }
+
+    public List<ComponentName> getActivityComponents() {
+        synchronized (mActivityIntentFilterCache) {
+            return new ArrayList<ComponentName>(mActivityIntentFilterCache.keySet());
+        }
+    }
+
+    public List<ComponentName> getServiceComponents() {
+        synchronized (mServiceIntentFilterCache) {
+            return new ArrayList<ComponentName>(mServiceIntentFilterCache.keySet());
+        }
+    }
+
+    public List<ComponentName> getProviderComponents() {
+        synchronized (mProviderIntentFilterCache) {
+            return new ArrayList<ComponentName>(mProviderIntentFilterCache.keySet());
+        }
+    }
+
+    public List<ComponentName> getReceiverComponents() {
+        synchronized (mReceiverIntentFilterCache) {
+            return new ArrayList<ComponentName>(mReceiverIntentFilterCache.keySet());
+        }
     }
 
     public List<IntentFilter> getActivityIntentFilter(ComponentName className) {
@@ -251,17 +364,37 @@ public class PluginPackageParser {
 
 
     public List<IntentFilter> getProviderIntentFilter(ComponentName className) {
-        synchronized (mProviderObjCache) {
+        synchronized (mProviderIntentFilterCache) {
             return mProviderIntentFilterCache.get(className);
         }
     }
 
+    public List<IntentFilter> getReceiverIntentFilter(ComponentName className) {
+        synchronized (mReceiverIntentFilterCache) {
+            return mReceiverIntentFilterCache.get(className);
+        }
+    }
+
 
     public ActivityInfo getActivityInfo(ComponentName className, int flags) throws Exception {
-        Object data;
-        synchronized (mActivityObjCache) {
-            data = mActivityObjCache.get(className);
+        if (isCached(flags)) {
+            ActivityInfo activityInfo;
+            synchronized (mActivityInfoCache) {
+                activityInfo = mActivityInfoCache.get(className);
+                if (activityInfo == null && getActivityIntentFilter(className) != null) {
+                    activityInfo = generateActivityInfo(className, CACHED_INFO_FLAGS);
+                    if (activityInfo != null) {
+                        mActivityInfoCache.put(className, activityInfo);
+                    }
+                }
+            }
+            return activityInfo != null ? copyActivityInfo(activityInfo, flags) : null;
         }
+        return generateActivityInfo(className, flags);
+    }
+
+    private ActivityInfo generateActivityInfo(ComponentName className, int flags) throws Exception {
+        Object data = getComponentObj(mActivityObjCache, className);
         if (data != null) {
             ActivityInfo activityInfo = mParser.generateActivityInfo(data, flags);
             fixApplicationInfo(activityInfo.applicationInfo);
@@ -274,10 +407,24 @@ public class PluginPackageParser {
     }
 
     public ServiceInfo getServiceInfo(ComponentName className, int flags) throws Exception {
-        Object data;
-        synchronized (mServiceObjCache) {
-            data = mServiceObjCache.get(className);
+        if (isCached(flags)) {
+            ServiceInfo serviceInfo;
+            synchronized (mServiceInfoCache) {
+                serviceInfo = mServiceInfoCache.get(className);
+                if (serviceInfo == null && getServiceIntentFilter(className) != null) {
+                    serviceInfo = generateServiceInfo(className, CACHED_INFO_FLAGS);
+                    if (serviceInfo != null) {
+                        mServiceInfoCache.put(className, serviceInfo);
+                    }
+                }
+            }
+            return serviceInfo != null ? copyServiceInfo(serviceInfo, flags) : null;
         }
+        return generateServiceInfo(className, flags);
+    }
+
+    private ServiceInfo generateServiceInfo(ComponentName className, int flags) throws Exception {
+        Object data = getComponentObj(mServiceObjCache, className);
         if (data != null) {
             ServiceInfo serviceInfo = mParser.generateServiceInfo(data, flags);
             fixApplicationInfo(serviceInfo.applicationInfo);
@@ -290,10 +437,24 @@ public class PluginPackageParser {
     }
 
     public ActivityInfo getReceiverInfo(ComponentName className, int flags) throws Exception {
-        Object data;
-        synchronized (mReceiversObjCache) {
-            data = mReceiversObjCache.get(className);
+        if (isCached(flags)) {
+            ActivityInfo activityInfo;
+            synchronized (mReceiversInfoCache) {
+                activityInfo = mReceiversInfoCache.get(className);
+                if (activityInfo == null && getReceiverIntentFilter(className) != null) {
+                    activityInfo = generateReceiverInfo(className, CACHED_INFO_FLAGS);
+                    if (activityInfo != null) {
+                        mReceiversInfoCache.put(className, activityInfo);
+                    }
+                }
+            }
+            return activityInfo != null ? copyActivityInfo(activityInfo, flags) : null;
         }
+        return generateReceiverInfo(className, flags);
+    }
+
+    private ActivityInfo generateReceiverInfo(ComponentName className, int flags) throws Exception {
+        Object data = getComponentObj(mReceiversObjCache, className);
         if (data != null) {
             ActivityInfo activityInfo = mParser.generateReceiverInfo(data, flags);
             fixApplicationInfo(activityInfo.applicationInfo);
@@ -307,10 +468,24 @@ public class PluginPackageParser {
 
 
     public ProviderInfo getProviderInfo(ComponentName className, int flags) throws Exception {
-        Object data;
-        synchronized (mProviderObjCache) {
-            data = mProviderObjCache.get(className);
+        if (isCached(flags)) {
+            ProviderInfo providerInfo;
+            synchronized (mProviderInfoCache) {
+                providerInfo = mProviderInfoCache.get(className);
+                if (providerInfo == null && getProviderIntentFilter(className) != null) {
+                    providerInfo = generateProviderInfo(className, CACHED_INFO_FLAGS);
+                    if (providerInfo != null) {
+                        mProviderInfoCache.put(className, providerInfo);
+                    }
+                }
+            }
+            return providerInfo != null ? copyProviderInfo(providerInfo, flags) : null;
         }
+        return generateProviderInfo(className, flags);
+    }
+
+    private ProviderInfo generateProviderInfo(ComponentName className, int flags) throws Exception {
+        Object data = getComponentObj(mProviderObjCache, className);
         if (data != null) {
             ProviderInfo providerInfo = mParser.generateProviderInfo(data, flags);
             fixApplicationInfo(providerInfo.applicationInfo);
@@ -323,10 +498,7 @@ public class PluginPackageParser {
     }
 
     public InstrumentationInfo getInstrumentationInfo(ComponentName className, int flags) throws Exception {
-        Object data;
-        synchronized (mInstrumentationObjCache) {
-            data = mInstrumentationObjCache.get(className);
-        }
+        Object data = getComponentObj(mInstrumentationObjCache, className);
         if (data != null) {
             return mParser.generateInstrumentationInfo(data, flags);
         }
@@ -334,7 +506,19 @@ public class PluginPackageParser {
     }
 
     public ApplicationInfo getApplicationInfo(int flags) throws Exception {
-        ApplicationInfo applicationInfo = mParser.generateApplicationInfo(flags);
+        if (isCached(flags)) {
+            synchronized (this) {
+                if (mApplicationInfo == null) {
+                    mApplicationInfo = generateApplicationInfo(CACHED_INFO_FLAGS);
+                }
+                return copyApplicationInfo(mApplicationInfo, flags);
+            }
+        }
+        return generateApplicationInfo(flags);
+    }
+
+    private ApplicationInfo generateApplicationInfo(int flags) throws Exception {
+        ApplicationInfo applicationInfo = ensureParser().generateApplicationInfo(flags);
         fixApplicationInfo(applicationInfo);
         if (TextUtils.isEmpty(applicationInfo.processName)) {
             applicationInfo.processName = applicationInfo.packageName;
@@ -344,10 +528,7 @@ public class PluginPackageParser {
 
 
     public PermissionGroupInfo getPermissionGroupInfo(ComponentName className, int flags) throws Exception {
-        Object data;
-        synchronized (mPermissionGroupObjCache) {
-            data = mPermissionGroupObjCache.get(className);
-        }
+        Object data = getComponentObj(mPermissionGroupObjCache, className);
         if (data != null) {
             return mParser.generatePermissionGroupInfo(data, flags);
         }
@@ -355,10 +536,15 @@ public class PluginPackageParser {
     }
 
     public PermissionInfo getPermissionInfo(ComponentName className, int flags) throws Exception {
-        Object data;
-        synchronized (mPermissionsObjCache) {
-            data = mPermissionsObjCache.get(className);
+        if (mParser == null && isCached(flags)) {
+            PermissionInfo info;
+            synchronized (mPermissionsInfoCache) {
+                info = mPermissionsInfoCache.get(className);
+            }
+            return info != null ? new PermissionInfo(info) : null;
         }
+
+        Object data = getComponentObj(mPermissionsObjCache, className);
         if (data != null) {
             return mParser.generatePermissionInfo(data, flags);
         }
@@ -366,12 +552,17 @@ public class PluginPackageParser {
     }
 
     public PackageInfo getPackageInfo(int flags) throws Exception {
+        if (mSnapshotPackageInfo != null && isCached(flags) &&
+                ((flags & PackageManager.GET_SIGNATURES) == 0 || mSignatures != null)) {
+            return getSnapshotPackageInfo(flags);
+        }
+
         // TODO
         if ((flags & PackageManager.GET_SIGNATURES) != 0 && mSignatures == null) {
             collectCertificates(flags);
         }
 
-        PackageInfo packageInfo = mParser.generatePackageInfo(mHostPackageInfo.gids, flags, mPluginFile.lastModified(), mPluginFile.lastModified(), new HashSet<String>(getRequestedPermissions()));
+        PackageInfo packageInfo = ensureParser().generatePackageInfo(mHostPackageInfo.gids, flags, mPluginFile.lastModified(), mPluginFile.lastModified(), new HashSet<String>(getRequestedPermissions()));
         fixPackageInfo(packageInfo);
 
         if ((flags & PackageManager.GET_SIGNATURES) != 0 && mSignatures == null &&
@@ -384,23 +575,41 @@ public class PluginPackageParser {
 
 
     public List<ActivityInfo> getActivities() throws Exception {
-        return new ArrayList<ActivityInfo>(mActivityInfoCache.values());
+        List<ActivityInfo> activityInfos = new ArrayList<ActivityInfo>();
+        for (ComponentName componentName : getActivityComponents()) {
+            activityInfos.add(getActivityInfo(componentName, 0));
+        }
+        return activityInfos;
     }
 
     public List<ServiceInfo> getServices() throws Exception {
-        return new ArrayList<ServiceInfo>(mServiceInfoCache.values());
+        List<ServiceInfo> serviceInfos = new ArrayList<ServiceInfo>();
+        for (ComponentName componentName : getServiceComponents()) {
+            serviceInfos.add(getServiceInfo(componentName, 0));
+        }
+        return serviceInfos;
     }
 
     public List<ProviderInfo> getProviders() throws Exception {
-        return new ArrayList<ProviderInfo>(mProviderInfoCache.values());
+        List<ProviderInfo> providerInfos = new ArrayList<ProviderInfo>();
+        for (ComponentName componentName : getProviderComponents()) {
+            providerInfos.add(getProviderInfo(componentName, 0));
+        }
+        return providerInfos;
     }
 
     public List<ActivityInfo> getReceivers() throws Exception {
-        return new ArrayList<ActivityInfo>(mReceiversInfoCache.values());
+        List<ActivityInfo> receiverInfos = new ArrayList<ActivityInfo>();
+        for (ComponentName componentName : getReceiverComponents()) {
+            receiverInfos.add(getReceiverInfo(componentName, 0));
+        }
+        return receiverInfos;
     }
 
     public List<PermissionInfo> getPermissions() throws Exception {
-        return new ArrayList<PermissionInfo>(mPermissionsInfoCache.values());
+        synchronized (mPermissionsInfoCache) {
+            return new ArrayList<PermissionInfo>(mPermissionsInfoCache.values());
+        }
     }
 
     public List<PermissionGroupInfo> getPermissionGroups() throws Exception {
@@ -422,6 +631,100 @@ public class PluginPackageParser {
     }
 
 
+    private PackageInfo getSnapshotPackageInfo(int flags) throws Exception {
+        PackageInfo packageInfo;
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(mSnapshotPackageInfo, 0, mSnapshotPackageInfo.length);
+            parcel.setDataPosition(0);
+            packageInfo = PackageInfo.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+
+        packageInfo.applicationInfo = getApplicationInfo(flags);
+
+        if ((flags & PackageManager.GET_PERMISSIONS) == 0) {
+            packageInfo.permissions = null;
+            packageInfo.requestedPermissions = null;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                packageInfo.requestedPermissionsFlags = null;
+            }
+        }
+
+        if ((flags & PackageManager.GET_ACTIVITIES) != 0) {
+            List<ComponentName> components = getActivityComponents();
+            packageInfo.activities = new ActivityInfo[components.size()];
+            for (int i = 0; i < components.size(); i++) {
+                packageInfo.activities[i] = getActivityInfo(components.get(i), flags);
+            }
+        }
+
+        if ((flags & PackageManager.GET_RECEIVERS) != 0) {
+            List<ComponentName> components = getReceiverComponents();
+            packageInfo.receivers = new ActivityInfo[components.size()];
+            for (int i = 0; i < components.size(); i++) {
+                packageInfo.receivers[i] = getReceiverInfo(components.get(i), flags);
+            }
+        }
+
+        if ((flags & PackageManager.GET_SERVICES) != 0) {
+            List<ComponentName> components = getServiceComponents();
+            packageInfo.services = new ServiceInfo[components.size()];
+            for (int i = 0; i < components.size(); i++) {
+                packageInfo.services[i] = getServiceInfo(components.get(i), flags);
+            }
+        }
+
+        if ((flags & PackageManager.GET_PROVIDERS) != 0) {
+            List<ComponentName> components = getProviderComponents();
+            packageInfo.providers = new ProviderInfo[components.size()];
+            for (int i = 0; i < components.size(); i++) {
+                packageInfo.providers[i] = getProviderInfo(components.get(i), flags);
+            }
+        }
+
+        if ((flags & PackageManager.GET_SIGNATURES) != 0) {
+            packageInfo.signatures = mSignatures.clone();
+        }
+
+        return packageInfo;
+    }
+
+    private static ApplicationInfo copyApplicationInfo(ApplicationInfo info, int flags) {
+        ApplicationInfo applicationInfo = new ApplicationInfo(info);
+        applicationInfo.metaData = copyMetaData(info.metaData, flags);
+        return applicationInfo;
+    }
+
+    private static ActivityInfo copyActivityInfo(ActivityInfo info, int flags) {
+        ActivityInfo activityInfo = new ActivityInfo(info);
+        activityInfo.metaData = copyMetaData(info.metaData, flags);
+        activityInfo.applicationInfo = copyApplicationInfo(info.applicationInfo, flags);
+        return activityInfo;
+    }
+
+    private static ServiceInfo copyServiceInfo(ServiceInfo info, int flags) {
+        ServiceInfo serviceInfo = new ServiceInfo(info);
+        serviceInfo.metaData = copyMetaData(info.metaData, flags);
+        serviceInfo.applicationInfo = copyApplicationInfo(info.applicationInfo, flags);
+        return serviceInfo;
+    }
+
+    private static ProviderInfo copyProviderInfo(ProviderInfo info, int flags) {
+        ProviderInfo providerInfo = new ProviderInfo(info);
+        providerInfo.metaData = copyMetaData(info.metaData, flags);
+        providerInfo.applicationInfo = copyApplicationInfo(info.applicationInfo, flags);
+        return providerInfo;
+    }
+
+    private static Bundle copyMetaData(Bundle metaData, int flags) {
+        if ((flags & PackageManager.GET_META_DATA) == 0 || metaData == null) {
+            return null;
+        }
+        return new Bundle(metaData);
+    }
+
     private ApplicationInfo fixApplicationInfo(ApplicationInfo applicationInfo) {
         if (applicationInfo.sourceDir == null) {
             applicationInfo.sourceDir = mPluginFile.getPath();
@@ -500,30 +803,25 @@ public class PluginPackageParser {
     }
 
 
-    public Map<ActivityInfo, List<IntentFilter>> getReceiverIntentFilter() {
-        synchronized (mReceiverIntentFilterCache) {
-            Map<ActivityInfo, List<IntentFilter>> map = new HashMap<ActivityInfo, List<IntentFilter>>();
-            for (ComponentName componentName : mReceiverIntentFilterCache.keySet()) {
-                map.put(mReceiversInfoCache.get(componentName), mReceiverIntentFilterCache.get(componentName));
-            }
-            return map;
+    public Map<ActivityInfo, List<IntentFilter>> getReceiverIntentFilter() throws Exception {
+        Map<ActivityInfo, List<IntentFilter>> map = new HashMap<ActivityInfo, List<IntentFilter>>();
+        for (ComponentName componentName : getReceiverComponents()) {
+            map.put(getReceiverInfo(componentName, 0), getReceiverIntentFilter(componentName));
         }
+        return map;
     }
 
     public List<IntentFilter> getReceiverIntentFilter(ActivityInfo info) {
-        synchronized (mReceiverIntentFilterCache) {
-            for (ComponentName componentName : mReceiverIntentFilterCache.keySet()) {
-                if (TextUtils.equals(info.name, mReceiversInfoCache.get(componentName).name)) {
-                    return mReceiverIntentFilterCache.get(componentName);
-                }
-            }
-        }
-        return null;
+        return getReceiverIntentFilter(new ComponentName(info.packageName, info.name));
     }
 
     public void writeSignature(Signature[] signatures) throws Exception {
         if (signatures != null) {
-            mParser.writeSignature(signatures);
+            mSignatures = signatures;
+            PackageParser parser = mParser;
+            if (parser != null) {
+                parser.writeSignature(signatures);
+            }
         }
     }
 }
@@ -3,8 +3,12 @@ package com.reginald.pluginm.stub;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.IContentProvider;
+import android.content.pm.ProviderInfo;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Pair;
 
 import com.reginald.pluginm.core.PluginManager;
@@ -12,12 +16,27 @@ import com.reginald.pluginm.utils.Logger;
 
 import java.lang.reflect.Method;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Created by lxy on 16-10-25.
  */
 public class PluginContentResolver extends ContentResolver {
     private static final String TAG = "PluginContentResolver";
+
+    // 进程内缓存的插件provider: authority -> IContentProvider，provider所在进程死亡时移除
+    private static final Map<String, IContentProvider> sProviderCache = new ConcurrentHashMap<>();
+    // authority -> provider所在的桩进程
+    private static final Map<String, String> sProviderProcessMap = new ConcurrentHashMap<>();
+    // authority -> 最近一次上报使用的时间
+    private static final Map<String, Long> sProviderReportTimes = new ConcurrentHashMap<>();
+    // 向core进程上报provider使用的最小间隔，需小于PluginProcess中provider的保护时间
+    private static final long PROVIDER_REPORT_INTERVAL = 10 * 1000;
+    // 原ContentResolver的方法: class#method -> Method
+    private static final Map<String, Method> sMethodCache = new ConcurrentHashMap<>();
+
     private Context mAppContext;
     private ContentResolver mOriginContentResolver;
 
@@ -37,8 +56,7 @@ public class PluginContentResolver extends ContentResolver {
                 Logger.d(TAG, "acquireProvider() plugin result = " + iContentProvider);
                 return iContentProvider;
             }
-            Method method = mOriginContentResolver.getClass().getDeclaredMethod("acquireProvider", new Class[]{Context.class, String.class});
-            method.setAccessible(true);
+            Method method = getOriginMethod("acquireProvider", Context.class, String.class);
             iContentProvider = (IContentProvider) method.invoke(mOriginContentResolver, context, auth);
             Logger.d(TAG, "acquireProvider() host result = " + iContentProvider);
             return iContentProvider;
@@ -57,8 +75,7 @@ public class PluginContentResolver extends ContentResolver {
             if (iContentProvider != null) {
                 return iContentProvider;
             }
-            Method method = mOriginContentResolver.getClass().getDeclaredMethod("acquireExistingProvider", new Class[]{Context.class, String.class});
-            method.setAccessible(true);
+            Method method = getOriginMethod("acquireExistingProvider", Context.class, String.class);
             return (IContentProvider) method.invoke(mOriginContentResolver, context, auth);
         } catch (Exception e) {
             Logger.e(TAG, "acquireExistingProvider() error!", e);
@@ -71,8 +88,7 @@ public class PluginContentResolver extends ContentResolver {
     public boolean releaseProvider(IContentProvider provider) {
         Logger.d(TAG, "releaseProvider() IContentProvider = " + provider);
         try {
-            Method method = mOriginContentResolver.getClass().getDeclaredMethod("releaseProvider", new Class[]{IContentProvider.class});
-            method.setAccessible(true);
+            Method method = getOriginMethod("releaseProvider", IContentProvider.class);
             method.invoke(mOriginContentResolver, provider);
         } catch (Exception e) {
             Logger.e(TAG, "releaseProvider() error!", e);
@@ -91,8 +107,7 @@ public class PluginContentResolver extends ContentResolver {
                 return iContentProvider;
             }
 
-            Method method = mOriginContentResolver.getClass().getDeclaredMethod("acquireUnstableProvider", new Class[]{Context.class, String.class});
-            method.setAccessible(true);
+            Method method = getOriginMethod("acquireUnstableProvider", Context.class, String.class);
             iContentProvider = (IContentProvider) method.invoke(mOriginContentResolver, context, auth);
             Logger.d(TAG, "acquireUnstableProvider() host result = " + iContentProvider);
             return iContentProvider;
@@ -107,8 +122,7 @@ public class PluginContentResolver extends ContentResolver {
     public boolean releaseUnstableProvider(IContentProvider icp) {
         Logger.d(TAG, "releaseUnstableProvider() IContentProvider = " + icp);
         try {
-            Method method = mOriginContentResolver.getClass().getDeclaredMethod("releaseUnstableProvider", new Class[]{IContentProvider.class});
-            method.setAccessible(true);
+            Method method = getOriginMethod("releaseUnstableProvider", IContentProvider.class);
             return (Boolean) method.invoke(mOriginContentResolver, icp);
         } catch (Exception e) {
             Logger.e(TAG, "releaseUnstableProvider() error!", e);
@@ -120,9 +134,9 @@ public class PluginContentResolver extends ContentResolver {
     /** @Override **/
     public void unstableProviderDied(IContentProvider icp) {
         Logger.d(TAG, "acquireProvider() IContentProvider = " + icp);
+        removeProviders(icp.asBinder());
         try {
-            Method method = mOriginContentResolver.getClass().getDeclaredMethod("unstableProviderDied", new Class[]{IContentProvider.class});
-            method.setAccessible(true);
+            Method method = getOriginMethod("unstableProviderDied", IContentProvider.class);
             method.invoke(mOriginContentResolver, icp);
         } catch (Exception e) {
             Logger.e(TAG, "acquireProvider() error!", e);
@@ -133,24 +147,99 @@ public class PluginContentResolver extends ContentResolver {
     public void appNotRespondingViaProvider(IContentProvider icp) {
         Logger.d(TAG, "appNotRespondingViaProvider() IContentProvider = " + icp);
         try {
-            Method method = mOriginContentResolver.getClass().getDeclaredMethod("appNotRespondingViaProvider", new Class[]{IContentProvider.class});
-            method.setAccessible(true);
+            Method method = getOriginMethod("appNotRespondingViaProvider", IContentProvider.class);
             method.invoke(mOriginContentResolver, icp);
         } catch (Exception e) {
             Logger.e(TAG, "appNotRespondingViaProvider() error!", e);
         }
     }
 
+    private Method getOriginMethod(String name, Class<?>... parameterTypes) throws NoSuchMethodException {
+        Class<?> clazz = mOriginContentResolver.getClass();
+        String key = clazz.getName() + "#" + name;
+        Method method = sMethodCache.get(key);
+        if (method == null) {
+            method = clazz.getDeclaredMethod(name, parameterTypes);
+            method.setAccessible(true);
+            sMethodCache.put(key, method);
+        }
+        return method;
+    }
+
     private IContentProvider getTargetProvider(String auth) {
+        IContentProvider iContentProvider = sProviderCache.get(auth);
+        if (iContentProvider != null) {
+            if (iContentProvider.asBinder().isBinderAlive()) {
+                reportProviderUsed(auth, false);
+                return iContentProvider;
+            }
+            sProviderCache.remove(auth);
+        }
+
         Pair<Uri, Bundle> uriAndBundle = PluginManager.getInstance().getPluginProviderUri(auth);
         Logger.d(TAG, "getTargetProvider() auth = " + auth + "  ->  uriAndBundle = " + uriAndBundle);
         if (uriAndBundle != null) {
-            return getIContentProvider(uriAndBundle);
+            iContentProvider = getIContentProvider(uriAndBundle);
+            if (iContentProvider != null) {
+                ProviderInfo stubInfo = uriAndBundle.second != null ?
+                        (ProviderInfo) uriAndBundle.second.getParcelable(PluginManager.EXTRA_INTENT_STUB_INFO) : null;
+                if (stubInfo != null) {
+                    sProviderProcessMap.put(auth, stubInfo.processName);
+                }
+                cacheProvider(auth, iContentProvider);
+                // 获取provider时桩进程可能刚刚启动，立即上报一次
+                reportProviderUsed(auth, true);
+            }
+            return iContentProvider;
         }
 
         return null;
     }
 
+    /**
+     * provider的调用不经过core进程，定期上报使用情况，避免provider所在的插件进程被当作空闲进程回收
+     */
+    private static void reportProviderUsed(String auth, boolean isForce) {
+        String stubProcessName = sProviderProcessMap.get(auth);
+        if (stubProcessName == null) {
+            return;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        Long lastReportTime = sProviderReportTimes.get(auth);
+        if (!isForce && lastReportTime != null && now - lastReportTime < PROVIDER_REPORT_INTERVAL) {
+            return;
+        }
+        sProviderReportTimes.put(auth, now);
+        PluginManager.getInstance().onProviderUsed(stubProcessName);
+    }
+
+    private static void cacheProvider(String auth, IContentProvider iContentProvider) {
+        final IBinder binder = iContentProvider.asBinder();
+        try {
+            binder.linkToDeath(new IBinder.DeathRecipient() {
+                @Override
+                public void binderDied() {
+                    Logger.w(TAG, "cacheProvider() provider died! binder = " + binder);
+                    binder.unlinkToDeath(this, 0);
+                    removeProviders(binder);
+                }
+            }, 0);
+            sProviderCache.put(auth, iContentProvider);
+        } catch (RemoteException e) {
+            Logger.e(TAG, "cacheProvider() provider already died! auth = " + auth, e);
+        }
+    }
+
+    private static void removeProviders(IBinder binder) {
+        Iterator<IContentProvider> iterator = sProviderCache.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().asBinder() == binder) {
+                iterator.remove();
+            }
+        }
+    }
+
     private IContentProvider getIContentProvider(Pair<Uri, Bundle> uriAndBundle) {
         Logger.d(TAG, "getIContentProvider() uriAndBundle = " + uriAndBundle);
         final Uri uri = uriAndBundle.first;
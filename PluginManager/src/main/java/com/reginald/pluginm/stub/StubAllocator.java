@@ -0,0 +1,253 @@
+package com.reginald.pluginm.stub;
+
+import android.os.SystemClock;
+
+import com.reginald.pluginm.utils.Logger;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 桩进程分配器，key为插件(或插件进程)，每个桩进程同时只分配给一个key。
+ * <p>
+ * 进程的存活状态由插件进程attach和binder死亡通知维护，不再调用ActivityManager.getRunningAppProcesses()，
+ * 空闲的桩进程保存在空闲队列中，分配和释放都是O(1)。
+ * 只有空闲队列为空时才扫描一次，回收分配后迟迟没有启动的桩进程。
+ * <p>
+ * 预热的桩进程：先预留(warming)，attach后进入预热队列(warm)，分配时优先使用，无需再等待进程启动。
+ */
+class StubAllocator<K> {
+
+    private static final String TAG = "StubAllocator";
+
+    // 分配后超过这个时间仍未attach的桩进程视为启动失败，可以回收
+    private static final long PENDING_TIMEOUT = 10 * 1000;
+
+    private final ArrayDeque<StubManager.ProcessInfo> mFreeStubs;
+    private final Map<K, StubManager.ProcessInfo> mAllocatedStubs = new HashMap<>();
+    // 桩进程名 -> key
+    private final Map<String, K> mOwners = new HashMap<>();
+    // 已分配但尚未attach的桩进程 -> 分配时间
+    private final Map<String, Long> mPendingStubs = new HashMap<>();
+    // 桩进程名 -> 因桩进程不足而共用该进程的key
+    private final Map<String, List<K>> mGuests = new HashMap<>();
+    // 没有经过分配就启动的桩进程(如系统恢复的页面)，死亡前不能分配给其它插件
+    private final Set<String> mUnownedStubs = new HashSet<>();
+    private final Map<String, StubManager.ProcessInfo> mAllStubs = new HashMap<>();
+    // 已启动、尚未分配的预热桩进程
+    private final ArrayDeque<StubManager.ProcessInfo> mWarmStubs = new ArrayDeque<>();
+    // 已预留、正在启动的预热桩进程
+    private final Set<String> mWarmingStubs = new HashSet<>();
+
+    private final StubManager.StubProcessListener mListener;
+
+    public StubAllocator(List<StubManager.ProcessInfo> stubProcessInfos, StubManager.StubProcessListener listener) {
+        mListener = listener;
+        mFreeStubs = new ArrayDeque<>(Math.max(1, stubProcessInfos.size()));
+        for (StubManager.ProcessInfo processInfo : stubProcessInfos) {
+            mFreeStubs.addLast(processInfo);
+            mAllStubs.put(processInfo.processName, processInfo);
+        }
+    }
+
+    /**
+     * 返回已分配给key的桩进程，未分配时从空闲队列中分配一个
+     *
+     * @return 桩进程已全部占用时返回null
+     */
+    public synchronized StubManager.ProcessInfo allocate(K key) {
+        StubManager.ProcessInfo processInfo = mAllocatedStubs.get(key);
+        if (processInfo != null) {
+            return processInfo;
+        }
+
+        processInfo = mWarmStubs.pollFirst();
+        boolean isWarm = processInfo != null;
+        if (processInfo == null) {
+            processInfo = mFreeStubs.pollFirst();
+        }
+        if (processInfo == null) {
+            processInfo = reclaimPendingStub();
+            if (processInfo == null) {
+                return null;
+            }
+        }
+
+        mAllocatedStubs.put(key, processInfo);
+        mOwners.put(processInfo.processName, key);
+        if (!isWarm) {
+            mPendingStubs.put(processInfo.processName, SystemClock.elapsedRealtime());
+        }
+        Logger.d(TAG, String.format("allocate() %s -> %s, warm? %b, %d free, %d warm", key, processInfo.processName,
+                isWarm, mFreeStubs.size(), mWarmStubs.size()));
+        if (mListener != null) {
+            mListener.onStubAllocated(processInfo.processName, isWarm);
+        }
+        return processInfo;
+    }
+
+    /**
+     * 等待空闲的桩进程，直到超时
+     *
+     * @return 超时时返回null
+     */
+    public synchronized StubManager.ProcessInfo allocate(K key, long timeout) {
+        long deadline = SystemClock.elapsedRealtime() + timeout;
+        StubManager.ProcessInfo processInfo = allocate(key);
+        while (processInfo == null) {
+            long remain = deadline - SystemClock.elapsedRealtime();
+            if (remain <= 0) {
+                return null;
+            }
+            try {
+                wait(remain);
+            } catch (InterruptedException e) {
+                Logger.w(TAG, "allocate() interrupted for " + key);
+                return null;
+            }
+            processInfo = allocate(key);
+        }
+        return processInfo;
+    }
+
+    /**
+     * 把key分配到已被占用的桩进程中，与原插件共用进程，桩进程死亡时一起释放
+     */
+    public synchronized void colocate(K key, StubManager.ProcessInfo processInfo) {
+        List<K> guests = mGuests.get(processInfo.processName);
+        if (guests == null) {
+            guests = new ArrayList<>(2);
+            mGuests.put(processInfo.processName, guests);
+        }
+        guests.add(key);
+        mAllocatedStubs.put(key, processInfo);
+        Logger.d(TAG, String.format("colocate() %s -> %s", key, processInfo.processName));
+    }
+
+    /**
+     * 预留一个空闲的桩进程用于预热
+     *
+     * @return 没有空闲的桩进程时返回null
+     */
+    public synchronized StubManager.ProcessInfo reserveWarm() {
+        StubManager.ProcessInfo processInfo = mFreeStubs.pollFirst();
+        if (processInfo != null) {
+            mWarmingStubs.add(processInfo.processName);
+        }
+        return processInfo;
+    }
+
+    /**
+     * 预热启动失败，归还预留的桩进程
+     */
+    public synchronized void cancelWarm(String stubProcessName) {
+        if (mWarmingStubs.remove(stubProcessName)) {
+            mFreeStubs.addFirst(mAllStubs.get(stubProcessName));
+            notifyAll();
+        }
+    }
+
+    /**
+     * 取出一个未使用的预热桩进程以便结束它，进程死亡后归还到空闲队列
+     */
+    public synchronized StubManager.ProcessInfo takeWarm() {
+        StubManager.ProcessInfo processInfo = mWarmStubs.pollLast();
+        if (processInfo != null) {
+            mUnownedStubs.add(processInfo.processName);
+        }
+        return processInfo;
+    }
+
+    public synchronized int getWarmCount() {
+        return mWarmStubs.size() + mWarmingStubs.size();
+    }
+
+    public synchronized K getOwner(String stubProcessName) {
+        return mOwners.get(stubProcessName);
+    }
+
+    public synchronized void onProcessAttached(String stubProcessName) {
+        StubManager.ProcessInfo processInfo = mAllStubs.get(stubProcessName);
+        if (processInfo == null) {
+            return;
+        }
+
+        mPendingStubs.remove(stubProcessName);
+        if (mWarmingStubs.remove(stubProcessName)) {
+            mWarmStubs.addLast(processInfo);
+            notifyAll();
+            Logger.d(TAG, "onProcessAttached() " + stubProcessName + " is warm.");
+            return;
+        }
+        if (!mOwners.containsKey(stubProcessName) && !mUnownedStubs.contains(stubProcessName) &&
+                mFreeStubs.remove(processInfo)) {
+            mUnownedStubs.add(stubProcessName);
+            Logger.w(TAG, "onProcessAttached() " + stubProcessName + " started without allocation.");
+        }
+    }
+
+    public synchronized void onProcessDied(String stubProcessName) {
+        StubManager.ProcessInfo processInfo = mAllStubs.get(stubProcessName);
+        if (processInfo == null) {
+            return;
+        }
+
+        mPendingStubs.remove(stubProcessName);
+        boolean isOccupied = mUnownedStubs.remove(stubProcessName) || mOwners.containsKey(stubProcessName) ||
+                mWarmingStubs.remove(stubProcessName) || mWarmStubs.remove(processInfo);
+        K key = mOwners.remove(stubProcessName);
+        if (key != null) {
+            mAllocatedStubs.remove(key);
+        }
+        List<K> guests = mGuests.remove(stubProcessName);
+        if (guests != null) {
+            for (K guest : guests) {
+                mAllocatedStubs.remove(guest);
+            }
+        }
+        // 未被占用的桩进程本来就在空闲队列中
+        if (isOccupied) {
+            mFreeStubs.addFirst(processInfo);
+            notifyAll();
+        }
+        Logger.d(TAG, String.format("onProcessDied() %s released from %s, %d free",
+                stubProcessName, key, mFreeStubs.size()));
+    }
+
+    public synchronized int getFreeCount() {
+        return mFreeStubs.size();
+    }
+
+    private StubManager.ProcessInfo reclaimPendingStub() {
+        long now = SystemClock.elapsedRealtime();
+        Iterator<Map.Entry<String, Long>> iterator = mPendingStubs.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            if (now - entry.getValue() > PENDING_TIMEOUT) {
+                iterator.remove();
+                String stubProcessName = entry.getKey();
+                K key = mOwners.remove(stubProcessName);
+                if (key != null) {
+                    mAllocatedStubs.remove(key);
+                }
+                Logger.w(TAG, String.format("reclaimPendingStub() %s allocated to %s never started, reclaim it.",
+                        stubProcessName, key));
+                return mAllStubs.get(stubProcessName);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("StubAllocator[ free = %d, allocated = %s, pending = %s, unowned = %s, " +
+                        "warm = %d, warming = %s ]",
+                mFreeStubs.size(), mOwners, mPendingStubs.keySet(), mUnownedStubs, mWarmStubs.size(), mWarmingStubs);
+    }
+}
@@ -1,6 +1,5 @@
 package com.reginald.pluginm.stub;
 
-import android.app.ActivityManager;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
@@ -12,11 +11,15 @@ import android.content.pm.PackageManager;
 import android.content.pm.ProviderInfo;
 import android.content.pm.ResolveInfo;
 import android.content.pm.ServiceInfo;
+import android.os.Process;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Pair;
+import android.util.SparseArray;
 import android.widget.Toast;
 
 import com.reginald.pluginm.BuildConfig;
+import com.reginald.pluginm.PluginConfigs;
 import com.reginald.pluginm.PluginM;
 import com.reginald.pluginm.core.PluginManagerService;
 import com.reginald.pluginm.core.PluginProcess;
@@ -28,11 +31,9 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Created by lxy on 16-10-31.
@@ -58,6 +59,25 @@ public class StubManager {
      */
     public static final int PROCESS_TYPE_COMPLETE = 3;
 
+    /**
+     * 桩进程耗尽时直接失败
+     */
+    public static final int STUB_EXHAUST_POLICY_FAIL = 0;
+
+    /**
+     * 桩进程耗尽时结束最久未活动的空闲插件进程，并等待其释放
+     */
+    public static final int STUB_EXHAUST_POLICY_EVICT_LRU = 1;
+
+    /**
+     * 桩进程耗尽时与其它插件共用插件最少的进程，仅用于PROCESS_TYPE_INDEPENDENT模式
+     */
+    public static final int STUB_EXHAUST_POLICY_COLOCATE = 2;
+
+    /**
+     * 桩进程耗尽时排队等待其它桩进程退出，直到超时
+     */
+    public static final int STUB_EXHAUST_POLICY_QUEUE = 3;
 
     private static final String TAG = "StubManager";
     private static final String CATEGORY_ACTIVITY_PROXY_STUB = "com.reginald.pluginm.category.STUB";
@@ -65,13 +85,15 @@ public class StubManager {
     private final Set<String> mStubRequestedPermission = new HashSet<>();
     private final Map<String, ProcessInfo> mStubProcessInfoMap = new HashMap<String, ProcessInfo>(10);
     private final List<ProcessInfo> mStubProcessInfoList = new ArrayList<>(10);
-    // PROCESS_TYPE_INDEPENDENT 模式下的进程分配map: pkgname -> ProcessInfo
-    private final Map<String, ProcessInfo> mPluginSingleProcessMap = new ConcurrentHashMap<>(10);
-    // PROCESS_TYPE_ALL 模式下的进程分配map: pkgname#processname -> ProcessInfo
-    private final Map<Pair<String, String>, ProcessInfo> mPluginWholeProcessMap = new ConcurrentHashMap<>(10);
+    // PROCESS_TYPE_INDEPENDENT 模式下的进程分配: pkgname -> ProcessInfo
+    private StubAllocator<String> mPluginSingleProcessAllocator;
+    // PROCESS_TYPE_COMPLETE 模式下的进程分配: pkgname#processname -> ProcessInfo
+    private StubAllocator<Pair<String, String>> mPluginWholeProcessAllocator;
     private Context mContext;
     private int mProcessType;
     private ApplicationInfo mStubApplicationInfo;
+    private final ExhaustStats mExhaustStats = new ExhaustStats();
+    private volatile StubProcessListener mStubProcessListener;
 
     private StubManager(Context context) {
         mContext = context;
@@ -162,6 +184,17 @@ public class StubManager {
             }
         });
         mStubProcessInfoList.addAll(stubProcessInfos);
+        StubProcessListener listener = new StubProcessListener() {
+            @Override
+            public void onStubAllocated(String stubProcessName, boolean isWarm) {
+                StubProcessListener stubProcessListener = mStubProcessListener;
+                if (stubProcessListener != null) {
+                    stubProcessListener.onStubAllocated(stubProcessName, isWarm);
+                }
+            }
+        };
+        mPluginSingleProcessAllocator = new StubAllocator<>(mStubProcessInfoList, listener);
+        mPluginWholeProcessAllocator = new StubAllocator<>(mStubProcessInfoList, listener);
 
         Logger.d(TAG, "init() " + this);
 
@@ -187,24 +220,25 @@ public class StubManager {
     public ActivityInfo selectStubActivity(ActivityInfo activityInfo) {
         ProcessInfo processInfo = selectStubProcess(activityInfo);
 
-        List<ActivityInfo> stubActivities = processInfo.getStubActivities();
-
-        for (ActivityInfo stubActivityInfo : stubActivities) {
-            if (stubActivityInfo.launchMode == activityInfo.launchMode) {
-                switch (stubActivityInfo.launchMode) {
-                    case ActivityInfo.LAUNCH_MULTIPLE:
-                        return stubActivityInfo;
-                    case ActivityInfo.LAUNCH_SINGLE_INSTANCE:
-                    case ActivityInfo.LAUNCH_SINGLE_TASK:
-                    case ActivityInfo.LAUNCH_SINGLE_TOP:
-                        PluginProcess pluginProcess = PluginManagerService.getInstance(mContext).
-                                getPluginProcess(processInfo.processName);
+        // 只查找相同launchMode的桩
+        List<ActivityInfo> stubActivities = processInfo.getStubActivities(activityInfo.launchMode);
+
+        if (!stubActivities.isEmpty()) {
+            switch (activityInfo.launchMode) {
+                case ActivityInfo.LAUNCH_MULTIPLE:
+                    return stubActivities.get(0);
+                case ActivityInfo.LAUNCH_SINGLE_INSTANCE:
+                case ActivityInfo.LAUNCH_SINGLE_TASK:
+                case ActivityInfo.LAUNCH_SINGLE_TOP:
+                    PluginProcess pluginProcess = PluginManagerService.getInstance(mContext).
+                            getPluginProcess(processInfo.processName);
+                    for (ActivityInfo stubActivityInfo : stubActivities) {
                         if (pluginProcess == null ||
                                 pluginProcess.canUseActivity(stubActivityInfo, activityInfo)) {
                             return stubActivityInfo;
                         }
-                        break;
-                }
+                    }
+                    break;
             }
         }
 
@@ -254,12 +288,9 @@ public class StubManager {
                 return stubProcessName;
             }
             case PROCESS_TYPE_COMPLETE: {
-                for (Map.Entry<Pair<String, String>, ProcessInfo> entry : mPluginWholeProcessMap.entrySet()) {
-                    Pair<String, String> pkgAndProcess = entry.getKey();
-                    ProcessInfo processInfo = entry.getValue();
-                    if (stubProcessName.equals(processInfo.processName)) {
-                        return pkgAndProcess.second;
-                    }
+                Pair<String, String> pkgAndProcess = mPluginWholeProcessAllocator.getOwner(stubProcessName);
+                if (pkgAndProcess != null) {
+                    return pkgAndProcess.second;
                 }
             }
         }
@@ -273,13 +304,24 @@ public class StubManager {
     }
 
     public ProcessInfo selectStubProcess(String pluginProcessName, String pkgName) {
-        ProcessInfo processInfo = selectStubProcessInternal(pluginProcessName, pkgName);
+        ProcessInfo processInfo = selectStubProcessInternal(pluginProcessName, pkgName, true);
         Logger.d(TAG, "selectStubProcess() pkg = %s, process = %s -> stub_process = %s",
                 pkgName, pluginProcessName, processInfo != null ? processInfo.processName : "NULL");
         return processInfo;
     }
 
-    private ProcessInfo selectStubProcessInternal(String pluginProcessName, String pkgName) {
+    /**
+     * 与{@link #selectStubProcess(String, String)}相同，但桩进程全部占用时直接返回null，
+     * 不执行{@link PluginConfigs#getStubExhaustPolicy()}(不结束其它进程、不等待、不抛异常)，用于预加载等非必需的场景
+     */
+    public ProcessInfo selectFreeStubProcess(String pluginProcessName, String pkgName) {
+        ProcessInfo processInfo = selectStubProcessInternal(pluginProcessName, pkgName, false);
+        Logger.d(TAG, "selectFreeStubProcess() pkg = %s, process = %s -> stub_process = %s",
+                pkgName, pluginProcessName, processInfo != null ? processInfo.processName : "NULL");
+        return processInfo;
+    }
+
+    private ProcessInfo selectStubProcessInternal(String pluginProcessName, String pkgName, boolean isHandleExhaust) {
         if (mStubProcessInfoList.isEmpty()) {
             throw new RuntimeException("no registered stub process found for plugin process " + pluginProcessName);
         }
@@ -288,20 +330,12 @@ public class StubManager {
 
         switch (mProcessType) {
             case PROCESS_TYPE_INDEPENDENT: {
-                filterPluginProcessMap(mPluginSingleProcessMap);
-
-                ProcessInfo processInfo = mPluginSingleProcessMap.get(pkgName);
-                if (processInfo != null) {
+                ProcessInfo processInfo = mPluginSingleProcessAllocator.allocate(pkgName);
+                if (processInfo != null || !isHandleExhaust) {
                     return processInfo;
                 }
-                for (ProcessInfo p : stubProcessInfos) {
-                    if (!mPluginSingleProcessMap.containsValue(p)) {
-                        mPluginSingleProcessMap.put(pkgName, p);
-                        return p;
-                    }
-                }
 
-                onNowMoreProcessError(pluginProcessName, pkgName);
+                return onStubExhausted(mPluginSingleProcessAllocator, pkgName, pluginProcessName, pkgName);
             }
             case PROCESS_TYPE_SINGLE: {
                 return stubProcessInfos.get(0);
@@ -322,26 +356,129 @@ public class StubManager {
                 }
             }
             case PROCESS_TYPE_COMPLETE: {
-                filterPluginProcessMap(mPluginWholeProcessMap);
                 Pair<String, String> key = new Pair<>(pkgName, pluginProcessName);
-                ProcessInfo processInfo = mPluginWholeProcessMap.get(key);
-                if (processInfo != null) {
+                ProcessInfo processInfo = mPluginWholeProcessAllocator.allocate(key);
+                if (processInfo != null || !isHandleExhaust) {
                     return processInfo;
                 }
-                for (ProcessInfo p : stubProcessInfos) {
-                    if (!mPluginWholeProcessMap.containsValue(p)) {
-                        mPluginWholeProcessMap.put(key, p);
-                        return p;
-                    }
-                }
 
-                onNowMoreProcessError(pluginProcessName, pkgName);
+                return onStubExhausted(mPluginWholeProcessAllocator, key, pluginProcessName, pkgName);
             }
         }
 
         return null;
     }
 
+    /**
+     * 桩进程已全部占用，按{@link PluginConfigs#getStubExhaustPolicy()}处理
+     */
+    private <K> ProcessInfo onStubExhausted(StubAllocator<K> allocator, K key, String pluginProcessName, String pkgName) {
+        PluginConfigs configs = PluginM.getConfigs();
+        int policy = configs.getStubExhaustPolicy();
+        long startTime = SystemClock.elapsedRealtime();
+        ProcessInfo processInfo = null;
+
+        switch (policy) {
+            case STUB_EXHAUST_POLICY_EVICT_LRU: {
+                if (evictIdleProcess(allocator)) {
+                    processInfo = allocator.allocate(key, configs.getStubWaitTimeout());
+                }
+                break;
+            }
+            case STUB_EXHAUST_POLICY_COLOCATE: {
+                if (mProcessType == PROCESS_TYPE_INDEPENDENT) {
+                    processInfo = colocate(allocator, key);
+                }
+                break;
+            }
+            case STUB_EXHAUST_POLICY_QUEUE: {
+                processInfo = allocator.allocate(key, configs.getStubWaitTimeout());
+                break;
+            }
+        }
+
+        long waitTime = SystemClock.elapsedRealtime() - startTime;
+        mExhaustStats.onExhausted(policy, processInfo != null, waitTime);
+        Logger.w(TAG, String.format("onStubExhausted() pkg = %s, process = %s, policy = %d -> %s, cost %d ms, %s",
+                pkgName, pluginProcessName, policy, processInfo != null ? processInfo.processName : "NULL",
+                waitTime, mExhaustStats));
+
+        if (processInfo == null) {
+            onNowMoreProcessError(pluginProcessName, pkgName);
+        }
+        return processInfo;
+    }
+
+    /**
+     * 结束最久未活动的空闲插件进程，桩进程在收到binder死亡通知后释放。
+     * 空闲的判断与IdleProcessReaper相同，见{@link PluginProcess#isIdle()}
+     */
+    private boolean evictIdleProcess(StubAllocator<?> allocator) {
+        List<PluginProcess> idleProcesses = new ArrayList<>();
+        for (PluginProcess pluginProcess : PluginManagerService.getInstance(mContext).getPluginProcesses()) {
+            if (allocator.getOwner(pluginProcess.getProcessName()) != null && pluginProcess.isIdle()) {
+                idleProcesses.add(pluginProcess);
+            }
+        }
+
+        // 最久未活动的先结束
+        Collections.sort(idleProcesses, new Comparator<PluginProcess>() {
+            @Override
+            public int compare(PluginProcess o1, PluginProcess o2) {
+                long diff = o1.getLastActiveTime() - o2.getLastActiveTime();
+                return diff > 0 ? 1 : (diff < 0 ? -1 : 0);
+            }
+        });
+
+        for (PluginProcess lruProcess : idleProcesses) {
+            // 检查后可能有新组件启动或新的invoker调用，标记后不再接受invoker调用
+            if (!lruProcess.markKilled()) {
+                continue;
+            }
+
+            Logger.w(TAG, String.format("evictIdleProcess() kill %s(pid = %d), plugins = %s, idle for %d ms",
+                    lruProcess.getProcessName(), lruProcess.getPid(), lruProcess.getRunningPlugins(),
+                    SystemClock.elapsedRealtime() - lruProcess.getLastActiveTime()));
+            Process.killProcess(lruProcess.getPid());
+            mExhaustStats.onEvicted();
+            return true;
+        }
+
+        Logger.w(TAG, "evictIdleProcess() no idle plugin process found!");
+        return false;
+    }
+
+    /**
+     * 选择运行插件最少的进程共用
+     */
+    private <K> ProcessInfo colocate(StubAllocator<K> allocator, K key) {
+        PluginProcess targetProcess = null;
+        for (PluginProcess pluginProcess : PluginManagerService.getInstance(mContext).getPluginProcesses()) {
+            if (allocator.getOwner(pluginProcess.getProcessName()) == null) {
+                continue;
+            }
+            if (targetProcess == null ||
+                    pluginProcess.getRunningPlugins().size() < targetProcess.getRunningPlugins().size()) {
+                targetProcess = pluginProcess;
+            }
+        }
+
+        if (targetProcess == null) {
+            return null;
+        }
+
+        ProcessInfo processInfo = getProcessInfo(targetProcess.getProcessName());
+        allocator.colocate(key, processInfo);
+        return processInfo;
+    }
+
+    /**
+     * 桩进程耗尽的统计，仅在core进程中有效
+     */
+    public ExhaustStats getExhaustStats() {
+        return mExhaustStats;
+    }
+
     private void onNowMoreProcessError(String pluginProcessName, String pkgName) {
         if (BuildConfig.DEBUG_LOG) {
             ProcessHelper.post(new Runnable() {
@@ -356,40 +493,171 @@ public class StubManager {
         throw new IllegalStateException("No more stub process for plugin " + pkgName);
     }
 
-    private <T> void filterPluginProcessMap(Map<T, ProcessInfo> processInfoMap) {
-        ActivityManager am = (ActivityManager) mContext.getSystemService(Context.ACTIVITY_SERVICE);
-        List<ActivityManager.RunningAppProcessInfo> runningAppProcesses = am.getRunningAppProcesses();
-
-        Set<String> runningStubProcesses = new HashSet<>();
+    public void setStubProcessListener(StubProcessListener listener) {
+        mStubProcessListener = listener;
+    }
 
-        for (ActivityManager.RunningAppProcessInfo info : runningAppProcesses) {
-            if (info.processName.startsWith(mContext.getPackageName() + ":p")) {
-                runningStubProcesses.add(info.processName);
-            }
+    /**
+     * 当前进程模式下按需分配的桩进程，PROCESS_TYPE_SINGLE和PROCESS_TYPE_DUAL模式使用固定进程，返回null
+     */
+    private StubAllocator<?> getStubAllocator() {
+        switch (mProcessType) {
+            case PROCESS_TYPE_INDEPENDENT:
+                return mPluginSingleProcessAllocator;
+            case PROCESS_TYPE_COMPLETE:
+                return mPluginWholeProcessAllocator;
         }
+        return null;
+    }
 
-        Logger.d(TAG, "filterPluginProcessMap() runningStubProcesses = " + runningStubProcesses);
+    /**
+     * 预留一个空闲的桩进程用于预热
+     *
+     * @return 当前进程模式不支持预热或没有空闲的桩进程时返回null
+     */
+    public ProcessInfo reserveWarmStub() {
+        StubAllocator<?> allocator = getStubAllocator();
+        return allocator != null ? allocator.reserveWarm() : null;
+    }
 
-        Set<Map.Entry<T, ProcessInfo>> entries = processInfoMap.entrySet();
-        Iterator<Map.Entry<T, ProcessInfo>> iterator = entries.iterator();
-        while (iterator.hasNext()) {
-            Map.Entry<T, ProcessInfo> entry = iterator.next();
-            if (!runningStubProcesses.contains(entry.getValue().processName)) {
-                iterator.remove();
-            }
+    public void cancelWarmStub(String stubProcessName) {
+        StubAllocator<?> allocator = getStubAllocator();
+        if (allocator != null) {
+            allocator.cancelWarm(stubProcessName);
         }
     }
 
+    /**
+     * 取出一个未使用的预热桩进程，调用方负责结束该进程
+     */
+    public ProcessInfo takeWarmStub() {
+        StubAllocator<?> allocator = getStubAllocator();
+        return allocator != null ? allocator.takeWarm() : null;
+    }
+
+    /**
+     * 正在启动和已启动的预热桩进程数
+     */
+    public int getWarmStubCount() {
+        StubAllocator<?> allocator = getStubAllocator();
+        return allocator != null ? allocator.getWarmCount() : 0;
+    }
+
+    /**
+     * 桩进程已启动并attach到core进程
+     */
+    public void onStubProcessAttached(String stubProcessName) {
+        mPluginSingleProcessAllocator.onProcessAttached(stubProcessName);
+        mPluginWholeProcessAllocator.onProcessAttached(stubProcessName);
+    }
+
+    /**
+     * 桩进程已死亡(binder死亡通知)，释放分配给它的插件
+     */
+    public void onStubProcessDied(String stubProcessName) {
+        mPluginSingleProcessAllocator.onProcessDied(stubProcessName);
+        mPluginWholeProcessAllocator.onProcessDied(stubProcessName);
+    }
+
     @Override
     public String toString() {
         return String.format("StubManager[ mProcessType = %d, mStubProcessInfoMap = %s, mPermissions = %s]",
                 mProcessType, mStubProcessInfoMap, mStubRequestedPermission);
     }
 
+    public interface StubProcessListener {
+        /**
+         * 桩进程分配给了新的插件(或插件进程)，在分配锁内回调，不能阻塞
+         * @param stubProcessName 桩进程名
+         * @param isWarm 是否为预热的桩进程
+         */
+        void onStubAllocated(String stubProcessName, boolean isWarm);
+    }
+
+    public static class ExhaustStats {
+        private int mExhaustCount;
+        private int mFailCount;
+        private int mEvictCount;
+        private int mColocateCount;
+        private int mQueueCount;
+        private long mTotalWaitTime;
+        private long mMaxWaitTime;
+
+        private synchronized void onExhausted(int policy, boolean isSuccess, long waitTime) {
+            mExhaustCount++;
+            if (!isSuccess) {
+                mFailCount++;
+                return;
+            }
+
+            if (policy == STUB_EXHAUST_POLICY_COLOCATE) {
+                mColocateCount++;
+            } else {
+                mQueueCount++;
+                mTotalWaitTime += waitTime;
+                mMaxWaitTime = Math.max(mMaxWaitTime, waitTime);
+            }
+        }
+
+        private synchronized void onEvicted() {
+            mEvictCount++;
+        }
+
+        /**
+         * 桩进程耗尽的次数
+         */
+        public synchronized int getExhaustCount() {
+            return mExhaustCount;
+        }
+
+        /**
+         * 最终仍无法分配桩进程的次数
+         */
+        public synchronized int getFailCount() {
+            return mFailCount;
+        }
+
+        /**
+         * 被结束的空闲插件进程数
+         */
+        public synchronized int getEvictCount() {
+            return mEvictCount;
+        }
+
+        public synchronized int getColocateCount() {
+            return mColocateCount;
+        }
+
+        /**
+         * 等待后成功分配的次数(包括结束空闲进程后的等待)
+         */
+        public synchronized int getQueueCount() {
+            return mQueueCount;
+        }
+
+        public synchronized long getAverageWaitTime() {
+            return mQueueCount > 0 ? mTotalWaitTime / mQueueCount : 0;
+        }
+
+        public synchronized long getMaxWaitTime() {
+            return mMaxWaitTime;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return String.format("ExhaustStats[ exhaust = %d, fail = %d, evict = %d, colocate = %d, queue = %d, " +
+                            "avgWait = %d ms, maxWait = %d ms ]",
+                    mExhaustCount, mFailCount, mEvictCount, mColocateCount, mQueueCount,
+                    getAverageWaitTime(), mMaxWaitTime);
+        }
+    }
+
     public static class ProcessInfo {
         public final String processName;
 
         private final List<ActivityInfo> mStubActivityList = new ArrayList<>();
+        // launchMode -> 桩Activity
+        private final SparseArray<List<ActivityInfo>> mStubActivityModeMap = new SparseArray<>(4);
         private final List<ServiceInfo> mStubServiceList = new ArrayList<>();
         private final List<ProviderInfo> mStubProviderList = new ArrayList<>();
 
@@ -399,6 +667,12 @@ public class StubManager {
 
         public void addStubActivity(ActivityInfo activityInfo) {
             mStubActivityList.add(activityInfo);
+            List<ActivityInfo> modeActivities = mStubActivityModeMap.get(activityInfo.launchMode);
+            if (modeActivities == null) {
+                modeActivities = new ArrayList<>();
+                mStubActivityModeMap.put(activityInfo.launchMode, modeActivities);
+            }
+            modeActivities.add(activityInfo);
         }
 
         public void addStubService(ServiceInfo serviceInfo) {
@@ -413,6 +687,11 @@ public class StubManager {
             return mStubActivityList;
         }
 
+        public List<ActivityInfo> getStubActivities(int launchMode) {
+            List<ActivityInfo> modeActivities = mStubActivityModeMap.get(launchMode);
+            return modeActivities != null ? modeActivities : Collections.<ActivityInfo>emptyList();
+        }
+
         public List<ServiceInfo> getStubServices() {
             return mStubServiceList;
         }
@@ -441,6 +720,11 @@ public class StubManager {
 
             return false;
         }
+
+        @Override
+        public int hashCode() {
+            return processName.hashCode();
+        }
     }
 
 
@@ -2,13 +2,14 @@ package com.reginald.pluginm.utils;
 
 import android.annotation.TargetApi;
 import android.content.Context;
-import android.content.pm.PackageInfo;
+import android.content.SharedPreferences;
 import android.content.pm.Signature;
 import android.os.Build;
+import android.os.SystemClock;
+import android.system.Os;
 import android.text.TextUtils;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -16,19 +17,22 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
-import com.reginald.pluginm.core.PluginManager;
-
 public class PackageUtils {
 
     private static final boolean DEBUG = true;
@@ -41,9 +45,14 @@ public class PackageUtils {
     public static final String PLUGIN_LIB_FOLDER_NAME = "lib";
     public static final String PLUGIN_SIGNATURE_FOLDER_NAME = "signatures";
     public static final String PLUGIN_SIGNATURE_FILE_PREFIX = "sig_";
+    public static final String PLUGIN_STAGING_FOLDER_NAME = ".staging";
 
-    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
-    private static AtomicBoolean sHostSupport64 = null;
+    private static final String SO_CRC_FILE_NAME = ".so_crc";
+    private static final String ABI_PREFS_NAME = "pluginm_abi";
+    private static final String KEY_HOST_STAMP = "host_stamp";
+    private static final String KEY_HOST_SO64 = "host_so64";
+
+    private static volatile Boolean sHostSupport64 = null;
 
     public static File getPluginRootDir(Context context) {
         return context.getDir(PLUGIN_ROOT, Context.MODE_PRIVATE);
@@ -53,20 +62,6 @@ public class PackageUtils {
         return new File(getPluginRootDir(context), packageName);
     }
 
-    public static List<File> getSignatureFiles(Context context, String packageName) {
-        File sigFile = new File(makePluginDir(context, packageName), PLUGIN_SIGNATURE_FOLDER_NAME);
-        if (sigFile.exists()) {
-            List<File> sigFiles = new ArrayList<>();
-            for (File file : sigFile.listFiles()) {
-                if (file.getName().startsWith(PLUGIN_SIGNATURE_FILE_PREFIX)) {
-                    sigFiles.add(file);
-                }
-            }
-            return sigFiles;
-        }
-        return Collections.emptyList();
-    }
-
     public static File makePluginDir(Context context, String packageName) {
         return getOrMakeDir(getPluginRootDir(context), packageName);
     }
@@ -79,6 +74,18 @@ public class PackageUtils {
         return new File(makePluginApkDir(context, packageName), PLUGIN_APK_FILE_NAME);
     }
 
+    public static File getPluginApkFile(Context context, String packageName) {
+        return new File(new File(getPluginDir(context, packageName), PLUGIN_APK_FOLDER_NAME), PLUGIN_APK_FILE_NAME);
+    }
+
+    public static File getPluginDexDir(Context context, String packageName) {
+        return new File(getPluginDir(context, packageName), PLUGIN_DEX_FOLDER_NAME);
+    }
+
+    public static File getPluginLibDir(Context context, String packageName) {
+        return new File(getPluginDir(context, packageName), PLUGIN_LIB_FOLDER_NAME);
+    }
+
     public static File makePluginDexDir(Context context, String packageName) {
         return getOrMakeDir(makePluginDir(context, packageName), PLUGIN_DEX_FOLDER_NAME);
     }
@@ -91,6 +98,22 @@ public class PackageUtils {
         return getOrMakeDir(makePluginDir(context, packageName), PLUGIN_SIGNATURE_FOLDER_NAME);
     }
 
+    public static File getStagingRootDir(Context context) {
+        return new File(getPluginRootDir(context), PLUGIN_STAGING_FOLDER_NAME);
+    }
+
+    /**
+     * 安装暂存目录 pluginm/.staging/&lt;packageName&gt;-xxx，同一插件的多次安装互不影响
+     */
+    public static File makeStagingDir(Context context, String packageName) {
+        File stagingRoot = getOrMakeDir(getPluginRootDir(context), PLUGIN_STAGING_FOLDER_NAME);
+        File stagingDir;
+        do {
+            stagingDir = new File(stagingRoot, packageName + "-" + Long.toHexString(System.nanoTime()));
+        } while (!stagingDir.mkdirs());
+        return stagingDir;
+    }
+
     public static File getOrMakeDir(File root, String dir) {
         File dirFile = new File(root, dir);
         if (!dirFile.exists()) {
@@ -118,6 +141,142 @@ public class PackageUtils {
         return false;
     }
 
+    /**
+     * 先写入临时文件再rename，保证目标文件不会出现写了一半的情况。
+     */
+    public static boolean writeToFileAtomic(File file, byte[] data) {
+        File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        if (!writeToFile(tempFile, data)) {
+            tempFile.delete();
+            return false;
+        }
+
+        if (!tempFile.renameTo(file)) {
+            Logger.e(TAG, "writeToFileAtomic() rename " + tempFile + " to " + file + " error!");
+            tempFile.delete();
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * 复制文件并在同一次读取中计算SHA-256。先写入临时文件再rename，目标文件不会出现写了一半的情况。
+     *
+     * @return 文件的SHA-256，失败时返回null
+     */
+    public static String copyFileWithDigest(File source, File dest) {
+        long startTime = SystemClock.elapsedRealtime();
+        File tempFile = new File(dest.getParentFile(), dest.getName() + ".tmp");
+        FileChannel inChannel = null;
+        FileChannel outChannel = null;
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+            dest.getParentFile().mkdirs();
+            inChannel = new FileInputStream(source).getChannel();
+            outChannel = new FileOutputStream(tempFile).getChannel();
+
+            ByteBuffer buffer = ByteBuffer.allocate(256 * 1024);
+            while (inChannel.read(buffer) != -1) {
+                buffer.flip();
+                messageDigest.update(buffer.array(), 0, buffer.limit());
+                while (buffer.hasRemaining()) {
+                    outChannel.write(buffer);
+                }
+                buffer.clear();
+            }
+            outChannel.force(false);
+            outChannel.close();
+            outChannel = null;
+
+            if (!tempFile.renameTo(dest)) {
+                Logger.e(TAG, "copyFileWithDigest() rename " + tempFile + " to " + dest + " error!");
+                return null;
+            }
+
+            Logger.d(TAG, String.format("copyFileWithDigest() %s -> %s, cost %d ms",
+                    source, dest, SystemClock.elapsedRealtime() - startTime));
+            return toHexString(messageDigest.digest());
+        } catch (Exception e) {
+            Logger.e(TAG, "copyFileWithDigest() error!", e);
+        } finally {
+            if (inChannel != null) {
+                try {
+                    inChannel.close();
+                } catch (IOException e) {
+                }
+            }
+            if (outChannel != null) {
+                try {
+                    outChannel.close();
+                } catch (IOException e) {
+                }
+            }
+            tempFile.delete();
+        }
+
+        return null;
+    }
+
+    /**
+     * 移动文件并计算SHA-256。同一文件系统内直接rename，不需要复制；否则退化为复制后删除源文件。
+     *
+     * @return 文件的SHA-256，失败时返回null
+     */
+    public static String moveFileWithDigest(File source, File dest) {
+        String digest = getFileDigest(source);
+        if (digest == null) {
+            return null;
+        }
+
+        dest.getParentFile().mkdirs();
+        if (source.renameTo(dest)) {
+            Logger.d(TAG, String.format("moveFileWithDigest() rename %s -> %s", source, dest));
+            return digest;
+        }
+
+        Logger.d(TAG, "moveFileWithDigest() rename " + source + " error! try copy.");
+        digest = copyFileWithDigest(source, dest);
+        if (digest != null && !source.delete()) {
+            Logger.w(TAG, "moveFileWithDigest() delete " + source + " error!");
+        }
+        return digest;
+    }
+
+    public static String getFileDigest(File file) {
+        FileInputStream fin = null;
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+            fin = new FileInputStream(file);
+            byte[] buffer = new byte[64 * 1024];
+            int read = 0;
+            while ((read = fin.read(buffer)) != -1) {
+                messageDigest.update(buffer, 0, read);
+            }
+            return toHexString(messageDigest.digest());
+        } catch (Exception e) {
+            Logger.e(TAG, "getFileDigest() error!", e);
+        } finally {
+            if (fin != null) {
+                try {
+                    fin.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+
+        return null;
+    }
+
+    public static String toHexString(byte[] data) {
+        StringBuilder sb = new StringBuilder(data.length * 2);
+        for (byte b : data) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
     public static byte[] readFromFile(File file) {
         FileInputStream fin = null;
         try {
@@ -193,89 +352,293 @@ public class PackageUtils {
         return false;
     }
 
-    public static boolean copySo(File sourceDir, String so, String dest) {
-
-        String soDestPath = dest + File.separator + so;
+    public static boolean is64(String abi) {
+        return abi.contains("64");
+    }
 
+    /**
+     * 解压插件apk中的so到nativeLibDir，只需遍历一次apk。
+     * <p>
+     * 先根据设备和宿主支持的abi选定一个abi，只解压该abi下的so，直接写入最终目录。
+     * 已解压的so按zip中记录的crc判断是否变化，未变化的不再重复解压。
+     * 旧版本插件中有而新版本中已不存在的so会被删除。
+     *
+     * @return 是否成功，apk中没有so时返回true
+     */
+    public static boolean installNativeLibs(Context context, File apkFile, String nativeLibDir) {
+        long startTime = SystemClock.elapsedRealtime();
+        File libDir = new File(nativeLibDir);
+        ZipFile zipFile = null;
         try {
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-                boolean support64 = isHostSo64();
-                Logger.d(TAG, "host support " + (support64 ? "64-bit" : "32-bit"));
-                String[] abis = Build.SUPPORTED_ABIS;
-                if (abis != null) {
-                    for (String abi : abis) {
-                        if (support64 ^ is64(abi)) {
-                            Logger.d(TAG, "abi " + abi + " not comply with host!");
-                            continue;
-                        }
-                        Logger.d(TAG, "try supported abi: " + abi);
-
-                        String name = "lib" + File.separator + abi + File.separator + so;
-                        File sourceFile = new File(sourceDir, name);
-                        if (sourceFile.exists()) {
-                            if (copyFile(sourceFile.getAbsolutePath(), soDestPath)) {
-                                Logger.d(TAG, "#apply " + name);
-                                return true;
-                            }
-                        }
+            zipFile = new ZipFile(apkFile);
+
+            // abi -> 该abi下的so
+            Map<String, List<ZipEntry>> abiEntries = new HashMap<>();
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String abi = getLibAbi(entry);
+                if (abi != null) {
+                    List<ZipEntry> libEntries = abiEntries.get(abi);
+                    if (libEntries == null) {
+                        libEntries = new ArrayList<>();
+                        abiEntries.put(abi, libEntries);
                     }
+                    libEntries.add(entry);
                 }
-            } else {
-                Logger.d(TAG, "supported api: " + Build.CPU_ABI + " , " + Build.CPU_ABI2);
+            }
+
+            File crcFile = new File(libDir, SO_CRC_FILE_NAME);
+            if (abiEntries.isEmpty()) {
+                deleteNativeLibs(libDir, Collections.<String>emptySet());
+                crcFile.delete();
+                return true;
+            }
 
-                if (!TextUtils.isEmpty(Build.CPU_ABI)) {
-                    String name = "lib" + File.separator + Build.CPU_ABI + File.separator + so;
-                    File sourceFile = new File(sourceDir, name);
+            String abi = selectAbi(context, abiEntries.keySet());
+            List<ZipEntry> libEntries = abiEntries.get(abi);
+            Logger.d(TAG, String.format("installNativeLibs() use abi %s for %s, %d so(s)",
+                    abi, apkFile.getName(), libEntries.size()));
 
-                    if (sourceFile.exists() && copyFile(sourceFile.getAbsolutePath(), soDestPath)) {
-                        Logger.d(TAG, "use " + name);
-                        return true;
-                    }
+            if (!libDir.exists()) {
+                libDir.mkdirs();
+            }
+
+            Properties oldCrcs = loadProperties(crcFile);
+            Properties newCrcs = new Properties();
+            // 先删除crc记录，中途失败时下次不会误判为未变化
+            crcFile.delete();
+
+            Set<String> soNames = new HashSet<>();
+            byte[] buffer = new byte[64 * 1024];
+            int extractCount = 0;
+            for (ZipEntry entry : libEntries) {
+                String soName = entry.getName().substring(entry.getName().lastIndexOf('/') + 1);
+                String crc = String.valueOf(entry.getCrc());
+                File soFile = new File(libDir, soName);
+                soNames.add(soName);
+                newCrcs.setProperty(soName, crc);
+
+                if (crc.equals(oldCrcs.getProperty(soName)) && soFile.length() == entry.getSize()) {
+                    continue;
                 }
 
-                if (!TextUtils.isEmpty(Build.CPU_ABI2)) {
-                    String name = "lib" + File.separator + Build.CPU_ABI2 + File.separator + so;
-                    File sourceFile = new File(sourceDir, name);
+                if (!extractEntry(zipFile, entry, soFile, buffer)) {
+                    return false;
+                }
+                extractCount++;
+            }
 
-                    if (sourceFile.exists() && copyFile(sourceFile.getAbsolutePath(), soDestPath)) {
-                        Logger.d(TAG, "#apply " + name);
-                        return true;
-                    }
+            deleteNativeLibs(libDir, soNames);
+            storeProperties(crcFile, newCrcs);
+
+            Logger.d(TAG, String.format("installNativeLibs() extract %d of %d so(s) cost %d ms",
+                    extractCount, libEntries.size(), SystemClock.elapsedRealtime() - startTime));
+            return true;
+        } catch (IOException e) {
+            Logger.e(TAG, "installNativeLibs() error!", e);
+        } finally {
+            if (zipFile != null) {
+                try {
+                    zipFile.close();
+                } catch (IOException e) {
                 }
             }
-        } catch (Exception e) {
-            Logger.e(TAG, "copySo() error!", e);
         }
+        return false;
+    }
 
+    /**
+     * @return lib/<abi>/xxx.so 中的abi，非so返回null
+     */
+    private static String getLibAbi(ZipEntry entry) {
+        String name = entry.getName();
+        if (entry.isDirectory() || !name.startsWith("lib/") || !name.endsWith(".so") || name.contains("../")) {
+            return null;
+        }
+
+        int abiEnd = name.indexOf('/', 4);
+        if (abiEnd < 0 || abiEnd != name.lastIndexOf('/')) {
+            return null;
+        }
+        return name.substring(4, abiEnd);
+    }
 
-        // 默认无匹配时使用第一个提供的abi
-        String name = "lib" + File.separator + "armeabi" + File.separator + so;
-        File sourceFile = new File(sourceDir, name);
-        for (File file : sourceDir.listFiles()) {
-            if (file.isDirectory()) {
-                if (copyFile(file.getAbsolutePath() + File.separator + so, soDestPath)) {
-                    Logger.w(TAG, "can not found matched abi for " + so + ", use " + file.getName() + " instead!");
-                    return true;
+    /**
+     * 按设备支持的abi的优先级选择，L以上只选择与宿主位数一致的abi。无匹配时使用apk中的第一个abi。
+     */
+    private static String selectAbi(Context context, Set<String> apkAbis) {
+        List<String> candidates = new ArrayList<>();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            boolean support64 = isHostSo64(context);
+            for (String abi : Build.SUPPORTED_ABIS) {
+                if (support64 == is64(abi)) {
+                    candidates.add(abi);
                 }
             }
+        } else {
+            if (!TextUtils.isEmpty(Build.CPU_ABI)) {
+                candidates.add(Build.CPU_ABI);
+            }
+            if (!TextUtils.isEmpty(Build.CPU_ABI2)) {
+                candidates.add(Build.CPU_ABI2);
+            }
+        }
+
+        for (String abi : candidates) {
+            if (apkAbis.contains(abi)) {
+                return abi;
+            }
         }
 
-        Logger.e(TAG, "can not found matched abi for " + so);
+        String abi = apkAbis.iterator().next();
+        Logger.w(TAG, "selectAbi() can not found matched abi in " + candidates + ", use " + abi + " instead!");
+        return abi;
+    }
+
+    /**
+     * 先解压到临时文件再rename，不会留下写了一半的so
+     */
+    private static boolean extractEntry(ZipFile zipFile, ZipEntry entry, File destFile, byte[] buffer) {
+        File tempFile = new File(destFile.getParentFile(), destFile.getName() + ".tmp");
+        InputStream in = null;
+        FileOutputStream out = null;
+        try {
+            in = zipFile.getInputStream(entry);
+            out = new FileOutputStream(tempFile);
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            out.close();
+            out = null;
+
+            if (!tempFile.renameTo(destFile)) {
+                Logger.e(TAG, "extractEntry() rename " + tempFile + " to " + destFile + " error!");
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            Logger.e(TAG, "extractEntry() " + entry.getName() + " error!", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+            tempFile.delete();
+        }
         return false;
     }
 
-    public static boolean is64(String abi) {
-        return abi.contains("64");
+    /**
+     * 用已安装的so初始化新的so目录(如安装暂存区)：硬链接(不支持时复制)crc记录中的so，并带上crc记录，
+     * 之后{@link #installNativeLibs(Context, File, String)}只需解压有变化的so。
+     * 解压时先写临时文件再rename，不会改动已安装的so。
+     */
+    public static void seedNativeLibs(File installedLibDir, File libDir) {
+        Properties installedCrcs = loadProperties(new File(installedLibDir, SO_CRC_FILE_NAME));
+        if (installedCrcs.isEmpty()) {
+            return;
+        }
+
+        long startTime = SystemClock.elapsedRealtime();
+        if (!libDir.exists()) {
+            libDir.mkdirs();
+        }
+
+        Properties seededCrcs = new Properties();
+        for (String soName : installedCrcs.stringPropertyNames()) {
+            File installedFile = new File(installedLibDir, soName);
+            if (installedFile.isFile() && linkOrCopyFile(installedFile, new File(libDir, soName))) {
+                seededCrcs.setProperty(soName, installedCrcs.getProperty(soName));
+            }
+        }
+        storeProperties(new File(libDir, SO_CRC_FILE_NAME), seededCrcs);
+
+        Logger.d(TAG, String.format("seedNativeLibs() %d of %d so(s) from %s cost %d ms", seededCrcs.size(),
+                installedCrcs.size(), installedLibDir, SystemClock.elapsedRealtime() - startTime));
     }
 
+    private static boolean linkOrCopyFile(File source, File dest) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            try {
+                Os.link(source.getAbsolutePath(), dest.getAbsolutePath());
+                return true;
+            } catch (Exception e) {
+                Logger.w(TAG, "linkOrCopyFile() link " + source + " error! " + e);
+            }
+        }
+        return copyFile(source.getAbsolutePath(), dest.getAbsolutePath());
+    }
+
+    private static void deleteNativeLibs(File libDir, Set<String> retainedNames) {
+        File[] files = libDir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            if (file.isFile() && file.getName().endsWith(".so") && !retainedNames.contains(file.getName())) {
+                Logger.d(TAG, "deleteNativeLibs() delete stale so " + file.getName());
+                file.delete();
+            }
+        }
+    }
+
+    private static Properties loadProperties(File file) {
+        Properties properties = new Properties();
+        byte[] data = file.isFile() ? readFromFile(file) : null;
+        if (data != null) {
+            try {
+                properties.load(new ByteArrayInputStream(data));
+            } catch (IOException e) {
+                Logger.e(TAG, "loadProperties() error!", e);
+            }
+        }
+        return properties;
+    }
+
+    private static boolean storeProperties(File file, Properties properties) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            properties.store(out, null);
+            return writeToFileAtomic(file, out.toByteArray());
+        } catch (IOException e) {
+            Logger.e(TAG, "storeProperties() error!", e);
+        }
+        return false;
+    }
+
+    /**
+     * 宿主是否以64位运行(即宿主apk中包含64位的so或不包含任何so)。
+     * 结果按宿主apk路径和修改时间持久化，宿主升级后重新计算，避免每次启动都扫描宿主apk。
+     */
     @TargetApi(Build.VERSION_CODES.LOLLIPOP)
-    private static boolean isHostSo64() {
-        if (sHostSupport64 != null) {
-            return sHostSupport64.get();
+    private static boolean isHostSo64(Context context) {
+        Boolean hostSupport64 = sHostSupport64;
+        if (hostSupport64 != null) {
+            return hostSupport64;
+        }
+
+        File hostApk = new File(context.getApplicationInfo().sourceDir);
+        String hostStamp = hostApk.getAbsolutePath() + ":" + hostApk.lastModified() + ":" + Build.FINGERPRINT;
+        SharedPreferences prefs = context.getSharedPreferences(ABI_PREFS_NAME, Context.MODE_PRIVATE);
+        if (hostStamp.equals(prefs.getString(KEY_HOST_STAMP, null)) && prefs.contains(KEY_HOST_SO64)) {
+            boolean result = prefs.getBoolean(KEY_HOST_SO64, false);
+            sHostSupport64 = result;
+            return result;
         }
 
         boolean result = false;
-        Set<String> supportedAbis = getAbisFromApk(getHostApk());
+        Set<String> supportedAbis = getAbisFromApk(hostApk.getAbsolutePath());
         if (Build.SUPPORTED_64_BIT_ABIS.length == 0) {
             result = false;
         } else if (supportedAbis == null || supportedAbis.isEmpty()) {
@@ -289,135 +652,38 @@ public class PackageUtils {
             }
         }
 
-        sHostSupport64 = new AtomicBoolean(result);
+        Logger.d(TAG, "isHostSo64() host support " + (result ? "64-bit" : "32-bit"));
+        prefs.edit().putString(KEY_HOST_STAMP, hostStamp).putBoolean(KEY_HOST_SO64, result).apply();
+        sHostSupport64 = result;
         return result;
     }
 
     private static Set<String> getAbisFromApk(String apk) {
+        ZipFile apkFile = null;
         try {
-            ZipFile apkFile = new ZipFile(apk);
+            apkFile = new ZipFile(apk);
             Enumeration<? extends ZipEntry> entries = apkFile.entries();
             Set<String> supportedAbis = new HashSet<>();
             while (entries.hasMoreElements()) {
-                ZipEntry entry = entries.nextElement();
-                String name = entry.getName();
-                if (name.contains("../")) {
-                    continue;
-                }
-                if (name.startsWith("lib/") && !entry.isDirectory() && name.endsWith(".so")) {
-                    String supportedAbi = name.substring(name.indexOf("/") + 1, name.lastIndexOf("/"));
-                    supportedAbis.add(supportedAbi);
+                String abi = getLibAbi(entries.nextElement());
+                if (abi != null) {
+                    supportedAbis.add(abi);
                 }
             }
             Logger.d(TAG, "supportedAbis : " + supportedAbis);
             return supportedAbis;
         } catch (Exception e) {
             Logger.e(TAG, "get supportedAbis failure", e);
-        }
-
-        return null;
-    }
-
-    private static String getHostApk() {
-        return PluginManager.getInstance().getHostContext().getApplicationInfo().sourceDir;
-    }
-
-    public static Set<String> unZipSo(File apkFile, File tempDir) {
-
-        HashSet<String> result = null;
-
-        if (!tempDir.exists()) {
-            tempDir.mkdirs();
-        }
-
-        Logger.d(TAG, "unZipSo " + tempDir.getAbsolutePath());
-
-        ZipFile zfile = null;
-        boolean isSuccess = false;
-        BufferedOutputStream fos = null;
-        BufferedInputStream bis = null;
-        try {
-            zfile = new ZipFile(apkFile);
-            ZipEntry ze = null;
-            Enumeration zList = zfile.entries();
-            while (zList.hasMoreElements()) {
-                ze = (ZipEntry) zList.nextElement();
-                String relativePath = ze.getName();
-
-                if (!relativePath.startsWith("lib" + File.separator)) {
-                    if (DEBUG) {
-                        Logger.d(TAG, "skip " + relativePath);
-                    }
-                    continue;
-                }
-
-                if (ze.isDirectory()) {
-                    File folder = new File(tempDir, relativePath);
-                    if (DEBUG) {
-                        Logger.d(TAG, "create dir " + folder.getAbsolutePath());
-                    }
-                    if (!folder.exists()) {
-                        folder.mkdirs();
-                    }
-
-                } else {
-
-                    if (result == null) {
-                        result = new HashSet<String>(4);
-                    }
-
-                    File targetFile = new File(tempDir, relativePath);
-                    Logger.d(TAG, "unzip so " + targetFile.getAbsolutePath());
-                    if (!targetFile.getParentFile().exists()) {
-                        targetFile.getParentFile().mkdirs();
-                    }
-                    targetFile.createNewFile();
-
-                    fos = new BufferedOutputStream(new FileOutputStream(targetFile));
-                    bis = new BufferedInputStream(zfile.getInputStream(ze));
-                    byte[] buffer = new byte[2048];
-                    int count = -1;
-                    while ((count = bis.read(buffer)) != -1) {
-                        fos.write(buffer, 0, count);
-                        fos.flush();
-                    }
-                    fos.close();
-                    fos = null;
-                    bis.close();
-                    bis = null;
-
-                    result.add(relativePath.substring(relativePath.lastIndexOf(File.separator) + 1));
-                }
-            }
-            isSuccess = true;
-        } catch (IOException e) {
-            Logger.e(TAG, "unZipSo() error!", e);
         } finally {
-            if (fos != null) {
-                try {
-                    fos.close();
-                } catch (IOException e) {
-                    Logger.e(TAG, "unZipSo() error!", e);
-                }
-            }
-            if (bis != null) {
-                try {
-                    bis.close();
-                } catch (IOException e) {
-                    Logger.e(TAG, "unZipSo() error!", e);
-                }
-            }
-            if (zfile != null) {
+            if (apkFile != null) {
                 try {
-                    zfile.close();
+                    apkFile.close();
                 } catch (IOException e) {
-                    Logger.e(TAG, "unZipSo() error!", e);
                 }
             }
         }
 
-        Logger.d(TAG, "unZipSo finish. isSuccess = " + isSuccess);
-        return result;
+        return null;
     }
 
     public static boolean deleteAll(File file) {
@@ -433,73 +699,25 @@ public class PackageUtils {
         return file.delete();
     }
 
-    public static boolean saveSignatures(Context context, PackageInfo pkgInfo) {
-        File sigDir = makePluginSignatureDir(context, pkgInfo.packageName);
-        Signature[] signatures = pkgInfo.signatures;
-        if (signatures == null || signatures.length <= 0) {
-            return false;
-        }
-
-        for (int i = 0; i < signatures.length; i++) {
-            Signature signature = signatures[i];
-            File sigFile = new File(sigDir, PLUGIN_SIGNATURE_FILE_PREFIX + i);
-            if (!writeToFile(sigFile, signature.toByteArray())) {
-                Logger.e(TAG, "saveSignatures() error!");
-                deleteAll(sigDir);
-                return false;
-            }
-        }
-
-        Logger.d(TAG, String.format("saveSignatures() save %d signature(s) for %s!",
-                signatures.length, pkgInfo.packageName));
-        return true;
-    }
-
-    public static Signature[] readSignatures(Context context, String packageName) {
-        List<File> sigFiles = getSignatureFiles(context, packageName);
-        if (sigFiles.isEmpty()) {
-            return null;
-        }
-
-        List<Signature> signatures = new ArrayList<>();
-        for (File sigFile : sigFiles) {
-            byte[] sigData = readFromFile(sigFile);
-            if (sigData == null) {
-                Logger.e(TAG, "saveSignatures() error in reading " + sigFile.getAbsolutePath());
-                return null;
-            }
-            Signature signature = new Signature(sigData);
-            signatures.add(signature);
-        }
-
-        Logger.d(TAG, String.format("writeSignatures() save %d signature(s) for %s!",
-                signatures.size(), packageName));
-        return signatures.toArray(new Signature[signatures.size()]);
-    }
-
+    /**
+     * signatures中的每个签名都需要在checkers中，用HashSet比较，O(n+m)
+     */
     public static boolean checkSignatures(Signature[] signatures, Signature[] checkers) {
         if (signatures == null || checkers == null) {
             Logger.e(TAG, "checkSignatures() null input!");
             return false;
         }
 
+        Set<Signature> checkerSet = new HashSet<>(Arrays.asList(checkers));
         for (Signature signature : signatures) {
-            boolean match = false;
-            for (Signature check : checkers) {
-                if (signature.equals(check)) {
-                    match = true;
-                    break;
-                }
-            }
-            if (!match) {
+            if (!checkerSet.contains(signature)) {
                 Logger.e(TAG, String.format("checkSignatures() signature %s is not approved in %s !",
-                        signature, Arrays.asList(checkers)));
+                        signature, checkerSet));
                 return false;
             }
         }
 
-        Logger.d(TAG, String.format("checkSignatures() signature(s) %s are approved!",
-                Arrays.asList(signatures)));
+        Logger.d(TAG, String.format("checkSignatures() %d signature(s) are approved!", signatures.length));
         return true;
     }
 
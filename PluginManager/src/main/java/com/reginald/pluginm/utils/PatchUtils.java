@@ -0,0 +1,218 @@
+package com.reginald.pluginm.utils;
+
+import android.os.SystemClock;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * 插件增量更新补丁，格式与bsdiff 4.x相同，只是ctrl/diff/extra三段改为zlib(deflate)压缩，以便直接使用系统自带的Inflater：
+ * <pre>
+ * 0   8  magic "PMDIFF01"
+ * 8   8  ctrl段压缩后长度
+ * 16  8  diff段压缩后长度
+ * 24  8  新文件长度
+ * 32  -  ctrl段 | diff段 | extra段
+ * </pre>
+ * 所有整数均为bsdiff的offtin编码(小端，最高位为符号位)。
+ * <p>
+ * 新文件按顺序流式写出，旧文件随机读取，内存占用与文件大小无关。
+ * <p>
+ * 补丁由pluginpatchtool模块中的com.reginald.pluginm.patch.PatchGenerator生成。
+ */
+public class PatchUtils {
+
+    private static final String TAG = "PatchUtils";
+
+    private static final byte[] MAGIC = new byte[]{'P', 'M', 'D', 'I', 'F', 'F', '0', '1'};
+    private static final int HEADER_SIZE = 32;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * 把补丁应用到oldFile，生成newFile
+     *
+     * @return newFile的SHA-256，失败时返回null并删除newFile
+     */
+    public static String applyPatch(File oldFile, File patchFile, File newFile) {
+        long startTime = SystemClock.elapsedRealtime();
+        RandomAccessFile oldRaf = null;
+        InputStream ctrlIn = null;
+        InputStream diffIn = null;
+        InputStream extraIn = null;
+        OutputStream out = null;
+        boolean isSuccess = false;
+        try {
+            byte[] header = new byte[HEADER_SIZE];
+            DataInputStream headerIn = new DataInputStream(new FileInputStream(patchFile));
+            try {
+                headerIn.readFully(header);
+            } finally {
+                headerIn.close();
+            }
+
+            if (!Arrays.equals(Arrays.copyOfRange(header, 0, MAGIC.length), MAGIC)) {
+                Logger.e(TAG, "applyPatch() unknown patch format! " + patchFile);
+                return null;
+            }
+
+            long ctrlLength = offtin(header, 8);
+            long diffLength = offtin(header, 16);
+            long newSize = offtin(header, 24);
+            if (ctrlLength < 0 || diffLength < 0 || newSize < 0) {
+                Logger.e(TAG, "applyPatch() corrupt patch header! " + patchFile);
+                return null;
+            }
+
+            ctrlIn = openBlock(patchFile, HEADER_SIZE);
+            diffIn = openBlock(patchFile, HEADER_SIZE + ctrlLength);
+            extraIn = openBlock(patchFile, HEADER_SIZE + ctrlLength + diffLength);
+
+            oldRaf = new RandomAccessFile(oldFile, "r");
+            long oldSize = oldRaf.length();
+
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+            newFile.getParentFile().mkdirs();
+            out = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(newFile), BUFFER_SIZE), messageDigest);
+
+            byte[] ctrl = new byte[24];
+            byte[] buffer = new byte[BUFFER_SIZE];
+            byte[] oldBuffer = new byte[BUFFER_SIZE];
+            long oldPos = 0;
+            long newPos = 0;
+            while (newPos < newSize) {
+                readFully(ctrlIn, ctrl, 0, ctrl.length);
+                long addLength = offtin(ctrl, 0);
+                long copyLength = offtin(ctrl, 8);
+                long seekLength = offtin(ctrl, 16);
+
+                if (addLength < 0 || copyLength < 0 || newPos + addLength + copyLength > newSize) {
+                    Logger.e(TAG, "applyPatch() corrupt patch ctrl block!");
+                    return null;
+                }
+
+                // diff段的字节与旧文件对应位置相加
+                long remain = addLength;
+                while (remain > 0) {
+                    int count = (int) Math.min(remain, BUFFER_SIZE);
+                    readFully(diffIn, buffer, 0, count);
+                    readOld(oldRaf, oldSize, oldPos, oldBuffer, count);
+                    for (int i = 0; i < count; i++) {
+                        buffer[i] += oldBuffer[i];
+                    }
+                    out.write(buffer, 0, count);
+                    oldPos += count;
+                    remain -= count;
+                }
+                newPos += addLength;
+
+                // extra段直接复制
+                remain = copyLength;
+                while (remain > 0) {
+                    int count = (int) Math.min(remain, BUFFER_SIZE);
+                    readFully(extraIn, buffer, 0, count);
+                    out.write(buffer, 0, count);
+                    remain -= count;
+                }
+                newPos += copyLength;
+
+                oldPos += seekLength;
+            }
+
+            out.close();
+            out = null;
+            isSuccess = true;
+
+            Logger.d(TAG, String.format("applyPatch() %s + %s -> %s (%d bytes), cost %d ms",
+                    oldFile.getName(), patchFile.getName(), newFile, newSize, SystemClock.elapsedRealtime() - startTime));
+            return PackageUtils.toHexString(messageDigest.digest());
+        } catch (Exception e) {
+            Logger.e(TAG, "applyPatch() error!", e);
+        } finally {
+            closeQuietly(ctrlIn);
+            closeQuietly(diffIn);
+            closeQuietly(extraIn);
+            closeQuietly(out);
+            if (oldRaf != null) {
+                try {
+                    oldRaf.close();
+                } catch (IOException e) {
+                }
+            }
+            if (!isSuccess) {
+                newFile.delete();
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * 读取旧文件，超出旧文件范围的部分按0处理(与bspatch一致)
+     */
+    private static void readOld(RandomAccessFile oldRaf, long oldSize, long oldPos, byte[] buffer, int count)
+            throws IOException {
+        Arrays.fill(buffer, 0, count, (byte) 0);
+        long start = Math.max(oldPos, 0);
+        long end = Math.min(oldPos + count, oldSize);
+        if (start < end) {
+            oldRaf.seek(start);
+            oldRaf.readFully(buffer, (int) (start - oldPos), (int) (end - start));
+        }
+    }
+
+    private static InputStream openBlock(File patchFile, long offset) throws IOException {
+        FileInputStream in = new FileInputStream(patchFile);
+        try {
+            in.getChannel().position(offset);
+            return new InflaterInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            int count = in.read(buffer, offset, length);
+            if (count < 0) {
+                throw new EOFException("unexpected end of patch!");
+            }
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * bsdiff的整数编码：8字节小端，最高位为符号位
+     */
+    private static long offtin(byte[] buf, int offset) {
+        long y = buf[offset + 7] & 0x7F;
+        for (int i = 6; i >= 0; i--) {
+            y = (y << 8) | (buf[offset + i] & 0xFF);
+        }
+        return (buf[offset + 7] & 0x80) != 0 ? -y : y;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+}
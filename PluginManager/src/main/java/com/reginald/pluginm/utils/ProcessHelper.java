@@ -2,6 +2,7 @@ package com.reginald.pluginm.utils;
 
 import android.app.ActivityManager;
 import android.app.Application;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.os.Handler;
 import android.os.Looper;
@@ -28,6 +29,8 @@ public class ProcessHelper {
 
     private static Handler sHandler;
 
+    private static final ProcessNameResolver sProcessNameResolver = new ProcessNameResolver(Process.myPid());
+
     public static void init(Application context) {
         sApp = context;
         sHandler = new Handler(Looper.getMainLooper());
@@ -50,9 +53,25 @@ public class ProcessHelper {
         sHandler.postDelayed(runnable, delayMillis);
     }
 
+    /**
+     * 优先从 /proc/&lt;pid&gt;/cmdline 读取(有缓存)，失败时才通过ActivityManager查询
+     */
     public static String getProcessName(Context context, int pid) {
+        String processName = sProcessNameResolver.resolve(pid);
+        if (!TextUtils.isEmpty(processName)) {
+            return processName;
+        }
+
+        Logger.w("ProcessHelper", "getProcessName() resolve from /proc failed for pid " + pid);
+        return getProcessNameFromActivityManager(context, pid);
+    }
+
+    private static String getProcessNameFromActivityManager(Context context, int pid) {
         ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
         List<ActivityManager.RunningAppProcessInfo> raps = am.getRunningAppProcesses();
+        if (raps == null) {
+            return null;
+        }
         for (ActivityManager.RunningAppProcessInfo rap : raps) {
             if (rap != null && rap.pid == pid) {
                 return rap.processName;
@@ -70,6 +89,29 @@ public class ProcessHelper {
         return false;
     }
 
+    /**
+     * onTrimMemory()的level对应的内存压力，用于决定回收多少空闲的插件进程。
+     * <p>
+     * core进程运行在宿主主进程中，UI_HIDDEN(宿主界面不可见，包括打开插件页面时)和BACKGROUND只表示进程进入后台，不视为内存紧张。
+     *
+     * @return 0表示不需要回收，RUNNING_MODERATE返回0.5，RUNNING_LOW、RUNNING_CRITICAL和MODERATE及以上返回1
+     */
+    public static float getTrimMemoryRatio(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            return 1f;
+        }
+        if (level == ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN || level == ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            return 0f;
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return 1f;
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            return 0.5f;
+        }
+        return 0f;
+    }
+
     public static final void setArgV0(String name) {
         try {
             MethodUtils.invokeStaticMethod(Class.forName("android.os.Process"), "setArgV0", name);
@@ -0,0 +1,165 @@
+package com.reginald.pluginm.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 通过 /proc/&lt;pid&gt;/cmdline 获取进程名，结果按pid缓存。
+ * <p>
+ * pid可能被新进程复用，缓存同时记录进程的启动时间(/proc/&lt;pid&gt;/stat 第22项)，不一致时重新读取。
+ * 不依赖Android API，proc目录可以指定，便于在JVM上测试。
+ */
+public class ProcessNameResolver {
+
+    private static final int MAX_CACHE_SIZE = 32;
+    // zygote fork后、设置进程名前的cmdline
+    private static final String PRE_INITIALIZED = "<pre-initialized>";
+    // stat中starttime是第22项，即')'之后的第20项
+    private static final int STAT_START_TIME_INDEX = 22 - 3;
+
+    private final File mProcRoot;
+    private final int mMyPid;
+    private volatile String mMyProcessName;
+
+    private final Map<Integer, CacheEntry> mCache = new LinkedHashMap<Integer, CacheEntry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, CacheEntry> eldest) {
+            return size() > MAX_CACHE_SIZE;
+        }
+    };
+
+    public ProcessNameResolver(int myPid) {
+        this(new File("/proc"), myPid);
+    }
+
+    public ProcessNameResolver(File procRoot, int myPid) {
+        mProcRoot = procRoot;
+        mMyPid = myPid;
+    }
+
+    /**
+     * @return 进程名，进程不存在或无法读取时返回null
+     */
+    public String resolve(int pid) {
+        // 当前进程的pid在进程存活期间不会被复用
+        if (pid == mMyPid) {
+            String myProcessName = mMyProcessName;
+            if (myProcessName == null) {
+                myProcessName = readCmdline(new File(mProcRoot, "self"));
+                mMyProcessName = myProcessName;
+            }
+            return myProcessName;
+        }
+
+        File pidDir = new File(mProcRoot, String.valueOf(pid));
+        String startTime = readStartTime(pidDir);
+        if (startTime == null) {
+            synchronized (mCache) {
+                mCache.remove(pid);
+            }
+            return null;
+        }
+
+        synchronized (mCache) {
+            CacheEntry entry = mCache.get(pid);
+            if (entry != null && entry.startTime.equals(startTime)) {
+                return entry.processName;
+            }
+        }
+
+        String processName = readCmdline(pidDir);
+        if (processName != null) {
+            synchronized (mCache) {
+                mCache.put(pid, new CacheEntry(processName, startTime));
+            }
+        }
+        return processName;
+    }
+
+    public void invalidate(int pid) {
+        synchronized (mCache) {
+            mCache.remove(pid);
+        }
+    }
+
+    private static String readCmdline(File pidDir) {
+        byte[] data = readFile(new File(pidDir, "cmdline"));
+        if (data == null) {
+            return null;
+        }
+
+        // 参数之间以'\0'分隔，第一个参数即进程名
+        int length = 0;
+        while (length < data.length && data[length] != 0) {
+            length++;
+        }
+        String processName = new String(data, 0, length).trim();
+        if (processName.isEmpty() || PRE_INITIALIZED.equals(processName)) {
+            return null;
+        }
+        return processName;
+    }
+
+    /**
+     * 进程名(comm)可能包含空格和括号，从最后一个')'之后开始按空格分隔
+     */
+    private static String readStartTime(File pidDir) {
+        byte[] data = readFile(new File(pidDir, "stat"));
+        if (data == null) {
+            return null;
+        }
+
+        String stat = new String(data);
+        int commEnd = stat.lastIndexOf(')');
+        if (commEnd < 0) {
+            return null;
+        }
+
+        String[] fields = stat.substring(commEnd + 1).trim().split("\\s+");
+        return fields.length > STAT_START_TIME_INDEX ? fields[STAT_START_TIME_INDEX] : null;
+    }
+
+    private static byte[] readFile(File file) {
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            byte[] buffer = new byte[512];
+            int length = 0;
+            int count;
+            while ((count = in.read(buffer, length, buffer.length - length)) > 0) {
+                length += count;
+                if (length == buffer.length) {
+                    byte[] newBuffer = new byte[buffer.length * 2];
+                    System.arraycopy(buffer, 0, newBuffer, 0, length);
+                    buffer = newBuffer;
+                }
+            }
+            byte[] data = new byte[length];
+            System.arraycopy(buffer, 0, data, 0, length);
+            return data;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private static class CacheEntry {
+        final String processName;
+        final String startTime;
+
+        CacheEntry(String processName, String startTime) {
+            this.processName = processName;
+            this.startTime = startTime;
+        }
+    }
+}
@@ -2,8 +2,15 @@ package com.reginald.pluginm.utils;
 
 import android.os.Handler;
 import android.os.Looper;
+import android.os.Process;
 
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -14,33 +21,67 @@ public class ThreadUtils {
     public static final Handler sMainHandler = new Handler(Looper.getMainLooper());
 
     public static void ensureRunOnMainThread(final Runnable runnable) {
+        ensureRunOnMainThread(runnable, 0);
+    }
+
+    /**
+     * 在主线程执行runnable并等待其完成。
+     * @param timeout 最长等待时间(ms)，小于等于0时一直等待
+     * @return runnable是否已执行完成。超时后runnable仍会在主线程执行。
+     */
+    public static boolean ensureRunOnMainThread(final Runnable runnable, long timeout) {
         if (Looper.myLooper() == Looper.getMainLooper()) {
             runnable.run();
-        } else {
-            final Object lock = new Object();
-            final AtomicBoolean mIsRunning = new AtomicBoolean(false);
-            sMainHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        runnable.run();
-                    } finally {
-                        mIsRunning.set(true);
-                        synchronized (lock) {
-                            lock.notifyAll();
-                        }
-                    }
+            return true;
+        }
 
-                }
-            });
-            if (!mIsRunning.get()) {
-                synchronized (lock) {
-                    try {
-                        lock.wait();
-                    } catch (InterruptedException e) {
-                    }
+        final CountDownLatch latch = new CountDownLatch(1);
+        sMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runnable.run();
+                } finally {
+                    latch.countDown();
                 }
             }
+        });
+
+        try {
+            if (timeout > 0) {
+                return latch.await(timeout, TimeUnit.MILLISECONDS);
+            }
+            latch.await();
+            return true;
+        } catch (InterruptedException e) {
+            Logger.e("ThreadUtils", "ensureRunOnMainThread() interrupted!", e);
+            Thread.currentThread().interrupt();
         }
+        return false;
+    }
+
+    /**
+     * 创建固定大小的后台线程池，空闲线程会自动退出。
+     */
+    public static ExecutorService newWorkerPool(final String name, int poolSize) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(poolSize, poolSize,
+                30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, name + "-" + mCount.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
     }
 }
@@ -0,0 +1,129 @@
+package com.reginald.pluginm.stub;
+
+import com.reginald.pluginm.utils.Logger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class StubAllocatorTest {
+
+    private static final int STUB_COUNT = 4;
+
+    private List<StubManager.ProcessInfo> mStubs;
+    private List<String> mAllocatedEvents;
+    private StubAllocator<String> mAllocator;
+
+    @Before
+    public void setUp() {
+        Logger.LOG_ENABLED = false;
+        mStubs = new ArrayList<>(STUB_COUNT);
+        for (int i = 0; i < STUB_COUNT; i++) {
+            mStubs.add(new StubManager.ProcessInfo("com.host:p" + i));
+        }
+        mAllocatedEvents = new ArrayList<>();
+        mAllocator = new StubAllocator<>(mStubs, new StubManager.StubProcessListener() {
+            @Override
+            public void onStubAllocated(String stubProcessName, boolean isWarm) {
+                mAllocatedEvents.add(stubProcessName + (isWarm ? ":warm" : ""));
+            }
+        });
+    }
+
+    @Test
+    public void allocateUntilExhausted() {
+        Set<String> allocated = new HashSet<>();
+        for (int i = 0; i < STUB_COUNT; i++) {
+            StubManager.ProcessInfo processInfo = mAllocator.allocate("com.plugin" + i);
+            assertNotNull(processInfo);
+            allocated.add(processInfo.processName);
+            // 同一个key返回同一个桩进程
+            assertSame(processInfo, mAllocator.allocate("com.plugin" + i));
+            assertEquals("com.plugin" + i, mAllocator.getOwner(processInfo.processName));
+        }
+
+        assertEquals(STUB_COUNT, allocated.size());
+        assertEquals(STUB_COUNT, mAllocatedEvents.size());
+        assertEquals(0, mAllocator.getFreeCount());
+        assertNull(mAllocator.allocate("com.plugin.extra"));
+    }
+
+    @Test
+    public void releaseOnProcessDied() {
+        for (int i = 0; i < STUB_COUNT; i++) {
+            mAllocator.onProcessAttached(mAllocator.allocate("com.plugin" + i).processName);
+        }
+        StubManager.ProcessInfo processInfo = mAllocator.allocate("com.plugin1");
+
+        mAllocator.onProcessDied(processInfo.processName);
+        assertNull(mAllocator.getOwner(processInfo.processName));
+        assertEquals(1, mAllocator.getFreeCount());
+
+        assertSame(processInfo, mAllocator.allocate("com.plugin.extra"));
+        // 重复的死亡通知不会重复释放
+        mAllocator.onProcessDied(mStubs.get(0).processName);
+        mAllocator.onProcessDied(mStubs.get(0).processName);
+        assertEquals(1, mAllocator.getFreeCount());
+    }
+
+    @Test
+    public void colocatedKeysReleasedWithHost() {
+        for (int i = 0; i < STUB_COUNT; i++) {
+            mAllocator.allocate("com.plugin" + i);
+        }
+        StubManager.ProcessInfo processInfo = mAllocator.allocate("com.plugin0");
+        mAllocator.colocate("com.plugin.guest", processInfo);
+        assertSame(processInfo, mAllocator.allocate("com.plugin.guest"));
+
+        mAllocator.onProcessDied(processInfo.processName);
+        assertEquals(1, mAllocator.getFreeCount());
+        assertSame(processInfo, mAllocator.allocate("com.plugin.guest"));
+        assertEquals("com.plugin.guest", mAllocator.getOwner(processInfo.processName));
+    }
+
+    @Test
+    public void warmStubAllocatedFirst() {
+        StubManager.ProcessInfo warmStub = mAllocator.reserveWarm();
+        assertNotNull(warmStub);
+        assertEquals(1, mAllocator.getWarmCount());
+        assertEquals(STUB_COUNT - 1, mAllocator.getFreeCount());
+
+        mAllocator.onProcessAttached(warmStub.processName);
+        assertSame(warmStub, mAllocator.allocate("com.plugin0"));
+        assertEquals(warmStub.processName + ":warm", mAllocatedEvents.get(0));
+        assertEquals(0, mAllocator.getWarmCount());
+
+        // 预热失败时归还
+        StubManager.ProcessInfo cancelled = mAllocator.reserveWarm();
+        mAllocator.cancelWarm(cancelled.processName);
+        assertEquals(STUB_COUNT - 1, mAllocator.getFreeCount());
+    }
+
+    @Test
+    public void unallocatedProcessKeptUntilDied() {
+        // 系统直接拉起的桩进程在死亡前不能分配
+        String stubProcessName = mStubs.get(0).processName;
+        mAllocator.onProcessAttached(stubProcessName);
+        assertEquals(STUB_COUNT - 1, mAllocator.getFreeCount());
+
+        Set<String> allocated = new HashSet<>();
+        for (int i = 0; i < STUB_COUNT - 1; i++) {
+            allocated.add(mAllocator.allocate("com.plugin" + i).processName);
+        }
+        assertFalse(allocated.contains(stubProcessName));
+        assertNull(mAllocator.allocate("com.plugin.extra"));
+
+        mAllocator.onProcessDied(stubProcessName);
+        assertEquals(stubProcessName, mAllocator.allocate("com.plugin.extra").processName);
+    }
+}
@@ -0,0 +1,203 @@
+package com.reginald.pluginm.utils;
+
+import com.reginald.pluginm.patch.PatchGenerator;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PatchUtilsTest {
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    private File mOldFile;
+    private File mNewFile;
+    private File mPatchFile;
+    private File mOutFile;
+
+    @Before
+    public void setUp() throws IOException {
+        Logger.LOG_ENABLED = false;
+        mOldFile = mTempFolder.newFile("old.apk");
+        mNewFile = mTempFolder.newFile("new.apk");
+        mPatchFile = mTempFolder.newFile("patch");
+        mOutFile = new File(mTempFolder.getRoot(), "out/new.apk");
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        Random random = new Random(20261018);
+        byte[] oldData = new byte[256 * 1024];
+        random.nextBytes(oldData);
+
+        // 修改、插入、删除和移动一部分数据
+        ByteArrayOutputStream newData = new ByteArrayOutputStream();
+        newData.write(oldData, 128 * 1024, 64 * 1024);
+        byte[] inserted = new byte[3000];
+        random.nextBytes(inserted);
+        newData.write(inserted);
+        byte[] modified = Arrays.copyOfRange(oldData, 0, 100 * 1024);
+        for (int i = 0; i < modified.length; i += 97) {
+            modified[i]++;
+        }
+        newData.write(modified);
+        newData.write(oldData, 200 * 1024, 56 * 1024);
+
+        assertRoundTrip(oldData, newData.toByteArray());
+    }
+
+    @Test
+    public void roundTripSwappedHalves() throws Exception {
+        byte[] oldData = new byte[64 * 1024];
+        new Random(1).nextBytes(oldData);
+        byte[] newData = new byte[oldData.length];
+        System.arraycopy(oldData, oldData.length / 2, newData, 0, oldData.length / 2);
+        System.arraycopy(oldData, 0, newData, oldData.length / 2, oldData.length / 2);
+
+        // 后半段需要回退到旧文件开头(负的seek)，两段都应作为匹配而不是extra数据
+        assertRoundTrip(oldData, newData);
+        assertTrue(mPatchFile.length() < newData.length / 10);
+    }
+
+    @Test
+    public void roundTripEdgeCases() throws Exception {
+        byte[] data = "plugin".getBytes("UTF-8");
+        assertRoundTrip(new byte[0], data);
+        assertRoundTrip(data, new byte[0]);
+        assertRoundTrip(data, data);
+    }
+
+    @Test
+    public void negativeSeek() throws Exception {
+        byte[] oldData = "0123456789ABCDEF".getBytes("UTF-8");
+        write(mOldFile, oldData);
+
+        // old[0,4) + old[12,16) + old[0,4)，第二次之后回退16字节
+        ByteArrayOutputStream ctrl = new ByteArrayOutputStream();
+        PatchGenerator.writeCtrl(ctrl, 4, 0, 8);
+        PatchGenerator.writeCtrl(ctrl, 4, 0, -16);
+        PatchGenerator.writeCtrl(ctrl, 4, 2, 0);
+        byte[] extra = "XY".getBytes("UTF-8");
+        writePatch(14, ctrl.toByteArray(), new byte[12], extra);
+
+        String digest = PatchUtils.applyPatch(mOldFile, mPatchFile, mOutFile);
+        byte[] expected = "0123CDEF0123XY".getBytes("UTF-8");
+        assertArrayEquals(expected, read(mOutFile));
+        assertEquals(sha256(expected), digest);
+    }
+
+    @Test
+    public void corruptMagic() throws Exception {
+        write(mOldFile, "old".getBytes("UTF-8"));
+        byte[] patch = PatchGenerator.diff("old".getBytes("UTF-8"), "new".getBytes("UTF-8"));
+        patch[0] = 'X';
+        write(mPatchFile, patch);
+
+        assertNull(PatchUtils.applyPatch(mOldFile, mPatchFile, mOutFile));
+        assertFalse(mOutFile.exists());
+    }
+
+    @Test
+    public void corruptHeaderLength() throws Exception {
+        write(mOldFile, "old".getBytes("UTF-8"));
+        byte[] patch = PatchGenerator.diff("old".getBytes("UTF-8"), "new".getBytes("UTF-8"));
+        PatchGenerator.offtout(-1, patch, 8);
+        write(mPatchFile, patch);
+
+        assertNull(PatchUtils.applyPatch(mOldFile, mPatchFile, mOutFile));
+        assertFalse(mOutFile.exists());
+    }
+
+    @Test
+    public void corruptCtrlBlock() throws Exception {
+        write(mOldFile, "0123456789".getBytes("UTF-8"));
+
+        // add + copy 超出新文件长度
+        ByteArrayOutputStream ctrl = new ByteArrayOutputStream();
+        PatchGenerator.writeCtrl(ctrl, 8, 8, 0);
+        writePatch(10, ctrl.toByteArray(), new byte[8], new byte[8]);
+        assertNull(PatchUtils.applyPatch(mOldFile, mPatchFile, mOutFile));
+        assertFalse(mOutFile.exists());
+
+        // 负的add长度
+        ctrl.reset();
+        PatchGenerator.writeCtrl(ctrl, -1, 0, 0);
+        writePatch(10, ctrl.toByteArray(), new byte[0], new byte[0]);
+        assertNull(PatchUtils.applyPatch(mOldFile, mPatchFile, mOutFile));
+        assertFalse(mOutFile.exists());
+    }
+
+    @Test
+    public void truncatedPatch() throws Exception {
+        byte[] oldData = new byte[4096];
+        new Random(2).nextBytes(oldData);
+        byte[] newData = Arrays.copyOf(oldData, 5000);
+        write(mOldFile, oldData);
+        byte[] patch = PatchGenerator.diff(oldData, newData);
+        write(mPatchFile, Arrays.copyOf(patch, patch.length - 8));
+
+        assertNull(PatchUtils.applyPatch(mOldFile, mPatchFile, mOutFile));
+        assertFalse(mOutFile.exists());
+    }
+
+    private void assertRoundTrip(byte[] oldData, byte[] newData) throws Exception {
+        write(mOldFile, oldData);
+        write(mNewFile, newData);
+        PatchGenerator.createPatch(mOldFile, mNewFile, mPatchFile);
+
+        String digest = PatchUtils.applyPatch(mOldFile, mPatchFile, mOutFile);
+        assertArrayEquals(newData, read(mOutFile));
+        assertEquals(sha256(newData), digest);
+        assertTrue(mOutFile.delete());
+    }
+
+    private void writePatch(long newSize, byte[] ctrl, byte[] diff, byte[] extra) throws IOException {
+        FileOutputStream out = new FileOutputStream(mPatchFile);
+        try {
+            PatchGenerator.writePatch(out, newSize, ctrl, diff, extra);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) raf.length()];
+            raf.readFully(data);
+            return data;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static String sha256(byte[] data) throws Exception {
+        return PackageUtils.toHexString(MessageDigest.getInstance("SHA-256").digest(data));
+    }
+}
@@ -0,0 +1,162 @@
+package com.reginald.pluginm.utils;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ProcessNameResolverTest {
+
+    private static final int MY_PID = 100;
+
+    @Rule
+    public TemporaryFolder mTempFolder = new TemporaryFolder();
+
+    private File mProcRoot;
+    private ProcessNameResolver mResolver;
+
+    @Before
+    public void setUp() throws IOException {
+        mProcRoot = mTempFolder.newFolder("proc");
+        mResolver = new ProcessNameResolver(mProcRoot, MY_PID);
+    }
+
+    @Test
+    public void cmdlineArguments() throws Exception {
+        writeProcess(1000, "com.host:p0\0--arg\0value\0", "p0", 12345);
+        assertEquals("com.host:p0", mResolver.resolve(1000));
+
+        // 没有结尾的'\0'
+        writeProcess(1001, "com.host:p1", "p1", 12346);
+        assertEquals("com.host:p1", mResolver.resolve(1001));
+    }
+
+    @Test
+    public void preInitialized() throws Exception {
+        writeProcess(1000, "<pre-initialized>\0", "main", 12345);
+        assertNull(mResolver.resolve(1000));
+
+        writeProcess(1001, "\0", "main", 12346);
+        assertNull(mResolver.resolve(1001));
+
+        // 设置进程名后可以正常获取
+        writeProcess(1000, "com.host:p0\0", "p0", 12345);
+        assertEquals("com.host:p0", mResolver.resolve(1000));
+    }
+
+    @Test
+    public void commWithParenthesisAndSpaces() throws Exception {
+        writeProcess(1000, "com.host:p0\0", "a) (b c) 0 1", 12345);
+        assertEquals("com.host:p0", mResolver.resolve(1000));
+
+        // starttime不变时使用缓存
+        write(new File(dir(1000), "cmdline"), "com.host:changed\0");
+        assertEquals("com.host:p0", mResolver.resolve(1000));
+    }
+
+    @Test
+    public void pidReused() throws Exception {
+        writeProcess(1000, "com.host:p0\0", "p0", 12345);
+        assertEquals("com.host:p0", mResolver.resolve(1000));
+
+        // 进程结束，pid被新进程复用
+        writeProcess(1000, "com.host:p1\0", "p1", 23456);
+        assertEquals("com.host:p1", mResolver.resolve(1000));
+    }
+
+    @Test
+    public void missingPid() throws Exception {
+        assertNull(mResolver.resolve(1000));
+
+        writeProcess(1000, "com.host:p0\0", "p0", 12345);
+        assertEquals("com.host:p0", mResolver.resolve(1000));
+
+        // 进程结束后不再返回缓存的进程名
+        deleteProcess(1000);
+        assertNull(mResolver.resolve(1000));
+    }
+
+    @Test
+    public void myPid() throws Exception {
+        File selfDir = new File(mProcRoot, "self");
+        assertTrue(selfDir.mkdirs());
+        write(new File(selfDir, "cmdline"), "com.host\0");
+
+        assertEquals("com.host", mResolver.resolve(MY_PID));
+    }
+
+    @Test
+    public void lruEviction() throws Exception {
+        int cacheSize = 32;
+        for (int pid = 1; pid <= cacheSize + 1; pid++) {
+            writeProcess(pid, "com.host:p" + pid + "\0", "p" + pid, 1000 + pid);
+            assertEquals("com.host:p" + pid, mResolver.resolve(pid));
+        }
+
+        // 只修改cmdline：仍在缓存中的返回旧值，被淘汰的重新读取
+        for (int pid = 1; pid <= cacheSize + 1; pid++) {
+            write(new File(dir(pid), "cmdline"), "com.host:new" + pid + "\0");
+        }
+        assertEquals("com.host:p2", mResolver.resolve(2));
+        assertEquals("com.host:p" + (cacheSize + 1), mResolver.resolve(cacheSize + 1));
+        assertEquals("com.host:new1", mResolver.resolve(1));
+
+        // 重新加入pid 1后淘汰最久未访问的pid 3
+        assertEquals("com.host:new3", mResolver.resolve(3));
+        assertEquals("com.host:p2", mResolver.resolve(2));
+
+        // invalidate后重新读取
+        mResolver.invalidate(2);
+        assertEquals("com.host:new2", mResolver.resolve(2));
+    }
+
+    private File dir(int pid) {
+        return new File(mProcRoot, String.valueOf(pid));
+    }
+
+    private void writeProcess(int pid, String cmdline, String comm, long startTime) throws IOException {
+        File pidDir = dir(pid);
+        if (!pidDir.exists()) {
+            assertTrue(pidDir.mkdirs());
+        }
+
+        // 第3项(state)到第52项，starttime为第22项
+        StringBuilder stat = new StringBuilder();
+        stat.append(pid).append(" (").append(comm).append(") S");
+        for (int field = 4; field <= 52; field++) {
+            stat.append(' ').append(field == 22 ? startTime : field);
+        }
+        stat.append('\n');
+
+        write(new File(pidDir, "cmdline"), cmdline);
+        write(new File(pidDir, "stat"), stat.toString());
+    }
+
+    private void deleteProcess(int pid) {
+        File pidDir = dir(pid);
+        File[] files = pidDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                assertTrue(file.delete());
+            }
+        }
+        assertTrue(pidDir.delete());
+    }
+
+    private static void write(File file, String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+}
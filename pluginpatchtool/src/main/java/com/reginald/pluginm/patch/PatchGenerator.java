@@ -0,0 +1,401 @@
+package com.reginald.pluginm.patch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * 生成插件增量更新(com.reginald.pluginm.utils.PatchUtils)使用的 PMDIFF01 补丁，
+ * 算法与bsdiff 4.x相同(qsufsort后缀排序 + 近似匹配)，只是三段数据改为zlib压缩。
+ * <p>
+ * 在开发机或发布流程中运行，整个新旧文件都读入内存：
+ * <pre>
+ * ./gradlew :pluginpatchtool:jar
+ * java -jar pluginpatchtool/build/libs/pluginpatchtool.jar old.apk new.apk patch
+ * </pre>
+ */
+public class PatchGenerator {
+
+    private static final byte[] MAGIC = new byte[]{'P', 'M', 'D', 'I', 'F', 'F', '0', '1'};
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3) {
+            System.err.println("usage: PatchGenerator <old file> <new file> <patch file>");
+            System.exit(1);
+        }
+        createPatch(new File(args[0]), new File(args[1]), new File(args[2]));
+    }
+
+    public static void createPatch(File oldFile, File newFile, File patchFile) throws IOException {
+        byte[] patch = diff(readFile(oldFile), readFile(newFile));
+        FileOutputStream out = new FileOutputStream(patchFile);
+        try {
+            out.write(patch);
+        } finally {
+            out.close();
+        }
+    }
+
+    public static byte[] diff(byte[] oldData, byte[] newData) throws IOException {
+        int oldSize = oldData.length;
+        int newSize = newData.length;
+        int[] I = new int[oldSize + 1];
+        int[] V = new int[oldSize + 1];
+        qsufsort(I, V, oldData);
+
+        ByteArrayOutputStream ctrl = new ByteArrayOutputStream();
+        ByteArrayOutputStream diff = new ByteArrayOutputStream();
+        ByteArrayOutputStream extra = new ByteArrayOutputStream();
+
+        int scan = 0;
+        int len = 0;
+        int lastScan = 0;
+        int lastPos = 0;
+        int lastOffset = 0;
+        int[] pos = new int[1];
+        while (scan < newSize) {
+            int oldScore = 0;
+            int scsc;
+            for (scsc = scan += len; scan < newSize; scan++) {
+                len = search(I, oldData, newData, scan, 0, oldSize, pos);
+                for (; scsc < scan + len; scsc++) {
+                    if (scsc + lastOffset < oldSize && oldData[scsc + lastOffset] == newData[scsc]) {
+                        oldScore++;
+                    }
+                }
+                if ((len == oldScore && len != 0) || len > oldScore + 8) {
+                    break;
+                }
+                if (scan + lastOffset < oldSize && oldData[scan + lastOffset] == newData[scan]) {
+                    oldScore--;
+                }
+            }
+
+            if (len != oldScore || scan == newSize) {
+                // 向前扩展上一个匹配
+                int s = 0;
+                int sf = 0;
+                int lenf = 0;
+                for (int i = 0; lastScan + i < scan && lastPos + i < oldSize; ) {
+                    if (oldData[lastPos + i] == newData[lastScan + i]) {
+                        s++;
+                    }
+                    i++;
+                    if (s * 2 - i > sf * 2 - lenf) {
+                        sf = s;
+                        lenf = i;
+                    }
+                }
+
+                // 向后扩展当前匹配
+                int lenb = 0;
+                if (scan < newSize) {
+                    s = 0;
+                    int sb = 0;
+                    for (int i = 1; scan >= lastScan + i && pos[0] >= i; i++) {
+                        if (oldData[pos[0] - i] == newData[scan - i]) {
+                            s++;
+                        }
+                        if (s * 2 - i > sb * 2 - lenb) {
+                            sb = s;
+                            lenb = i;
+                        }
+                    }
+                }
+
+                // 两者重叠时找最佳的分割点
+                if (lastScan + lenf > scan - lenb) {
+                    int overlap = (lastScan + lenf) - (scan - lenb);
+                    s = 0;
+                    int ss = 0;
+                    int lens = 0;
+                    for (int i = 0; i < overlap; i++) {
+                        if (newData[lastScan + lenf - overlap + i] == oldData[lastPos + lenf - overlap + i]) {
+                            s++;
+                        }
+                        if (newData[scan - lenb + i] == oldData[pos[0] - lenb + i]) {
+                            s--;
+                        }
+                        if (s > ss) {
+                            ss = s;
+                            lens = i + 1;
+                        }
+                    }
+                    lenf += lens - overlap;
+                    lenb -= lens;
+                }
+
+                for (int i = 0; i < lenf; i++) {
+                    diff.write(newData[lastScan + i] - oldData[lastPos + i]);
+                }
+                int extraLength = (scan - lenb) - (lastScan + lenf);
+                extra.write(newData, lastScan + lenf, extraLength);
+
+                writeCtrl(ctrl, lenf, extraLength, (pos[0] - lenb) - (lastPos + lenf));
+
+                lastScan = scan - lenb;
+                lastPos = pos[0] - lenb;
+                lastOffset = pos[0] - scan;
+            }
+        }
+
+        ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        writePatch(patch, newSize, ctrl.toByteArray(), diff.toByteArray(), extra.toByteArray());
+        return patch.toByteArray();
+    }
+
+    /**
+     * 按 PMDIFF01 格式写出补丁，ctrl为未压缩的 (add, copy, seek) 三元组序列
+     */
+    public static void writePatch(OutputStream out, long newSize, byte[] ctrl, byte[] diff, byte[] extra)
+            throws IOException {
+        byte[] ctrlBlock = deflate(ctrl);
+        byte[] diffBlock = deflate(diff);
+        byte[] extraBlock = deflate(extra);
+
+        byte[] header = new byte[32];
+        System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+        offtout(ctrlBlock.length, header, 8);
+        offtout(diffBlock.length, header, 16);
+        offtout(newSize, header, 24);
+
+        out.write(header);
+        out.write(ctrlBlock);
+        out.write(diffBlock);
+        out.write(extraBlock);
+    }
+
+    public static void writeCtrl(ByteArrayOutputStream ctrl, long addLength, long copyLength, long seekLength) {
+        byte[] buf = new byte[24];
+        offtout(addLength, buf, 0);
+        offtout(copyLength, buf, 8);
+        offtout(seekLength, buf, 16);
+        ctrl.write(buf, 0, buf.length);
+    }
+
+    /**
+     * bsdiff的整数编码：8字节小端，最高位为符号位
+     */
+    public static void offtout(long x, byte[] buf, int offset) {
+        long y = x < 0 ? -x : x;
+        for (int i = 0; i < 8; i++) {
+            buf[offset + i] = (byte) (y & 0xFF);
+            y >>>= 8;
+        }
+        if (x < 0) {
+            buf[offset + 7] |= 0x80;
+        }
+    }
+
+    private static byte[] deflate(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DeflaterOutputStream deflaterOut = new DeflaterOutputStream(out);
+        deflaterOut.write(data);
+        deflaterOut.close();
+        return out.toByteArray();
+    }
+
+    private static void qsufsort(int[] I, int[] V, byte[] old) {
+        int oldSize = old.length;
+        int[] buckets = new int[256];
+        for (int i = 0; i < oldSize; i++) {
+            buckets[old[i] & 0xFF]++;
+        }
+        for (int i = 1; i < 256; i++) {
+            buckets[i] += buckets[i - 1];
+        }
+        for (int i = 255; i > 0; i--) {
+            buckets[i] = buckets[i - 1];
+        }
+        buckets[0] = 0;
+
+        for (int i = 0; i < oldSize; i++) {
+            I[++buckets[old[i] & 0xFF]] = i;
+        }
+        I[0] = oldSize;
+        for (int i = 0; i < oldSize; i++) {
+            V[i] = buckets[old[i] & 0xFF];
+        }
+        V[oldSize] = 0;
+        for (int i = 1; i < 256; i++) {
+            if (buckets[i] == buckets[i - 1] + 1) {
+                I[buckets[i]] = -1;
+            }
+        }
+        I[0] = -1;
+
+        for (int h = 1; I[0] != -(oldSize + 1); h += h) {
+            int len = 0;
+            int i = 0;
+            while (i < oldSize + 1) {
+                if (I[i] < 0) {
+                    len -= I[i];
+                    i -= I[i];
+                } else {
+                    if (len != 0) {
+                        I[i - len] = -len;
+                    }
+                    len = V[I[i]] + 1 - i;
+                    split(I, V, i, len, h);
+                    i += len;
+                    len = 0;
+                }
+            }
+            if (len != 0) {
+                I[i - len] = -len;
+            }
+        }
+
+        for (int i = 0; i < oldSize + 1; i++) {
+            I[V[i]] = i;
+        }
+    }
+
+    private static void split(int[] I, int[] V, int start, int len, int h) {
+        int tmp;
+        if (len < 16) {
+            int j;
+            for (int k = start; k < start + len; k += j) {
+                j = 1;
+                int x = V[I[k] + h];
+                for (int i = 1; k + i < start + len; i++) {
+                    if (V[I[k + i] + h] < x) {
+                        x = V[I[k + i] + h];
+                        j = 0;
+                    }
+                    if (V[I[k + i] + h] == x) {
+                        tmp = I[k + j];
+                        I[k + j] = I[k + i];
+                        I[k + i] = tmp;
+                        j++;
+                    }
+                }
+                for (int i = 0; i < j; i++) {
+                    V[I[k + i]] = k + j - 1;
+                }
+                if (j == 1) {
+                    I[k] = -1;
+                }
+            }
+            return;
+        }
+
+        int x = V[I[start + len / 2] + h];
+        int jj = 0;
+        int kk = 0;
+        for (int i = start; i < start + len; i++) {
+            if (V[I[i] + h] < x) {
+                jj++;
+            }
+            if (V[I[i] + h] == x) {
+                kk++;
+            }
+        }
+        jj += start;
+        kk += jj;
+
+        int i = start;
+        int j = 0;
+        int k = 0;
+        while (i < jj) {
+            if (V[I[i] + h] < x) {
+                i++;
+            } else if (V[I[i] + h] == x) {
+                tmp = I[i];
+                I[i] = I[jj + j];
+                I[jj + j] = tmp;
+                j++;
+            } else {
+                tmp = I[i];
+                I[i] = I[kk + k];
+                I[kk + k] = tmp;
+                k++;
+            }
+        }
+        while (jj + j < kk) {
+            if (V[I[jj + j] + h] == x) {
+                j++;
+            } else {
+                tmp = I[jj + j];
+                I[jj + j] = I[kk + k];
+                I[kk + k] = tmp;
+                k++;
+            }
+        }
+
+        if (jj > start) {
+            split(I, V, start, jj - start, h);
+        }
+        for (i = 0; i < kk - jj; i++) {
+            V[I[jj + i]] = kk - 1;
+        }
+        if (jj == kk - 1) {
+            I[jj] = -1;
+        }
+        if (start + len > kk) {
+            split(I, V, kk, start + len - kk, h);
+        }
+    }
+
+    /**
+     * 在后缀数组I[st..en]中查找与newData[newStart..]最长的匹配
+     */
+    private static int search(int[] I, byte[] oldData, byte[] newData, int newStart, int st, int en, int[] pos) {
+        while (en - st >= 2) {
+            int x = st + (en - st) / 2;
+            if (compare(oldData, I[x], newData, newStart) < 0) {
+                st = x;
+            } else {
+                en = x;
+            }
+        }
+
+        int x = matchLength(oldData, I[st], newData, newStart);
+        int y = matchLength(oldData, I[en], newData, newStart);
+        if (x > y) {
+            pos[0] = I[st];
+            return x;
+        }
+        pos[0] = I[en];
+        return y;
+    }
+
+    private static int matchLength(byte[] oldData, int oldStart, byte[] newData, int newStart) {
+        int i = 0;
+        while (oldStart + i < oldData.length && newStart + i < newData.length &&
+                oldData[oldStart + i] == newData[newStart + i]) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * 与memcmp相同，按无符号字节比较两者较短的长度
+     */
+    private static int compare(byte[] oldData, int oldStart, byte[] newData, int newStart) {
+        int length = Math.min(oldData.length - oldStart, newData.length - newStart);
+        for (int i = 0; i < length; i++) {
+            int a = oldData[oldStart + i] & 0xFF;
+            int b = newData[newStart + i] & 0xFF;
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return 0;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) raf.length()];
+            raf.readFully(data);
+            return data;
+        } finally {
+            raf.close();
+        }
+    }
+}